@@ -2,8 +2,25 @@ package id.ridon.ngobrel.core;
 
 import android.support.test.runner.AndroidJUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -31,4 +48,329 @@ public class AeadInstrumentedTest {
     Assert.assertEquals(Arrays.equals(data.getBytes(), decrypted), true);
   }
 
-}
\ No newline at end of file
+  // The construction as it was written before the key schedule moved into Aead
+  private static byte[] referenceEncrypt(byte[] key, String info, byte[] plainText, byte[] ad) throws Exception {
+    byte[] kdfResult = Kdf.KdfSha512(key, Constants.getRidonSalt512()).get(info, 64);
+
+    Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE,
+        new SecretKeySpec(Arrays.copyOfRange(kdfResult, 0, 16), "AES"),
+        new IvParameterSpec(Arrays.copyOfRange(kdfResult, 48, 64)));
+    int padLength = 16 - plainText.length % 16;
+    byte[] padded = Arrays.copyOf(plainText, plainText.length + padLength);
+    Arrays.fill(padded, plainText.length, padded.length, (byte) padLength);
+    byte[] encrypted = cipher.doFinal(padded);
+
+    Mac m = Mac.getInstance("HmacSHA512");
+    m.init(new SecretKeySpec(Arrays.copyOfRange(kdfResult, 16, 48), "HmacSHA512"));
+    m.update(ad);
+    byte[] hmac = m.doFinal(encrypted);
+
+    byte[] retval = Arrays.copyOf(encrypted, encrypted.length + hmac.length);
+    System.arraycopy(hmac, 0, retval, encrypted.length, hmac.length);
+    return retval;
+  }
+
+  @Test
+  public void testFromChainKey() throws Exception {
+    Random r = new Random();
+    byte[] ad = "Omama".getBytes();
+    byte[] b = new byte[Key.SIZE];
+    r.nextBytes(b);
+    Key chainKey = new Key(b);
+    Key expectedChainKey = new Key(b);
+
+    for (int i = 0; i < 5; i++) {
+      byte[] data = new byte[r.nextInt(100)];
+      r.nextBytes(data);
+
+      Key mk = ChainKeyStepper.Sha512.step(expectedChainKey);
+      byte[] expected = referenceEncrypt(mk.raw(), Constants.RidonRatchetInfo, data, ad);
+
+      byte[] encrypted = Aead.fromChainKey(chainKey).encrypt(data, ad);
+      Assert.assertEquals(Arrays.equals(expected, encrypted), true);
+      Assert.assertEquals(chainKey, expectedChainKey);
+
+      Assert.assertEquals(Arrays.equals(expected, new Aead(mk.raw(), Constants.RidonRatchetInfo).encrypt(data, ad)), true);
+      byte[] decrypted = new Aead(mk.raw(), HkdfSha512.RatchetInfo).decrypt(encrypted, ad);
+      Assert.assertEquals(Arrays.equals(data, decrypted), true);
+    }
+  }
+
+  @Test
+  public void testByteBuffers() throws Exception {
+    Random r = new Random();
+    byte[] key = new byte[Key.SIZE];
+    r.nextBytes(key);
+    byte[] ad = "Omama".getBytes();
+    Aead aead = new Aead(key, "Info");
+
+    int[] lengths = { 0, 1, 15, 16, 17, 100, 4096 };
+    for (int length : lengths) {
+      byte[] data = new byte[length];
+      r.nextBytes(data);
+      byte[] expected = aead.encrypt(data, ad);
+      int size = Aead.encryptedSize(length);
+      Assert.assertEquals(expected.length, size);
+
+      // Direct buffers, at an offset
+      ByteBuffer src = ByteBuffer.allocateDirect(length + 3);
+      src.position(3);
+      src.put(data);
+      src.position(3);
+      ByteBuffer dst = ByteBuffer.allocateDirect(size + 5);
+      dst.position(5);
+      aead.encrypt(src, ByteBuffer.wrap(ad), dst);
+      Assert.assertEquals(src.remaining(), 0);
+      Assert.assertEquals(dst.remaining(), 0);
+      byte[] encrypted = new byte[size];
+      dst.position(5);
+      dst.get(encrypted);
+      Assert.assertEquals(Arrays.equals(expected, encrypted), true);
+
+      dst.position(5);
+      ByteBuffer out = ByteBuffer.allocateDirect(size);
+      aead.decrypt(dst, ByteBuffer.wrap(ad), out);
+      Assert.assertEquals(out.position(), length);
+      byte[] decrypted = new byte[length];
+      out.flip();
+      out.get(decrypted);
+      Assert.assertEquals(Arrays.equals(data, decrypted), true);
+
+      // In place, in the same array
+      byte[] buf = Arrays.copyOf(data, size);
+      aead.encrypt(ByteBuffer.wrap(buf, 0, length), ByteBuffer.wrap(ad), ByteBuffer.wrap(buf));
+      Assert.assertEquals(Arrays.equals(expected, buf), true);
+      ByteBuffer plain = ByteBuffer.wrap(buf);
+      aead.decrypt(ByteBuffer.wrap(buf), ByteBuffer.wrap(ad), plain);
+      Assert.assertEquals(plain.position(), length);
+      Assert.assertEquals(Arrays.equals(data, Arrays.copyOf(buf, length)), true);
+    }
+
+    byte[] encrypted = aead.encrypt("Olala".getBytes(), ad);
+    encrypted[3] ^= 1;
+    try {
+      aead.decrypt(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(ad), ByteBuffer.allocate(encrypted.length));
+      Assert.fail();
+    } catch (AuthenticationException e) {
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[37];
+    int n;
+    while ((n = in.read(b)) >= 0) {
+      out.write(b, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static boolean failsToDecrypt(StreamingAead aead, byte[] encrypted, byte[] ad) {
+    try {
+      readAll(aead.newDecryptingStream(new ByteArrayInputStream(encrypted), ad));
+      return false;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  @Test
+  public void testStreaming() throws Exception {
+    Random r = new Random();
+    byte[] key = new byte[Key.SIZE];
+    r.nextBytes(key);
+    byte[] ad = "Omama".getBytes();
+    final int chunkSize = 64;
+    StreamingAead aead = new StreamingAead(key, "My Chat App", chunkSize);
+
+    int[] lengths = { 0, 1, 15, 16, 63, 64, 65, 128, 1000 };
+    for (int length : lengths) {
+      byte[] data = new byte[length];
+      r.nextBytes(data);
+
+      ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+      OutputStream out = aead.newEncryptingStream(encrypted, ad);
+      for (int i = 0; i < length; i += 7) {
+        out.write(data, i, Math.min(7, length - i));
+      }
+      out.close();
+      byte[] e = encrypted.toByteArray();
+      Assert.assertEquals(e.length, aead.encryptedSize(length));
+
+      // The channels produce and accept the same stream
+      ByteArrayOutputStream encrypted2 = new ByteArrayOutputStream();
+      WritableByteChannel channel = aead.newEncryptingChannel(Channels.newChannel(encrypted2), ad);
+      ByteBuffer direct = ByteBuffer.allocateDirect(length);
+      direct.put(data);
+      direct.flip();
+      channel.write(direct);
+      channel.close();
+      byte[] e2 = encrypted2.toByteArray();
+      Assert.assertEquals(Arrays.equals(e, e2), true);
+
+      Assert.assertEquals(Arrays.equals(data, readAll(aead.newDecryptingStream(new ByteArrayInputStream(e), ad))), true);
+
+      ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+      channel = aead.newDecryptingChannel(Channels.newChannel(decrypted), ad);
+      channel.write(ByteBuffer.wrap(e));
+      channel.close();
+      Assert.assertEquals(Arrays.equals(data, decrypted.toByteArray()), true);
+
+      // Changed, cut short, or with a different additional data
+      byte[] changed = e.clone();
+      changed[r.nextInt(changed.length)] ^= 1;
+      Assert.assertEquals(failsToDecrypt(aead, changed, ad), true);
+      Assert.assertEquals(failsToDecrypt(aead, Arrays.copyOf(e, e.length - 1), ad), true);
+      Assert.assertEquals(failsToDecrypt(aead, "Olala".getBytes(), ad), true);
+      Assert.assertEquals(failsToDecrypt(aead, e, "Olala".getBytes()), true);
+    }
+
+    // Dropping the last chunk, or swapping two chunks
+    byte[] data = new byte[3 * chunkSize + 10];
+    r.nextBytes(data);
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    OutputStream out = aead.newEncryptingStream(encrypted, ad);
+    out.write(data);
+    out.close();
+    byte[] e = encrypted.toByteArray();
+    int record = chunkSize + StreamingAead.TagSize;
+    int header = (int) aead.encryptedSize(0) - StreamingAead.TagSize - 16;
+    Assert.assertEquals(failsToDecrypt(aead, Arrays.copyOf(e, header + 3 * record), ad), true);
+
+    byte[] swapped = e.clone();
+    System.arraycopy(e, header, swapped, header + record, record);
+    System.arraycopy(e, header + record, swapped, header, record);
+    Assert.assertEquals(failsToDecrypt(aead, swapped, ad), true);
+    Assert.assertEquals(Arrays.equals(data, readAll(aead.newDecryptingStream(new ByteArrayInputStream(e), ad))), true);
+  }
+
+  @Test
+  public void testParallelFile() throws Exception {
+    Random r = new Random();
+    byte[] key = new byte[Key.SIZE];
+    r.nextBytes(key);
+    byte[] ad = "Omama".getBytes();
+    final int chunkSize = 64;
+    ParallelFileAead aead = new ParallelFileAead(key, chunkSize, 4);
+    ForkJoinPool pool = new ForkJoinPool(2);
+    File plain = File.createTempFile("plain", null);
+    File encrypted = File.createTempFile("encrypted", null);
+    File decrypted = File.createTempFile("decrypted", null);
+
+    try {
+      int[] lengths = { 0, 1, 15, 16, 63, 64, 65, 128, 1000, 100000 };
+      for (int length : lengths) {
+        byte[] data = new byte[length];
+        r.nextBytes(data);
+        writeFile(plain, data);
+
+        aead.encrypt(plain, encrypted, ad);
+        Assert.assertEquals(encrypted.length(), aead.encryptedSize(length));
+        aead.decrypt(encrypted, decrypted, ad);
+        Assert.assertEquals(Arrays.equals(data, readFile(decrypted)), true);
+
+        // Every chunk on its own, in any order
+        ParallelFileAead.EncryptedFile file = aead.open(encrypted, ad);
+        Assert.assertEquals(file.getLength(), length);
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        for (long i = file.getChunkCount() - 1; i >= 0; i --) {
+          chunk.clear();
+          int n = file.readChunk(i, chunk);
+          Assert.assertEquals(Arrays.equals(Arrays.copyOfRange(data, (int) i * chunkSize, (int) i * chunkSize + n), Arrays.copyOf(chunk.array(), n)), true);
+        }
+        file.close();
+
+        byte[] e = readFile(encrypted);
+        byte[] changed = e.clone();
+        changed[r.nextInt(changed.length)] ^= 1;
+        Assert.assertEquals(failsToDecrypt(aead, encrypted, changed, ad), true);
+        Assert.assertEquals(failsToDecrypt(aead, encrypted, Arrays.copyOf(e, e.length - 1), ad), true);
+        Assert.assertEquals(failsToDecrypt(aead, encrypted, e, "Olala".getBytes()), true);
+        // The key is not only known to the manifest
+        ParallelFileAead other = new ParallelFileAead(new byte[Key.SIZE], chunkSize, pool);
+        Assert.assertEquals(failsToDecrypt(other, encrypted, e, ad), true);
+        // Closing it leaves the pool of the caller running
+        other.close();
+        Assert.assertEquals(pool.isShutdown(), false);
+      }
+
+      // Swapping two chunks, only those fail when read on their own
+      byte[] data = new byte[5 * chunkSize + 10];
+      r.nextBytes(data);
+      writeFile(plain, data);
+      aead.encrypt(plain, encrypted, ad);
+      byte[] e = readFile(encrypted);
+      int record = Aead.encryptedSize(chunkSize);
+      int start = ParallelFileAead.ManifestSize + record;
+      byte[] swapped = e.clone();
+      System.arraycopy(e, start, swapped, start + record, record);
+      System.arraycopy(e, start + record, swapped, start, record);
+      Assert.assertEquals(failsToDecrypt(aead, encrypted, swapped, ad), true);
+
+      ParallelFileAead.EncryptedFile file = aead.open(encrypted, ad);
+      ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+      Assert.assertEquals(file.readChunk(0, chunk), chunkSize);
+      try {
+        chunk.clear();
+        file.readChunk(2, chunk);
+        Assert.fail();
+      } catch (StreamingAead.ChunkAuthenticationException ex) {
+      }
+      chunk.clear();
+      Assert.assertEquals(file.readChunk(5, chunk), 10);
+      file.close();
+    } finally {
+      aead.close();
+      pool.shutdown();
+      plain.delete();
+      encrypted.delete();
+      decrypted.delete();
+    }
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      byte[] data = new byte[(int) in.length()];
+      in.readFully(data);
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  // Writes the encrypted file and decrypts it both at once and chunk by chunk
+  private static boolean failsToDecrypt(ParallelFileAead aead, File file, byte[] encrypted, byte[] ad) throws IOException {
+    writeFile(file, encrypted);
+    File decrypted = File.createTempFile("decrypted", null);
+    try {
+      aead.decrypt(file, decrypted, ad);
+      ParallelFileAead.EncryptedFile f = aead.open(file, ad);
+      try {
+        ByteBuffer chunk = ByteBuffer.allocate(f.getChunkSize());
+        for (long i = 0; i < f.getChunkCount(); i ++) {
+          chunk.clear();
+          f.readChunk(i, chunk);
+        }
+      } finally {
+        f.close();
+      }
+      return false;
+    } catch (IOException e) {
+      return true;
+    } finally {
+      decrypted.delete();
+    }
+  }
+}
@@ -0,0 +1,838 @@
+package id.ridon.ngobrel.core;
+
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rough throughput numbers for the hot paths. These only log, they never fail on timing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BenchmarkInstrumentedTest {
+  private static final String TAG = "Benchmark";
+
+  private static void report(String name, int count, long nanos) {
+    double perSecond = count * 1e9 / nanos;
+    Log.d(TAG, String.format("%s: %d ops in %.1f ms, %.1f ops/s", name, count, nanos / 1e6, perSecond));
+  }
+
+  @Test
+  public void benchmarkKeygen() throws Exception {
+    final int count = 500;
+    Random r = new SecureRandom();
+    byte[][] keys = new byte[count][32];
+    for (int i = 0; i < count; i++) {
+      r.nextBytes(keys[i]);
+    }
+    byte[] pub = new byte[32];
+    byte[] sig = new byte[32];
+
+    // Warm up both paths before measuring
+    for (int i = 0; i < 50; i++) {
+      Curve.keygenLadder(pub, sig, keys[i].clone());
+      Curve.keygen(pub, sig, keys[i].clone());
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      Curve.keygenLadder(pub, sig, keys[i].clone());
+    }
+    report("keypair (ladder)", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      Curve.keygen(pub, sig, keys[i].clone());
+    }
+    report("keypair (fixed-base)", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      new KeyPair();
+    }
+    report("new KeyPair()", count, System.nanoTime() - start);
+
+    KeyPair.generateBatch(50);
+    start = System.nanoTime();
+    KeyPair.generateBatch(count);
+    report("KeyPair.generateBatch", count, System.nanoTime() - start);
+  }
+
+  @Test
+  public void benchmarkProvisioning() throws Exception {
+    final int count = 4000;
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    long single = 0;
+    for (int threads = 1; threads <= cores; threads *= 2) {
+      PreKeyProvisioner provisioner = new PreKeyProvisioner(threads);
+      try {
+        provisioner.populate(new Bundle(), 500);
+
+        Bundle b = new Bundle();
+        long start = System.nanoTime();
+        provisioner.populate(b, count);
+        long nanos = System.nanoTime() - start;
+        if (threads == 1) {
+          single = nanos;
+        }
+        report("provision prekeys, " + threads + " threads", count, nanos);
+        Log.d(TAG, String.format("provision prekeys, %d threads: %.2fx speedup", threads, single / (double) nanos));
+      } finally {
+        provisioner.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void benchmarkBackends() throws Exception {
+    final int count = 500;
+    KeyPair p = new KeyPair();
+    byte[] k = p.privateKey.raw().clone();
+    Curve.clamp(k);
+    byte[] other = new KeyPair().publicKey.raw();
+    byte[] shared = new byte[Key.SIZE];
+    CurveContext ctx = new CurveContext();
+
+    Log.d(TAG, "default backend: " + CurveBackends.get().getName());
+    CurveBackend[] backends = new CurveBackend[] { CurveBackends.JAVA, CurveBackends.jca() };
+    for (CurveBackend backend : backends) {
+      if (backend == null) {
+        continue;
+      }
+      for (int i = 0; i < 50; i++) {
+        backend.curve(shared, k, other, ctx);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        backend.curve(shared, k, other, ctx);
+      }
+      report("shared secret (" + backend.getName() + ")", count, System.nanoTime() - start);
+    }
+  }
+
+  @Test
+  public void benchmarkCurveBatch() throws Exception {
+    // The dh terms of a few dozen handshakes at once
+    final int count = 64;
+    final int rounds = 8;
+    Random r = new SecureRandom();
+    byte[][] k = new byte[count][32];
+    byte[][] P = new byte[count][];
+    byte[][] Z = new byte[count][32];
+    for (int i = 0; i < count; i++) {
+      r.nextBytes(k[i]);
+      Curve.clamp(k[i]);
+      P[i] = new KeyPair().publicKey.raw();
+    }
+    Curve.curveBatch(Z, k, P);
+
+    long start = System.nanoTime();
+    for (int j = 0; j < rounds; j++) {
+      for (int i = 0; i < count; i++) {
+        Curve.curve(Z[i], k[i], P[i]);
+      }
+    }
+    report("curve (loop)", count * rounds, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int j = 0; j < rounds; j++) {
+      Curve.curveBatch(Z, k, P);
+    }
+    report("curveBatch", count * rounds, System.nanoTime() - start);
+  }
+
+  @Test
+  public void benchmarkShareSecretAllocations() throws Exception {
+    final int count = 500;
+    KeyPair p = new KeyPair();
+    KeyPair q = new KeyPair();
+    CurveContext ctx = new CurveContext();
+    byte[] shared = new byte[Key.SIZE];
+
+    for (int i = 0; i < 50; i++) {
+      p.privateKey.shareSecret(q.publicKey);
+      p.privateKey.shareSecret(q.publicKey, shared, ctx);
+    }
+
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      p.privateKey.shareSecret(q.publicKey);
+    }
+    long nanos = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    report("shareSecret", count, nanos);
+    Log.d(TAG, String.format("shareSecret: %.1f allocations, %.1f bytes per call",
+        Debug.getThreadAllocCount() / (double) count, Debug.getThreadAllocSize() / (double) count));
+
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      p.privateKey.shareSecret(q.publicKey, shared, ctx);
+    }
+    nanos = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    report("shareSecret (context)", count, nanos);
+    Log.d(TAG, String.format("shareSecret (context): %.1f allocations, %.1f bytes per call",
+        Debug.getThreadAllocCount() / (double) count, Debug.getThreadAllocSize() / (double) count));
+  }
+
+  @Test
+  public void benchmarkSign() throws Exception {
+    final int count = 500;
+    KeyPair p = new KeyPair();
+    byte[] message = new byte[200];
+    new SecureRandom().nextBytes(message);
+    Signer signer = new Signer(p.privateKey);
+    Signer precomputed = new Signer(p.privateKey, count);
+
+    for (int i = 0; i < 50; i++) {
+      p.privateKey.sign(message);
+      signer.sign(message);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      p.privateKey.sign(message);
+    }
+    report("PrivateKey.sign", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      signer.sign(message);
+    }
+    report("Signer.sign", count, System.nanoTime() - start);
+
+    // Give the background thread time to fill its queue
+    Thread.sleep(2000);
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      precomputed.sign(message);
+    }
+    report("Signer.sign (precomputed nonces)", count, System.nanoTime() - start);
+    precomputed.close();
+  }
+
+  @Test
+  public void benchmarkVerifyBacklog() throws Exception {
+    // A synced group backlog: 1000 messages from a handful of members
+    final int count = 1000;
+    KeyPair[] senders = new KeyPair[8];
+    for (int i = 0; i < senders.length; i++) {
+      senders[i] = new KeyPair();
+    }
+    List<SignedMessage> messages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      KeyPair sender = senders[i % senders.length];
+      byte[] message = ("Backlog message " + i).getBytes(StandardCharsets.UTF_8);
+      messages.add(new SignedMessage(message, sender.privateKey.sign(message), sender.publicKey));
+    }
+
+    for (int i = 0; i < 50; i++) {
+      SignedMessage m = messages.get(i);
+      m.publicKey.verify(m.message, m.offset, m.length, m.signature);
+    }
+    PublicKey.verifyBatch(messages.subList(0, 50));
+
+    long start = System.nanoTime();
+    for (SignedMessage m : messages) {
+      m.publicKey.verify(m.message, m.offset, m.length, m.signature);
+    }
+    report("verify", count, System.nanoTime() - start);
+
+    Curve.PreparedKey[] prepared = new Curve.PreparedKey[senders.length];
+    for (int i = 0; i < senders.length; i++) {
+      prepared[i] = senders[i].publicKey.prepare();
+    }
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      SignedMessage m = messages.get(i);
+      m.publicKey.verify(m.message, m.offset, m.length, m.signature, prepared[i % senders.length]);
+    }
+    report("verify (prepared key)", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    PublicKey.verifyBatch(messages);
+    report("verifyBatch", count, System.nanoTime() - start);
+  }
+
+  @Test
+  public void benchmarkKdf() throws Exception {
+    final int count = 20000;
+    byte[] salt = Constants.getRidonSalt512();
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    byte[] out = new byte[64];
+    HkdfSha512.Info info = new HkdfSha512.Info("Omama");
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      Kdf.KdfSha512(secret, salt).get("Omama", 64);
+    }
+    report("Kdf", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      HkdfSha512.derive(secret, info, out, 0, 64);
+    }
+    report("HkdfSha512 (Ridon salt)", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      HkdfSha512.derive(secret, salt, info, out, 0, 64);
+    }
+    report("HkdfSha512 (explicit salt)", count, System.nanoTime() - start);
+  }
+
+  @Test
+  public void benchmarkCryptoPrimitives() throws Exception {
+    final int count = 50000;
+    byte[] data = new byte[100];
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      java.security.MessageDigest.getInstance("SHA-256").digest(data);
+    }
+    report("SHA-256 (MessageDigest.getInstance)", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      java.security.MessageDigest md = CryptoPrimitives.digest("SHA-256");
+      md.digest(data);
+      CryptoPrimitives.release(md);
+    }
+    report("SHA-256 (CryptoPrimitives)", count, System.nanoTime() - start);
+
+    javax.crypto.spec.SecretKeySpec keySpec = new javax.crypto.spec.SecretKeySpec(key, "AES");
+    javax.crypto.spec.IvParameterSpec ivSpec = new javax.crypto.spec.IvParameterSpec(new byte[16]);
+    byte[] block = new byte[16];
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES/CBC/NoPadding");
+      cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, keySpec, ivSpec);
+      cipher.doFinal(block);
+    }
+    report("AES block (Cipher.getInstance)", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      javax.crypto.Cipher cipher = CryptoPrimitives.cipher("AES/CBC/NoPadding");
+      cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, keySpec, ivSpec);
+      cipher.doFinal(block);
+      CryptoPrimitives.release(cipher);
+    }
+    report("AES block (CryptoPrimitives)", count, System.nanoTime() - start);
+
+    long hits = CryptoPrimitives.hits();
+    long misses = CryptoPrimitives.misses();
+    Key ck = new Key(key);
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      Aead.fromChainKey(ck).encrypt(data, key);
+    }
+    report("Aead.fromChainKey + encrypt", count, System.nanoTime() - start);
+    Log.d(TAG, String.format("pool: %d hits, %d misses", CryptoPrimitives.hits() - hits, CryptoPrimitives.misses() - misses));
+  }
+
+  @Test
+  public void benchmarkChainKeyStep() throws Exception {
+    final int count = 100000;
+    byte[] b = new byte[32];
+    new SecureRandom().nextBytes(b);
+    byte[] one = { 1 };
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA512");
+      mac.init(new javax.crypto.spec.SecretKeySpec(b, "HmacSHA512"));
+      mac.update(one);
+      byte[] sum = mac.doFinal();
+      System.arraycopy(sum, 0, b, 0, 32);
+    }
+    report("chain step (Mac.getInstance)", count, System.nanoTime() - start);
+
+    Key ck = new Key(b);
+    byte[] mk = new byte[32];
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      ChainKeyStepper.Sha512.step(ck, mk, 0);
+    }
+    report("chain step (ChainKeyStepper)", count, System.nanoTime() - start);
+
+    // Skipping a full window of messages on a fresh chain
+    Ratchet ratchet = new Ratchet();
+    KeyPair pair = new KeyPair();
+    ratchet.publicRecipient = pair.publicKey;
+    ratchet.chainKeyRecipient = new Key(b);
+    start = System.nanoTime();
+    ratchet.skipMessages(Constants.MaxSkippedMessages);
+    report("skipMessages", Constants.MaxSkippedMessages, System.nanoTime() - start);
+
+    // Taking back every key the store holds, out of order
+    int kept = ratchet.skippedMessages.size();
+    start = System.nanoTime();
+    for (int i = 0; i < kept; i ++) {
+      int number = Constants.MaxSkippedMessages - 1 - (i * 7919) % kept;
+      if (ratchet.skippedMessages.take(pair.publicKey, number) == null) {
+        throw new IllegalStateException();
+      }
+    }
+    report("skipped key lookup", kept, System.nanoTime() - start);
+  }
+
+  @Test
+  public void benchmarkRatchetSnapshot() throws Exception {
+    Random r = new SecureRandom();
+    byte[] b = new byte[32];
+    int[] sizes = { 0, 1000, 100000 };
+    for (int size : sizes) {
+      Ratchet ratchet = new Ratchet();
+      ratchet.pairSender = new KeyPair();
+      ratchet.publicRecipient = new KeyPair().publicKey;
+      r.nextBytes(b);
+      ratchet.rootKey = ratchet.chainKeySender = ratchet.chainKeyRecipient = ratchet.nextHeader = ratchet.header = new Key(b);
+      ratchet.skippedMessages.setLimits(size * SkippedMessageKeys.EntrySize, size, 8);
+      Key chain = new Key(b);
+      for (int i = 0; i < size; i ++) {
+        if (i % (size / 4) == 0) {
+          r.nextBytes(b);
+          chain = new Key(b);
+        }
+        r.nextBytes(b);
+        ratchet.skippedMessages.put(chain, i, new Key(b));
+      }
+      final int count = size < 100000 ? 200 : 10;
+
+      long start = System.nanoTime();
+      byte[] encoded = null;
+      for (int i = 0; i < count; i ++) {
+        encoded = ratchet.encode();
+      }
+      report("Ratchet.encode, " + size + " skipped keys", count, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        Ratchet.decode(encoded);
+      }
+      report("Ratchet.decode, " + size + " skipped keys", count, System.nanoTime() - start);
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(RatchetSnapshot.size(ratchet));
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        buffer.clear();
+        RatchetSnapshot.write(ratchet, buffer);
+      }
+      report("RatchetSnapshot.write, " + size + " skipped keys", count, System.nanoTime() - start);
+
+      // Loading for a single decrypt which finds its key in the table
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        buffer.clear();
+        Ratchet loaded = RatchetSnapshot.load(buffer);
+        if (size > 0 && loaded.skippedMessages.take(chain, size - 1) == null) {
+          throw new IllegalStateException();
+        }
+      }
+      report("RatchetSnapshot.load and one lookup, " + size + " skipped keys", count, System.nanoTime() - start);
+
+      // Written back after loading, without changes
+      buffer.clear();
+      Ratchet loaded = RatchetSnapshot.load(buffer);
+      ByteBuffer out = ByteBuffer.allocateDirect(buffer.capacity());
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        out.clear();
+        RatchetSnapshot.write(loaded, out);
+      }
+      report("RatchetSnapshot.write of a loaded ratchet, " + size + " skipped keys", count, System.nanoTime() - start);
+    }
+  }
+
+  @Test
+  public void benchmarkRatchetJournal() throws Exception {
+    final int count = 2000;
+    Random r = new SecureRandom();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    byte[] data = new byte[100];
+    KeyPair pairBob = new KeyPair();
+
+    // A session which holds 1000 skipped keys
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcm;
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    alice.header = alice.nextHeader = new Key(sk);
+    alice.skippedMessages.setLimits(1000 * SkippedMessageKeys.EntrySize, 1000, 8);
+    for (int i = 0; i < 1000; i ++) {
+      r.nextBytes(sk);
+      alice.skippedMessages.put(pairBob.publicKey, i, new Key(sk));
+    }
+    alice.chainKeyRecipient = new Key(sk);
+
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      alice.encrypt(data, ad);
+      bytes += alice.encode().length;
+    }
+    report("encrypt and Ratchet.encode, " + (bytes / count) + " bytes per message", count, System.nanoTime() - start);
+
+    bytes = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      alice.encrypt(data, ad);
+      bytes += RatchetSnapshot.encode(alice).length;
+    }
+    report("encrypt and RatchetSnapshot.encode, " + (bytes / count) + " bytes per message", count, System.nanoTime() - start);
+
+    alice.journal = new RatchetJournal();
+    alice.journal.compact(alice);
+    bytes = 0;
+    int compactions = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      alice.encrypt(data, ad);
+      if (alice.journal.needsCompaction()) {
+        bytes += alice.journal.compact(alice).length;
+        compactions ++;
+      } else {
+        bytes += alice.journal.drain().length;
+      }
+    }
+    report("encrypt and RatchetJournal, " + (bytes / count) + " bytes per message, " + compactions + " compactions", count, System.nanoTime() - start);
+  }
+
+  @Test
+  public void benchmarkEncryptBatch() throws Exception {
+    final int count = 20000;
+    final int batchSize = 100;
+    Random r = new SecureRandom();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = new byte[40];
+    List<byte[]> plainTexts = new ArrayList<>();
+    for (int i = 0; i < batchSize; i ++) {
+      plainTexts.add(new byte[100]);
+    }
+
+    for (CipherSuite suite : new CipherSuite[] { CipherSuite.Legacy, CipherSuite.AesGcm }) {
+      Ratchet ratchet = new Ratchet();
+      ratchet.cipherSuite = suite;
+      ratchet.initSender(new KeyPair().publicKey, new Key(sk));
+
+      for (int round = 0; round < 2; round ++) {
+        // The first round warms up the JIT
+        String suffix = round == 0 ? " (warm-up)" : "";
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i ++) {
+          ratchet.encrypt(plainTexts.get(0), ad);
+        }
+        report(suite + " encrypt of 100 bytes" + suffix, count, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i += batchSize) {
+          ratchet.encryptBatch(plainTexts, ad);
+        }
+        report(suite + " encryptBatch of 100 x 100 bytes" + suffix, count, System.nanoTime() - start);
+      }
+    }
+  }
+
+  @Test
+  public void benchmarkSkipWithCheckpoints() throws Exception {
+    // Within MaxSkippedMessagesWithCheckpoints
+    final int skipped = 60000;
+    byte[] b = new byte[32];
+    new SecureRandom().nextBytes(b);
+    KeyPair pair = new KeyPair();
+
+    for (int interval : new int[] { 0, 16, 64 }) {
+      Ratchet ratchet = new Ratchet();
+      ratchet.publicRecipient = pair.publicKey;
+      ratchet.chainKeyRecipient = new Key(b);
+      // Enough room to keep every skipped message
+      ratchet.skippedMessages.setLimits(skipped * SkippedMessageKeys.EntrySize, skipped, 8);
+      ratchet.skippedMessages.setCheckpoints(interval, skipped);
+
+      long start = System.nanoTime();
+      ratchet.skipMessages(skipped);
+      report("skipMessages, checkpoint interval " + interval + ", " + ratchet.skippedMessages.size() + " keys, "
+          + ratchet.skippedMessages.checkpointCount() + " checkpoints", skipped, System.nanoTime() - start);
+
+      final int count = 10000;
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        int number = (int) ((i * 7919L) % skipped);
+        if (ratchet.skippedMessages.take(pair.publicKey, number) == null) {
+          throw new IllegalStateException();
+        }
+      }
+      report("late message key, checkpoint interval " + interval, count, System.nanoTime() - start);
+    }
+  }
+
+  @Test
+  public void benchmarkBlake2b() throws Exception {
+    final int count = 100000;
+    byte[] b = new byte[32];
+    new SecureRandom().nextBytes(b);
+    Key ck = new Key(b);
+    byte[] mk = new byte[32];
+    byte[] out = new byte[44];
+    byte[] data = new byte[100];
+    byte[] ad = new byte[40];
+    HkdfSha512.Info info = new HkdfSha512.Info("Omama");
+
+    for (int round = 0; round < 2; round ++) {
+      // The first round warms up the JIT
+      String suffix = round == 0 ? " (warm-up)" : "";
+
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        ChainKeyStepper.Sha512.step(ck, mk, 0);
+      }
+      report("chain step HMAC-SHA512" + suffix, count, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        ChainKeyStepper.Blake2b.step(ck, mk, 0);
+      }
+      report("chain step BLAKE2b" + suffix, count, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        HkdfSha512.derive(mk, info, out, 0, 44);
+      }
+      report("HkdfSha512, 44 bytes" + suffix, count, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        Blake2bKdf.derive(mk, info, out, 0, 44);
+      }
+      report("Blake2bKdf, 44 bytes" + suffix, count, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        GcmAead.fromChainKey(ck, CipherSuite.AesGcm).encrypt(data, ad);
+      }
+      report("AesGcm message of 100 bytes" + suffix, count, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < count; i ++) {
+        GcmAead.fromChainKey(ck, CipherSuite.AesGcmBlake2b).encrypt(data, ad);
+      }
+      report("AesGcmBlake2b message of 100 bytes" + suffix, count, System.nanoTime() - start);
+    }
+  }
+
+  @Test
+  public void benchmarkMessageKeySchedule() throws Exception {
+    final int count = 50000;
+    byte[] b = new byte[32];
+    new SecureRandom().nextBytes(b);
+    byte[] data = new byte[100];
+    byte[] ad = new byte[40];
+    Key ck = new Key(b);
+    byte[] mk = new byte[32];
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      ChainKeyStepper.Sha512.step(ck, mk, 0);
+      new Aead(mk, Constants.RidonRatchetInfo).encrypt(data, ad);
+    }
+    report("step + new Aead + encrypt", count, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i ++) {
+      Aead.fromChainKey(ck).encrypt(data, ad);
+    }
+    report("Aead.fromChainKey + encrypt", count, System.nanoTime() - start);
+  }
+
+  @Test
+  public void benchmarkAeadBuffers() throws Exception {
+    final int count = 20000;
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    byte[] data = new byte[1000];
+    byte[] ad = new byte[40];
+    Aead aead = new Aead(key, Constants.RidonRatchetInfo);
+
+    ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+    ByteBuffer adBuffer = ByteBuffer.wrap(ad);
+    ByteBuffer dst = ByteBuffer.allocateDirect(Aead.encryptedSize(data.length));
+    for (int i = 0; i < 100; i++) {
+      aead.encrypt(data, ad);
+      src.clear();
+      adBuffer.clear();
+      dst.clear();
+      aead.encrypt(src, adBuffer, dst);
+    }
+
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      aead.encrypt(data, ad);
+    }
+    long nanos = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    report("Aead.encrypt (byte[])", count, nanos);
+    Log.d(TAG, String.format("Aead.encrypt (byte[]): %.1f allocations, %.1f bytes per call",
+        Debug.getThreadAllocCount() / (double) count, Debug.getThreadAllocSize() / (double) count));
+
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      src.clear();
+      adBuffer.clear();
+      dst.clear();
+      aead.encrypt(src, adBuffer, dst);
+    }
+    nanos = System.nanoTime() - start;
+    Debug.stopAllocCounting();
+    report("Aead.encrypt (direct buffers)", count, nanos);
+    Log.d(TAG, String.format("Aead.encrypt (direct buffers): %.1f allocations, %.1f bytes per call",
+        Debug.getThreadAllocCount() / (double) count, Debug.getThreadAllocSize() / (double) count));
+  }
+
+  @Test
+  public void benchmarkStreamingAead() throws Exception {
+    // 2 GiB through a file, the heap only ever holds a few chunks
+    final int mebibytes = 2048;
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    byte[] ad = new byte[40];
+    StreamingAead aead = new StreamingAead(key, "My Chat App");
+    ByteBuffer block = ByteBuffer.allocateDirect(1024 * 1024);
+
+    File file = File.createTempFile("streaming", ".bin");
+    try {
+      long start = System.nanoTime();
+      WritableByteChannel channel = aead.newEncryptingChannel(new FileOutputStream(file).getChannel(), ad);
+      for (int i = 0; i < mebibytes; i++) {
+        block.clear();
+        channel.write(block);
+      }
+      channel.close();
+      report("StreamingAead encrypt (MiB)", mebibytes, System.nanoTime() - start);
+
+      byte[] b = new byte[64 * 1024];
+      start = System.nanoTime();
+      InputStream in = aead.newDecryptingStream(new FileInputStream(file), ad);
+      long total = 0;
+      int n;
+      while ((n = in.read(b)) >= 0) {
+        total += n;
+      }
+      in.close();
+      report("StreamingAead decrypt (MiB)", (int) (total >> 20), System.nanoTime() - start);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void benchmarkParallelFileAead() throws Exception {
+    final int mebibytes = 256;
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    byte[] ad = new byte[40];
+
+    File plain = File.createTempFile("plain", ".bin");
+    File encrypted = File.createTempFile("encrypted", ".bin");
+    File decrypted = File.createTempFile("decrypted", ".bin");
+    try {
+      RandomAccessFile f = new RandomAccessFile(plain, "rw");
+      f.setLength(mebibytes * 1024L * 1024L);
+      f.close();
+
+      int[] threads = { 1, Runtime.getRuntime().availableProcessors() };
+      for (int t : threads) {
+        ParallelFileAead aead = new ParallelFileAead(key, ParallelFileAead.DefaultChunkSize, t);
+        long start = System.nanoTime();
+        aead.encrypt(plain, encrypted, ad);
+        report("ParallelFileAead encrypt, " + t + " threads (MiB)", mebibytes, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        aead.decrypt(encrypted, decrypted, ad);
+        report("ParallelFileAead decrypt, " + t + " threads (MiB)", mebibytes, System.nanoTime() - start);
+
+        // Seeking: one chunk from the middle
+        ParallelFileAead.EncryptedFile file = aead.open(encrypted, ad);
+        ByteBuffer chunk = ByteBuffer.allocate(file.getChunkSize());
+        start = System.nanoTime();
+        file.readChunk(file.getChunkCount() / 2, chunk);
+        report("ParallelFileAead readChunk", 1, System.nanoTime() - start);
+        file.close();
+        aead.close();
+      }
+    } finally {
+      plain.delete();
+      encrypted.delete();
+      decrypted.delete();
+    }
+  }
+
+  @Test
+  public void benchmarkCipherSuites() throws Exception {
+    final int count = 2000;
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    byte[] ad = new byte[40];
+    HkdfSha512.Info info = new HkdfSha512.Info("Omama");
+
+    int[] sizes = { 100, 16 * 1024, 256 * 1024 };
+    for (int size : sizes) {
+      byte[] data = new byte[size];
+      int rounds = Math.max(50, count * 4096 / size);
+
+      // Both suites only reach their speed once compiled
+      for (int i = 0; i < rounds; i++) {
+        new Aead(key, info).decrypt(new Aead(key, info).encrypt(data, ad), ad);
+        new GcmAead(key, info).decrypt(new GcmAead(key, info).encrypt(data, ad), ad);
+      }
+
+      long start = System.nanoTime();
+      for (int i = 0; i < rounds; i++) {
+        byte[] e = new Aead(key, info).encrypt(data, ad);
+        new Aead(key, info).decrypt(e, ad);
+      }
+      report("legacy suite, " + size + " bytes", rounds, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < rounds; i++) {
+        byte[] e = new GcmAead(key, info).encrypt(data, ad);
+        new GcmAead(key, info).decrypt(e, ad);
+      }
+      report("AES-GCM suite, " + size + " bytes", rounds, System.nanoTime() - start);
+    }
+  }
+}
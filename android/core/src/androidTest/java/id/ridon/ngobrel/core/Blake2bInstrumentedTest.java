@@ -0,0 +1,101 @@
+package id.ridon.ngobrel.core;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+/**
+ * The expected values come from Python's hashlib.blake2b
+ */
+@RunWith(AndroidJUnit4.class)
+public class Blake2bInstrumentedTest {
+  // 0, 1, 2, ... 250, 0, 1, ...
+  private static byte[] sequence(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i ++) {
+      b[i] = (byte) (i % 251);
+    }
+    return b;
+  }
+
+  private static byte[] hash(byte[] key, int outLength, byte[] data) {
+    Blake2b b = key == null ? new Blake2b(outLength) : new Blake2b(key, outLength);
+    b.update(data);
+    return b.doFinal();
+  }
+
+  @Test
+  public void testVectors() throws Exception {
+    Assert.assertEquals(Utils.hexString(hash(null, 64, "abc".getBytes())),
+        "BA80A53F981C4D0D6A2797B69F12F6E94C212F14685AC4B74B12BB6FDBFFA2D17D87C5392AAB792DC252D5DE4533CC9518D38AA8DBF1925AB92386EDD4009923");
+    Assert.assertEquals(Utils.hexString(hash(null, 64, new byte[0])),
+        "786A02F742015903C6C6FD852552D272912F4740E15847618A86E217F71F5419D25E1031AFEE585313896444934EB04B903A685B1448B755D56F701AFE9BE2CE");
+
+    byte[] key64 = sequence(64);
+    int[] lengths = { 0, 1, 127, 128, 129, 255, 256, 1000 };
+    String[] expected = {
+        "10EBB67700B1868EFB4417987ACF4690AE9D972FB7A590C2F02871799AAA4786B5E996E8F0F4EB981FC214B005F42D2FF4233499391653DF7AEFCBC13FC51568",
+        "961F6DD1E4DD30F63901690C512E78E4B45E4742ED197C3C5E45C549FD25F2E4187B0BC9FE30492B16B0D0BC4EF9B0F34C7003FAC09A5EF1532E69430234CEBD",
+        "76D2D819C92BCE55FA8E092AB1BF9B9EAB237A25267986CACF2B8EE14D214D730DC9A5AA2D7B596E86A1FD8FA0804C77402D2FCD45083688B218B1CDFA0DCBCB",
+        "72065EE4DD91C2D8509FA1FC28A37C7FC9FA7D5B3F8AD3D0D7A25626B57B1B44788D4CAF806290425F9890A3A2A35A905AB4B37ACFD0DA6E4517B2525C9651E4",
+        "64475DFE7600D7171BEA0B394E27C9B00D8E74DD1E416A79473682AD3DFDBB706631558055CFC8A40E07BD015A4540DCDEA15883CBBF31412DF1DE1CD4152B91",
+        "8E1E2C579262B7C01966C3133C2BB704A165BE2308FF8925A2F070DEC7275740FA9FE004EE25C8E1A3DD57317065EE744F0821C4E911EEE8E484E770F21DD958",
+        "38EFCFC158F8057F5365285DB9184C77DDF4D53090FD89EF261815370FD994A1B23B3E3336D7FF97823271E7E50042576CE14FEADAB1E8357346FFA335A3E97E",
+        "715377E0611515B904D259CE52FC8E5D2C50468B1680B2984786B6949CC571F453D28CFB6969CB523EC84E06BF2A4465F3F37511DB7792228D038942935750C1"
+    };
+    for (int i = 0; i < lengths.length; i ++) {
+      byte[] data = sequence(lengths[i]);
+      Assert.assertEquals(Utils.hexString(hash(key64, 64, data)), expected[i]);
+
+      // Fed in pieces of every size, and reused after doFinal
+      Blake2b b = new Blake2b(key64, 64);
+      for (int piece = 1; piece <= 129; piece += 64) {
+        for (int j = 0; j < data.length; j += piece) {
+          b.update(data, j, Math.min(piece, data.length - j));
+        }
+        Assert.assertEquals(Utils.hexString(b.doFinal()), expected[i]);
+      }
+    }
+
+    byte[] key32 = sequence(32);
+    Assert.assertEquals(Utils.hexString(hash(key32, 32, sequence(0))), "4E51E7A913FC80137DA52880FECCA175BF81E117D5C68126DC2774033517EA0D");
+    Assert.assertEquals(Utils.hexString(hash(key32, 32, sequence(3))), "E14FC9161564DD081204F2DD6146A9FFBEF66F95D5DC80E0A225E213C09DAD7B");
+    Assert.assertEquals(Utils.hexString(hash(key32, 32, sequence(128))), "138893F1631EF3165629515D6ED800DA3771B7926DCED294205C7507351DEEBC");
+    Assert.assertEquals(Utils.hexString(hash(key32, 32, sequence(200))), "A39FF6E7E838226FD50E24A55375FF3A39419FD93E32CC463F3F74323291C425");
+    Assert.assertEquals(Utils.hexString(hash(key32, 44, sequence(200))),
+        "835C25B1771C96CDC28C515BB97CC354C46B4BB186DA3C242CDAFD060178D68B870A609A05583402D4846B59");
+
+    // Re-keyed in place
+    Blake2b b = new Blake2b(key64, 64);
+    b.update(sequence(10));
+    b.init(key32, 0, 32, 32);
+    b.update(sequence(3));
+    Assert.assertEquals(Utils.hexString(b.doFinal()), "E14FC9161564DD081204F2DD6146A9FFBEF66F95D5DC80E0A225E213C09DAD7B");
+  }
+
+  @Test
+  public void testKdf() throws Exception {
+    // HKDF with keyed BLAKE2b-512, the Ridon salt and Kdf's 0xFF prefix
+    String expected = "7621312962693437DE946A444D0C08A388DE7A8B422DAB32143DF502C815D88F47511080B366EB0F4EAC125D"
+        + "FDE8355783CA6128D2781792CFE714D3699A7C5F2844EE5166655E704D3F13935ED8BF1377DE03FF02E4AAD97B33759F3720A441FF39737C9DA8972EC06241D393379458C78EED3E3ABB8E5A2182EA56C1817883DFE6";
+    HkdfSha512.Info info = new HkdfSha512.Info("Omama");
+    Assert.assertEquals(Utils.hexString(Blake2bKdf.derive("Olala".getBytes(), info, 44)), expected.substring(0, 88));
+    Assert.assertEquals(Utils.hexString(Blake2bKdf.derive("Olala".getBytes(), info, 130)), expected);
+
+    byte[] out = new byte[50];
+    byte[] secret = Arrays.copyOf("Olala".getBytes(), 50);
+    Blake2bKdf.derive(secret, 0, 5, info, out, 6, 44);
+    Assert.assertEquals(Utils.hexString(Arrays.copyOfRange(out, 6, 50)), expected.substring(0, 88));
+  }
+
+  @Test
+  public void testChainKeyStepper() throws Exception {
+    Key ck = new Key(sequence(32));
+    Key mk = ChainKeyStepper.Blake2b.step(ck);
+    Assert.assertEquals(Utils.hexString(ck.raw()), "C94FBE3BB3272A3A1FEF88BA308E0AEB2DF80ADCE92C3F6B73188BF66CADEE38");
+    Assert.assertEquals(Utils.hexString(mk.raw()), "6E481F49CB6969CCB4B1BC36BCB5DF1AD7D711C49D192F9FE3907F9DE33162C1");
+  }
+}
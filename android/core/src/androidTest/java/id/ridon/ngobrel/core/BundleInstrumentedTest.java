@@ -7,6 +7,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import static org.junit.Assert.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
@@ -52,4 +54,56 @@ public class BundleInstrumentedTest {
       Assert.assertEquals(Arrays.equals(k1.raw(), k2.raw()), true);
     }
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPopulateManyPreKeys() throws Exception {
+    Bundle b = new Bundle();
+    b.populatePreKeys(200);
+
+    Assert.assertEquals(b.bundlePrivate.preKeys.size(), 200);
+    Assert.assertEquals(b.bundlePublic.preKeys.size(), 200);
+
+    Iterator<PreKeyId> it = b.bundlePublic.preKeys.keySet().iterator();
+    while (it.hasNext()) {
+      PreKeyId id = it.next();
+      PrivateKey priv = b.bundlePrivate.preKeys.get(id);
+      PublicKey pub = b.bundlePublic.preKeys.get(id);
+
+      byte[] derived = new byte[32];
+      Curve.keygen(derived, null, priv.raw().clone());
+      Assert.assertEquals(Arrays.equals(derived, pub.raw()), true);
+    }
+  }
+
+  @Test
+  public void testProvisioner() throws Exception {
+    PreKeyProvisioner provisioner = new PreKeyProvisioner(4, 16);
+    try {
+      Bundle b = new Bundle();
+      provisioner.populate(b, 1000);
+
+      Assert.assertEquals(b.bundlePrivate.preKeys.size(), 1000);
+      Assert.assertEquals(b.bundlePublic.preKeys.size(), 1000);
+
+      // Both sides hold the same ids in the same order
+      Assert.assertEquals(new ArrayList<>(b.bundlePrivate.preKeys.keySet()), new ArrayList<>(b.bundlePublic.preKeys.keySet()));
+
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      Iterator<PreKeyId> it = b.bundlePublic.preKeys.keySet().iterator();
+      while (it.hasNext()) {
+        PreKeyId id = it.next();
+        PublicKey pub = b.bundlePublic.preKeys.get(id);
+        Assert.assertEquals(Arrays.equals(md.digest(pub.raw()), id.raw()), true);
+
+        byte[] derived = new byte[32];
+        Curve.keygen(derived, null, b.bundlePrivate.preKeys.get(id).raw().clone());
+        Assert.assertEquals(Arrays.equals(derived, pub.raw()), true);
+      }
+
+      BundlePrivate decoded = BundlePrivate.decode(b.bundlePrivate.encode());
+      Assert.assertEquals(new ArrayList<>(decoded.preKeys.keySet()), new ArrayList<>(b.bundlePrivate.preKeys.keySet()));
+    } finally {
+      provisioner.shutdown();
+    }
+  }
+}
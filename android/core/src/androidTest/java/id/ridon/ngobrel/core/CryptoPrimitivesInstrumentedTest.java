@@ -0,0 +1,169 @@
+package id.ridon.ngobrel.core;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+@RunWith(AndroidJUnit4.class)
+public class CryptoPrimitivesInstrumentedTest {
+  @Test
+  public void testReuse() throws Exception {
+    MessageDigest md = CryptoPrimitives.digest("SHA-256");
+    CryptoPrimitives.release(md);
+
+    long hits = CryptoPrimitives.hits();
+    MessageDigest again = CryptoPrimitives.digest("SHA-256");
+    Assert.assertSame(md, again);
+    Assert.assertEquals(CryptoPrimitives.hits(), hits + 1);
+
+    // Borrowed twice at once, the second one is new
+    long misses = CryptoPrimitives.misses();
+    MessageDigest other = CryptoPrimitives.digest("SHA-256");
+    Assert.assertNotSame(again, other);
+    Assert.assertEquals(CryptoPrimitives.misses(), misses + 1);
+    CryptoPrimitives.release(again);
+    CryptoPrimitives.release(other);
+
+    // Releasing twice does not hand the same instance out twice
+    md = CryptoPrimitives.digest("SHA-256");
+    CryptoPrimitives.release(md);
+    CryptoPrimitives.release(md);
+    Assert.assertNotSame(CryptoPrimitives.digest("SHA-256"), CryptoPrimitives.digest("SHA-256"));
+
+    Cipher cipher = CryptoPrimitives.cipher("AES/CBC/NoPadding");
+    CryptoPrimitives.release(cipher);
+    Assert.assertNotSame(cipher, CryptoPrimitives.cipher("AES/ECB/NoPadding"));
+    Assert.assertSame(cipher, CryptoPrimitives.cipher("AES/CBC/NoPadding"));
+  }
+
+  @Test
+  public void testResetOnBorrow() throws Exception {
+    byte[] data = "Olala".getBytes();
+    byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+    MessageDigest md = CryptoPrimitives.digest("SHA-256");
+    md.update("Omama".getBytes());
+    CryptoPrimitives.release(md);
+    md = CryptoPrimitives.digest("SHA-256");
+    Assert.assertEquals(Arrays.equals(md.digest(data), expected), true);
+    CryptoPrimitives.release(md);
+
+    SecretKeySpec key = new SecretKeySpec(new byte[32], "HmacSHA512");
+    Mac reference = Mac.getInstance("HmacSHA512");
+    reference.init(key);
+    expected = reference.doFinal(data);
+
+    Mac mac = CryptoPrimitives.mac("HmacSHA512");
+    mac.init(key);
+    mac.update("Omama".getBytes());
+    CryptoPrimitives.release(mac);
+    mac = CryptoPrimitives.mac("HmacSHA512");
+    mac.init(key);
+    Assert.assertEquals(Arrays.equals(mac.doFinal(data), expected), true);
+    CryptoPrimitives.release(mac);
+  }
+
+  @Test
+  public void testPerThread() throws Exception {
+    final MessageDigest md = CryptoPrimitives.digest("SHA-256");
+    CryptoPrimitives.release(md);
+
+    final MessageDigest[] borrowed = new MessageDigest[1];
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          borrowed[0] = CryptoPrimitives.digest("SHA-256");
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+    t.start();
+    t.join();
+
+    Assert.assertNotNull(borrowed[0]);
+    Assert.assertNotSame(md, borrowed[0]);
+    Assert.assertSame(md, CryptoPrimitives.digest("SHA-256"));
+  }
+
+  @Test
+  public void testAeadReturnsItsPrimitives() throws Exception {
+    byte[] data = "Olala".getBytes();
+    byte[] ad = "Omama".getBytes();
+    byte[] encrypted = new Aead(new byte[32], Constants.RidonRatchetInfo).encrypt(data, ad);
+
+    // Objects used once give back what they borrowed
+    long misses = CryptoPrimitives.misses();
+    for (int i = 0; i < 10; i ++) {
+      Aead a = new Aead(new byte[32], Constants.RidonRatchetInfo);
+      Assert.assertEquals(Arrays.equals(a.encrypt(data, ad), encrypted), true);
+      Aead b = new Aead(new byte[32], Constants.RidonRatchetInfo);
+      Assert.assertEquals(Arrays.equals(b.decrypt(encrypted, ad), data), true);
+    }
+    Assert.assertEquals(CryptoPrimitives.misses(), misses);
+
+    // A failed call still gives its primitives back
+    encrypted[0] ^= 1;
+    try {
+      new Aead(new byte[32], Constants.RidonRatchetInfo).decrypt(encrypted, ad);
+      Assert.fail();
+    } catch (AuthenticationException e) {
+    }
+    encrypted[0] ^= 1;
+    Assert.assertEquals(Arrays.equals(new Aead(new byte[32], Constants.RidonRatchetInfo).decrypt(encrypted, ad), data), true);
+    Assert.assertEquals(CryptoPrimitives.misses(), misses);
+  }
+
+  @Test
+  public void testAeadKeepsItsPrimitivesWhenReused() throws Exception {
+    byte[] data = "Olala".getBytes();
+    byte[] ad = "Omama".getBytes();
+    Aead aead = new Aead(new byte[32], Constants.RidonRatchetInfo);
+    byte[] encrypted = aead.encrypt(data, ad);
+    Assert.assertEquals(Arrays.equals(aead.decrypt(encrypted, ad), data), true);
+
+    // From the second call on the object does not go to the pool
+    long borrows = CryptoPrimitives.hits() + CryptoPrimitives.misses();
+    for (int i = 0; i < 10; i ++) {
+      Assert.assertEquals(Arrays.equals(aead.encrypt(data, ad), encrypted), true);
+      Assert.assertEquals(Arrays.equals(aead.decrypt(encrypted, ad), data), true);
+    }
+
+    // And recovers from a failed call
+    encrypted[0] ^= 1;
+    try {
+      aead.decrypt(encrypted, ad);
+      Assert.fail();
+    } catch (AuthenticationException e) {
+    }
+    encrypted[0] ^= 1;
+    Assert.assertEquals(Arrays.equals(aead.decrypt(encrypted, ad), data), true);
+    Assert.assertEquals(Arrays.equals(aead.encrypt(data, ad), encrypted), true);
+    Assert.assertEquals(CryptoPrimitives.hits() + CryptoPrimitives.misses(), borrows);
+  }
+
+  @Test
+  public void testGcmIsNotPooled() throws Exception {
+    Cipher cipher = CryptoPrimitives.cipher("AES/GCM/NoPadding");
+    CryptoPrimitives.release(cipher);
+    Assert.assertNotSame(cipher, CryptoPrimitives.cipher("AES/GCM/NoPadding"));
+
+    // The same message key encrypting on the same thread twice, which a reused GCM cipher
+    // refuses
+    byte[] data = "Olala".getBytes();
+    byte[] ad = "Omama".getBytes();
+    byte[] key = new byte[32];
+    byte[] first = GcmAead.fromMessageKey(key).encrypt(data, ad);
+    byte[] second = GcmAead.fromMessageKey(key).encrypt(data, ad);
+    Assert.assertEquals(Arrays.equals(first, second), true);
+  }
+}
@@ -0,0 +1,275 @@
+package id.ridon.ngobrel.core;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class CurveInstrumentedTest {
+  @Test
+  public void testScratchIsWipedAfterSecretScalar() throws Exception {
+    Random r = new SecureRandom();
+    CurveContext ctx = new CurveContext();
+    byte[] k = new byte[32];
+    r.nextBytes(k);
+    byte[] p = new byte[32];
+    byte[] s = new byte[32];
+
+    Curve.keygen(p, s, k, ctx);
+    assertWiped(ctx);
+
+    byte[] z = new byte[32];
+    Curve.curve(z, k, p, ctx);
+    assertWiped(ctx);
+  }
+
+  private static void assertWiped(CurveContext ctx) {
+    byte[][] bytes = { ctx.scratch.e, ctx.scratch.b32a, ctx.scratch.b32b, ctx.scratch.b64a, ctx.scratch.b64b };
+    for (byte[] b : bytes) {
+      Assert.assertEquals(Arrays.equals(b, new byte[b.length]), true);
+    }
+  }
+
+  @Test
+  public void testKeygenMatchesLadder() throws Exception {
+    Random r = new SecureRandom();
+
+    for (int i = 0; i < 500; i++) {
+      byte[] k1 = new byte[32];
+      r.nextBytes(k1);
+      byte[] k2 = k1.clone();
+
+      byte[] p1 = new byte[32];
+      byte[] s1 = new byte[32];
+      Curve.keygen(p1, s1, k1);
+
+      byte[] p2 = new byte[32];
+      byte[] s2 = new byte[32];
+      Curve.keygenLadder(p2, s2, k2);
+
+      Assert.assertEquals(Arrays.equals(k1, k2), true);
+      Assert.assertEquals(Arrays.equals(p1, p2), true);
+      Assert.assertEquals(Arrays.equals(s1, s2), true);
+    }
+  }
+
+  @Test
+  public void testKeygenWithoutSigningKey() throws Exception {
+    Random r = new SecureRandom();
+
+    for (int i = 0; i < 100; i++) {
+      byte[] k = new byte[32];
+      r.nextBytes(k);
+
+      byte[] p1 = new byte[32];
+      Curve.keygen(p1, null, k.clone());
+
+      byte[] p2 = new byte[32];
+      Curve.keygenLadder(p2, null, k.clone());
+
+      Assert.assertEquals(Arrays.equals(p1, p2), true);
+    }
+  }
+
+  @Test
+  public void testKeygenEdgeScalars() throws Exception {
+    byte[][] scalars = new byte[3][32];
+    Arrays.fill(scalars[1], (byte) 0xFF);
+    for (int i = 0; i < 32; i++) {
+      scalars[2][i] = (byte) (i % 2 == 0 ? 0x88 : 0x77);
+    }
+
+    for (byte[] k : scalars) {
+      byte[] p1 = new byte[32];
+      byte[] s1 = new byte[32];
+      Curve.keygen(p1, s1, k.clone());
+
+      byte[] p2 = new byte[32];
+      byte[] s2 = new byte[32];
+      Curve.keygenLadder(p2, s2, k.clone());
+
+      Assert.assertEquals(Arrays.equals(p1, p2), true);
+      Assert.assertEquals(Arrays.equals(s1, s2), true);
+    }
+  }
+
+  @Test
+  public void testKeygenBatchMatchesKeygen() throws Exception {
+    Random r = new SecureRandom();
+    CurveContext ctx = new CurveContext();
+    int n = 100;
+
+    byte[][] k1 = new byte[n][32];
+    byte[][] k2 = new byte[n][];
+    for (int i = 0; i < n; i++) {
+      r.nextBytes(k1[i]);
+      k2[i] = k1[i].clone();
+    }
+    Arrays.fill(k1[0], (byte) 0xFF);
+    k2[0] = k1[0].clone();
+
+    byte[][] p1 = new byte[n][32];
+    byte[][] s1 = new byte[n][32];
+    Curve.keygenBatch(p1, s1, k1, n, ctx);
+
+    byte[][] p3 = new byte[n][32];
+    byte[][] k3 = new byte[n][];
+    for (int i = 0; i < n; i++) {
+      k3[i] = k2[i].clone();
+    }
+    Curve.keygenBatch(p3, null, k3, n, ctx);
+
+    for (int i = 0; i < n; i++) {
+      byte[] p2 = new byte[32];
+      byte[] s2 = new byte[32];
+      Curve.keygen(p2, s2, k2[i]);
+
+      Assert.assertEquals(Arrays.equals(k1[i], k2[i]), true);
+      Assert.assertEquals(Arrays.equals(p1[i], p2), true);
+      Assert.assertEquals(Arrays.equals(s1[i], s2), true);
+      Assert.assertEquals(Arrays.equals(p3[i], p2), true);
+    }
+  }
+
+  @Test
+  public void testCurveBatch() throws Exception {
+    Random r = new SecureRandom();
+    int n = 40;
+    byte[][] k = new byte[n][32];
+    byte[][] P = new byte[n][];
+    for (int i = 0; i < n; i++) {
+      r.nextBytes(k[i]);
+      Curve.clamp(k[i]);
+      P[i] = new KeyPair().publicKey.raw();
+    }
+    // A low order point gives zero in the middle of the batch
+    P[7] = new byte[32];
+    P[8] = new byte[32];
+    P[8][0] = 1;
+
+    byte[][] Z = new byte[n][32];
+    Curve.curveBatch(Z, k, P);
+
+    for (int i = 0; i < n; i++) {
+      byte[] z = new byte[32];
+      Curve.curve(z, k[i], P[i]);
+      Assert.assertEquals(Arrays.equals(Z[i], z), true);
+    }
+    Curve.curveBatch(new byte[0][], new byte[0][], new byte[0][]);
+  }
+
+  @Test
+  public void testJavaBackendIsTheDefault() throws Exception {
+    Assert.assertSame(CurveBackends.JAVA, CurveBackends.get());
+  }
+
+  @Test
+  public void testBackendsAgree() throws Exception {
+    CurveBackend jca = CurveBackends.jca();
+    if (jca == null) {
+      // No X25519 in this platform
+      return;
+    }
+    CurveContext ctx = new CurveContext();
+    Random r = new SecureRandom();
+
+    byte[][] keys = new byte[104][];
+    for (int i = 0; i < 100; i++) {
+      keys[i] = new KeyPair().publicKey.raw();
+    }
+    // Top bit set, zero and a point of small order
+    keys[100] = keys[0].clone();
+    keys[100][31] |= (byte) 0x80;
+    keys[101] = new byte[32];
+    keys[102] = new byte[32];
+    keys[102][0] = 1;
+    keys[103] = new byte[32];
+    r.nextBytes(keys[103]);
+
+    for (byte[] P : keys) {
+      byte[] k = new byte[32];
+      r.nextBytes(k);
+      Curve.clamp(k);
+
+      byte[] z1 = new byte[32];
+      CurveBackends.JAVA.curve(z1, k, P, ctx);
+      byte[] z2 = new byte[32];
+      jca.curve(z2, k, P, ctx);
+
+      Assert.assertEquals(Arrays.equals(z1, z2), true);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      byte[] k = new byte[32];
+      r.nextBytes(k);
+
+      byte[] p1 = new byte[32];
+      byte[] s1 = new byte[32];
+      CurveBackends.JAVA.keygen(p1, s1, k.clone(), ctx);
+      byte[] p2 = new byte[32];
+      jca.keygen(p2, null, k.clone(), ctx);
+      byte[] p3 = new byte[32];
+      byte[] s3 = new byte[32];
+      jca.keygen(p3, s3, k.clone(), ctx);
+
+      Assert.assertEquals(Arrays.equals(p1, p2), true);
+      Assert.assertEquals(Arrays.equals(p1, p3), true);
+      Assert.assertEquals(Arrays.equals(s1, s3), true);
+    }
+  }
+
+  @Test
+  public void testContextOverloads() throws Exception {
+    CurveContext ctx = new CurveContext();
+    KeyPair p = new KeyPair();
+    KeyPair q = new KeyPair();
+
+    byte[] shared = new byte[Key.SIZE];
+    p.privateKey.shareSecret(q.publicKey, shared, ctx);
+    Assert.assertEquals(Arrays.equals(shared, p.privateKey.shareSecret(q.publicKey)), true);
+    Assert.assertEquals(Arrays.equals(shared, q.privateKey.shareSecret(p.publicKey)), true);
+
+    byte[] k = new byte[32];
+    new SecureRandom().nextBytes(k);
+    byte[] p1 = new byte[32];
+    byte[] s1 = new byte[32];
+    Curve.keygen(p1, s1, k.clone(), ctx);
+    byte[] p2 = new byte[32];
+    byte[] s2 = new byte[32];
+    Curve.keygen(p2, s2, k.clone());
+
+    Assert.assertEquals(Arrays.equals(p1, p2), true);
+    Assert.assertEquals(Arrays.equals(s1, s2), true);
+  }
+
+  @Test
+  public void testVerifyPrepared() throws Exception {
+    Random r = new SecureRandom();
+    CurveContext ctx = new CurveContext();
+
+    for (int i = 0; i < 20; i++) {
+      KeyPair p = new KeyPair();
+      Curve.PreparedKey prepared = Curve.prepare(p.publicKey.raw());
+
+      for (int j = 0; j < 10; j++) {
+        byte[] v = new byte[32];
+        byte[] h = new byte[32];
+        r.nextBytes(v);
+        r.nextBytes(h);
+
+        byte[] y1 = new byte[32];
+        Curve.verify(y1, v, h, p.publicKey.raw());
+        byte[] y2 = new byte[32];
+        Curve.verify(y2, v, h, prepared, ctx);
+
+        Assert.assertEquals(Arrays.equals(y1, y2), true);
+      }
+    }
+  }
+}
@@ -9,6 +9,7 @@ import org.junit.runner.RunWith;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -96,6 +97,26 @@ public class GroupConversationInstrumentedTest {
     return data;
   }
 
+  @Test
+  public void testChainKeyOfCallerIsNotChanged() throws Exception {
+    Key chainKey = new Key();
+    new SecureRandom().nextBytes(chainKey.raw());
+    byte[] before = chainKey.raw().clone();
+    KeyPair signatureKey = new KeyPair();
+
+    // Both sides start from the same Key object
+    GroupConversation sender = new GroupConversation();
+    sender.initSender(AliceDeviceId1, signatureKey, chainKey);
+    GroupConversation recipient = new GroupConversation();
+    recipient.initRecipient(AliceDeviceId1, signatureKey.publicKey, chainKey);
+
+    for (int i = 0; i < 3; i++) {
+      byte[] message = ("Message " + i).getBytes();
+      Assert.assertEquals(Arrays.equals(recipient.decrypt(sender.encrypt(message)), message), true);
+    }
+    Assert.assertEquals(Arrays.equals(chainKey.raw(), before), true);
+  }
+
   @Test
   public void testEncryptDecrypt() throws Exception {
 
@@ -1608,6 +1629,41 @@ public class GroupConversationInstrumentedTest {
   }
 
 
+  @Test
+  public void testDecryptManySenders() throws Exception {
+    // More senders than the verification cache can hold, so that entries get evicted
+    int count = Constants.MaxVerificationKeys + 8;
+    GroupConversation recipient = new GroupConversation();
+    GroupConversation[] senders = new GroupConversation[count];
+    HashId[] senderIds = new HashId[count];
+    for (int i = 0; i < count; i++) {
+      senderIds[i] = HashId.random();
+      senders[i] = new GroupConversation();
+      senders[i].initSender(senderIds[i]);
+      recipient.initRecipient(senders[i].getSenderKey());
+    }
+
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < count; i++) {
+        byte[] message = ("Round " + round + " from " + i).getBytes();
+        Assert.assertArrayEquals(recipient.decrypt(senders[i].encrypt(message)), message);
+      }
+      // The first few senders are busy
+      for (int i = 0; i < 4; i++) {
+        byte[] message = ("Again from " + i).getBytes();
+        Assert.assertArrayEquals(recipient.decrypt(senders[i].encrypt(message)), message);
+      }
+    }
+
+    // A sender starting over with a new signature key must not be checked with the old one
+    senders[0] = new GroupConversation();
+    senders[0].initSender(senderIds[0]);
+    recipient.initRecipient(senders[0].getSenderKey());
+    byte[] message = "New key".getBytes();
+    Assert.assertArrayEquals(recipient.decrypt(senders[0].encrypt(message)), message);
+  }
+
+
   SesameSenderDevice initDevice(HashId deviceId, String userId) throws NoSuchAlgorithmException, IllegalDataSizeException, InvalidKeyException, SignatureException {
     SesameSenderDevice device = new SesameSenderDevice(deviceId, userId);
     byte[] bundlePublicRaw = device.getBundle().bundlePublic.encode();
@@ -1625,4 +1681,56 @@ public class GroupConversationInstrumentedTest {
 
     return targetConversation;
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testCipherSuites() throws Exception {
+    GroupConversation alice = new GroupConversation();
+    alice.initSender(HashId.random());
+    alice.setCipherSuite(CipherSuite.AesGcm);
+    GroupConversation bob = new GroupConversation();
+    bob.initSender(HashId.random());
+
+    // Everyone learns the suite of the sender from its sender key
+    byte[] aliceSenderKey = alice.getSenderKey();
+    Assert.assertEquals(aliceSenderKey.length, HashId.SIZE + 64 + 1);
+    Assert.assertEquals(bob.getSenderKey().length, HashId.SIZE + 64);
+    GroupConversation charlie = new GroupConversation();
+    charlie.initRecipient(aliceSenderKey);
+    charlie.initRecipient(bob.getSenderKey());
+
+    for (int i = 0; i < 5; i++) {
+      byte[] message = ("Message " + i).getBytes();
+      byte[] encrypted = alice.encrypt(message);
+      Assert.assertEquals(encrypted.length, HashId.SIZE + 1 + message.length + GcmAead.TagSize + 64);
+      Assert.assertEquals(encrypted[HashId.SIZE], CipherSuite.AesGcm.id);
+      Assert.assertArrayEquals(charlie.decrypt(encrypted), message);
+
+      Assert.assertArrayEquals(charlie.decrypt(bob.encrypt(message)), message);
+    }
+
+    // A message sent on a different suite than the one announced is refused
+    GroupConversation dave = new GroupConversation();
+    dave.initSender(HashId.random());
+    charlie.initRecipient(dave.getSenderKey());
+    dave.setCipherSuite(CipherSuite.AesGcm);
+    try {
+      charlie.decrypt(dave.encrypt("Olala".getBytes()));
+      Assert.fail();
+    } catch (DecryptionFailedException e) {
+    }
+
+    // Group chains are not stepped with BLAKE2b
+    try {
+      dave.setCipherSuite(CipherSuite.AesGcmBlake2b);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+    byte[] senderKey = Arrays.copyOf(aliceSenderKey, aliceSenderKey.length);
+    senderKey[senderKey.length - 1] = CipherSuite.AesGcmBlake2b.id;
+    try {
+      charlie.initRecipient(senderKey);
+      Assert.fail();
+    } catch (InvalidKeyException e) {
+    }
+  }
+}
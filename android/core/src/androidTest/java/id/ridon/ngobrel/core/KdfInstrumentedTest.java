@@ -5,6 +5,8 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
+
 @RunWith(AndroidJUnit4.class)
 public class KdfInstrumentedTest {
   @Test
@@ -17,4 +19,29 @@ public class KdfInstrumentedTest {
     Assert.assertEquals(kdfResult.length, 32);
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testHkdfSha512MatchesKdf() throws Exception {
+    byte[] ridonSalt = Constants.getRidonSalt512();
+    byte[] otherSalt = "Olala salt".getBytes();
+    byte[] keys = "Olala".getBytes();
+    HkdfSha512.Info info = new HkdfSha512.Info("Omama");
+
+    int[] lengths = { 1, 32, 64, 65, 200 };
+    for (int length : lengths) {
+      byte[] expected = Kdf.KdfSha512(keys, ridonSalt).get("Omama", length);
+      Assert.assertEquals(Arrays.equals(expected, HkdfSha512.derive(keys, info, length)), true);
+
+      byte[] out = new byte[length + 7];
+      HkdfSha512.derive(keys, info, out, 7, length);
+      Assert.assertEquals(Arrays.equals(expected, Arrays.copyOfRange(out, 7, length + 7)), true);
+
+      expected = Kdf.KdfSha512(keys, otherSalt).get("Omama", length);
+      HkdfSha512.derive(keys, otherSalt, info, out, 3, length);
+      Assert.assertEquals(Arrays.equals(expected, Arrays.copyOfRange(out, 3, length + 3)), true);
+    }
+
+    // The pre-keyed state is reused across calls with different secrets
+    byte[] expected = Kdf.KdfSha512("Omama".getBytes(), ridonSalt).get("Olala", 64);
+    Assert.assertEquals(Arrays.equals(expected, HkdfSha512.derive("Omama".getBytes(), new HkdfSha512.Info("Olala"), 64)), true);
+  }
+}
@@ -5,8 +5,12 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 
 @RunWith(AndroidJUnit4.class)
@@ -21,6 +25,89 @@ public class KeyPairInstrumentedTest {
     Assert.assertEquals(p.publicKey.verify(omama.getBytes(StandardCharsets.UTF_8), sig),true);
   }
 
+  @Test
+  public void testVerifyBatch() throws Exception {
+    KeyPair[] senders = new KeyPair[] { new KeyPair(), new KeyPair(), new KeyPair() };
+    List<SignedMessage> messages = new ArrayList<>();
+
+    for (int i = 0; i < 30; i++) {
+      KeyPair sender = senders[i % senders.length];
+      byte[] message = ("Omama " + i).getBytes(StandardCharsets.UTF_8);
+      Signature sig = sender.privateKey.sign(message);
+
+      if (i % 7 == 3) {
+        // Tampered message
+        message[0] ^= 1;
+      } else if (i % 7 == 5) {
+        // Signed by somebody else
+        sender = senders[(i + 1) % senders.length];
+      } else if (i % 7 == 6) {
+        // Broken signature
+        byte[] raw = sig.getBytes().clone();
+        raw[40] ^= 1;
+        sig = new Signature(raw);
+      }
+      messages.add(new SignedMessage(message, sig, sender.publicKey));
+    }
+
+    BitSet valid = PublicKey.verifyBatch(messages);
+    for (int i = 0; i < messages.size(); i++) {
+      SignedMessage m = messages.get(i);
+      Assert.assertEquals(valid.get(i), m.publicKey.verify(m.message, m.offset, m.length, m.signature));
+      Assert.assertEquals(valid.get(i), i % 7 < 3 || i % 7 == 4);
+    }
+
+    Assert.assertEquals(PublicKey.verifyBatch(new ArrayList<SignedMessage>()).isEmpty(), true);
+  }
+
+  @Test
+  public void testGenerateBatch() throws Exception {
+    KeyPair[] pairs = KeyPair.generateBatch(20);
+    Assert.assertEquals(pairs.length, 20);
+    Assert.assertEquals(KeyPair.generateBatch(0).length, 0);
+
+    byte[] omama = "Omama".getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < pairs.length; i++) {
+      KeyPair p = pairs[i];
+      KeyPair q = pairs[(i + 1) % pairs.length];
+
+      Assert.assertEquals(p.publicKey.verify(omama, p.privateKey.sign(omama)), true);
+      Assert.assertEquals(Arrays.equals(p.privateKey.shareSecret(q.publicKey), q.privateKey.shareSecret(p.publicKey)), true);
+      Assert.assertEquals(KeyPair.decode(p.encode()), p);
+    }
+  }
+
+  @Test
+  public void testSigner() throws Exception {
+    KeyPair p = new KeyPair();
+    Signer signer = new Signer(p.privateKey);
+    Signer precomputed = new Signer(p.privateKey, 8);
+    try {
+      Assert.assertEquals(Arrays.equals(signer.getPublicKey(), p.publicKey.raw()), true);
+
+      for (int i = 0; i < 50; i++) {
+        byte[] message = ("Omama " + i).getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(p.publicKey.verify(message, signer.sign(message)), true);
+        Assert.assertEquals(p.publicKey.verify(message, precomputed.sign(message)), true);
+        Assert.assertEquals(p.publicKey.verify(message, 2, 3, signer.sign(message, 2, 3)), true);
+      }
+    } finally {
+      precomputed.close();
+    }
+  }
+
+  @Test
+  public void testDroppedSignerIsCollected() throws Exception {
+    KeyPair p = new KeyPair();
+    WeakReference<Signer> ref = new WeakReference<>(new Signer(p.privateKey, 4));
+    // Its thread only holds the queue of nonces
+    for (int i = 0; i < 50 && ref.get() != null; i ++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    Assert.assertNull(ref.get());
+  }
+
   @Test
   public void testShareSecret() throws Exception {
     KeyPair p = new KeyPair();
@@ -6,11 +6,20 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 @RunWith(AndroidJUnit4.class)
 public class RatchetInstrumentedTest {
@@ -248,17 +257,21 @@ public class RatchetInstrumentedTest {
     int messageNumberSender = 12;
     int messageNumberRecipient = 34;
     int chainLength = 56;
-    HashMap<Key, RatchetMessageBuffer> skippedMessages = new HashMap<>();
+    SkippedMessageKeys skippedMessages = new SkippedMessageKeys();
 
+    // Several keys per chain
     int size = 13;
+    Random r = new Random();
+    byte[] b = new byte[32];
+    r.nextBytes(b);
+    Key k = new Key(b);
     for (int i = 0; i < size; i++) {
-      Random r = new Random();
-      byte[] b = new byte[32];
-      r.nextBytes(b);
-      RatchetMessageBuffer buffer = new RatchetMessageBuffer(i, new Key(b));
+      if (i % 4 == 0) {
+        r.nextBytes(b);
+        k = new Key(b);
+      }
       r.nextBytes(b);
-      Key k = new Key(b);
-      skippedMessages.put(k, buffer);
+      skippedMessages.put(k, i, new Key(b));
     }
 
     Ratchet r1 = new Ratchet();
@@ -283,15 +296,807 @@ public class RatchetInstrumentedTest {
     Assert.assertEquals(r1.chainLength, r2.chainLength);
     Assert.assertEquals(r1.skippedMessages.size(), r2.skippedMessages.size());
 
-    Set<Key> keyIds = r1.skippedMessages.keySet();
-    Iterator<Key> it = keyIds.iterator();
-    while (it.hasNext()) {
-      Key id = it.next();
-      RatchetMessageBuffer buf1 = r1.skippedMessages.get(id);
-      RatchetMessageBuffer buf2 = r2.skippedMessages.get(id);
+    Iterator<Map.Entry<Key, RatchetMessageBuffer>> it1 = r1.skippedMessages.iterator();
+    Iterator<Map.Entry<Key, RatchetMessageBuffer>> it2 = r2.skippedMessages.iterator();
+    while (it1.hasNext()) {
+      Map.Entry<Key, RatchetMessageBuffer> e1 = it1.next();
+      Map.Entry<Key, RatchetMessageBuffer> e2 = it2.next();
 
-      Assert.assertEquals(buf1, buf2);
+      Assert.assertEquals(e1.getKey(), e2.getKey());
+      Assert.assertEquals(e1.getValue(), e2.getValue());
+    }
+  }
+
+  @Test
+  public void testSkippedMessageKeys() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcm;
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.cipherSuite = CipherSuite.AesGcm;
+    bob.initRecipient(pairBob, new Key(sk));
+
+    // Every key of a chain is kept, in whichever order the messages arrive
+    List<byte[]> messages = new ArrayList<>();
+    for (int i = 0; i < 200; i ++) {
+      messages.add(alice.encrypt(("Olala" + i).getBytes(), ad));
+    }
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < messages.size(); i ++) {
+      order.add(i);
+    }
+    Collections.shuffle(order, r);
+    for (int i : order) {
+      Assert.assertArrayEquals(bob.decrypt(messages.get(i), ad), ("Olala" + i).getBytes());
+    }
+    Assert.assertEquals(bob.skippedMessages.size(), 0);
+    Assert.assertEquals(bob.skippedMessages.chainCount(), 0);
+
+    // Beyond the budget, the oldest keys go first
+    bob.skippedMessages.setLimits(100 * SkippedMessageKeys.EntrySize, 1000, 8);
+    messages.clear();
+    for (int i = 0; i < 300; i ++) {
+      messages.add(alice.encrypt(("Osama" + i).getBytes(), ad));
+    }
+    Assert.assertArrayEquals(bob.decrypt(messages.get(299), ad), "Osama299".getBytes());
+    Assert.assertEquals(bob.skippedMessages.size(), 100);
+    Assert.assertEquals(bob.skippedMessages.byteSize(), 100 * SkippedMessageKeys.EntrySize);
+    Assert.assertArrayEquals(bob.decrypt(messages.get(199), ad), "Osama199".getBytes());
+    try {
+      bob.decrypt(messages.get(198), ad);
+      Assert.fail();
+    } catch (AuthenticationException e) {
+    }
+
+    // A new chain pushes out the keys of the oldest one
+    bob.skippedMessages.setLimits(SkippedMessageKeys.EntrySize * 1000, 1000, 1);
+    Assert.assertEquals(bob.skippedMessages.chainCount(), 1);
+    Assert.assertArrayEquals(alice.decrypt(bob.encrypt("Obama".getBytes(), ad), ad), "Obama".getBytes());
+    byte[] late = alice.encrypt("Omama".getBytes(), ad);
+    Assert.assertArrayEquals(bob.decrypt(alice.encrypt("Olala".getBytes(), ad), ad), "Olala".getBytes());
+    Assert.assertEquals(bob.skippedMessages.chainCount(), 1);
+    byte[] evicted = messages.get(200);
+    Assert.assertNull(bob.findSkippedKey(RatchetMessageHeader.decode(Arrays.copyOfRange(evicted, 1, 1 + RatchetMessageHeader.SIZE))));
+    Assert.assertArrayEquals(bob.decrypt(late, ad), "Omama".getBytes());
+
+    // The count limit holds as well
+    SkippedMessageKeys keys = new SkippedMessageKeys(SkippedMessageKeys.EntrySize * 1000, 10, 8);
+    Key chain = new Key(sk);
+    for (int i = 0; i < 50; i ++) {
+      keys.put(chain, i, new Key(sk));
+    }
+    Assert.assertEquals(keys.size(), 10);
+    // Evicted, and a key is only handed out once
+    Assert.assertNull(keys.take(chain, 39));
+    Assert.assertNotNull(keys.take(new PublicKey(sk), 40));
+    Assert.assertNull(keys.take(chain, 40));
+  }
+
+  @Test
+  public void testChainKeyStepper() throws Exception {
+    Random r = new Random();
+    byte[] b = new byte[32];
+    r.nextBytes(b);
+    Key ck = new Key(b);
+    byte[] expectedChainKey = b.clone();
+
+    byte[] one = { 1 };
+    byte[] two = { 2 };
+    byte[] mk = new byte[40];
+    for (int i = 0; i < 10; i++) {
+      // The ratchet chain, HMAC-SHA512(ck, 1) split into the chain and message keys
+      Mac mac = Mac.getInstance("HmacSHA512");
+      mac.init(new SecretKeySpec(expectedChainKey, "HmacSHA512"));
+      byte[] sum = mac.doFinal(one);
+
+      ChainKeyStepper.Sha512.step(ck, mk, 8);
+      expectedChainKey = Arrays.copyOfRange(sum, 0, 32);
+      Assert.assertEquals(Arrays.equals(Arrays.copyOfRange(sum, 32, 64), Arrays.copyOfRange(mk, 8, 40)), true);
+      Assert.assertEquals(Arrays.equals(expectedChainKey, ck.raw()), true);
+
+      // The group chain, HMAC-SHA256(ck, 1) and HMAC-SHA256(ck, 2)
+      mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(expectedChainKey, "HmacSHA256"));
+      byte[] expectedMessageKey = mac.doFinal(one);
+      expectedChainKey = mac.doFinal(two);
+
+      Key messageKey = ChainKeyStepper.Sha256.step(ck);
+      Assert.assertEquals(Arrays.equals(expectedMessageKey, messageKey.raw()), true);
+      Assert.assertEquals(Arrays.equals(expectedChainKey, ck.raw()), true);
+    }
+  }
+
+  @Test
+  public void testChainKeyStepperAdvance() throws Exception {
+    Random r = new Random();
+    byte[] b = new byte[32];
+    r.nextBytes(b);
+
+    ChainKeyStepper[] steppers = { ChainKeyStepper.Sha512, ChainKeyStepper.Sha256, ChainKeyStepper.Blake2b };
+    for (ChainKeyStepper stepper : steppers) {
+      // Lands on the same chain key as stepping over the messages one by one
+      Key stepped = new Key(b);
+      Key advanced = new Key(b);
+      for (int steps : new int[] { 0, 1, 7 }) {
+        for (int i = 0; i < steps; i ++) {
+          stepper.step(stepped);
+        }
+        stepper.advance(advanced, steps);
+        Assert.assertEquals(Arrays.equals(stepped.raw(), advanced.raw()), true);
+      }
+    }
+  }
+
+  @Test
+  public void testCipherSuites() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcm;
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.initRecipient(pairBob, new Key(sk));
+
+    byte[] first = alice.encrypt("Olala".getBytes(), ad);
+    byte[] second = alice.encrypt("Osama".getBytes(), ad);
+    Assert.assertEquals(first[0], CipherSuite.AesGcm.id);
+    Assert.assertEquals(first.length, 1 + RatchetMessageHeader.SIZE + 5 + GcmAead.TagSize);
+
+    // A legacy session only takes legacy messages
+    try {
+      bob.decrypt(second, ad);
+      Assert.fail();
+    } catch (DecryptionFailedException e) {
+    }
+    Assert.assertEquals(bob.messageNumberRecipient, 0);
+
+    // Out of order, the first one comes from the skipped keys
+    bob.cipherSuite = CipherSuite.AesGcm;
+    Assert.assertArrayEquals(bob.decrypt(second, ad), "Osama".getBytes());
+    Assert.assertArrayEquals(bob.decrypt(first, ad), "Olala".getBytes());
+
+    byte[] reply = bob.encrypt("Obama".getBytes(), ad);
+    Assert.assertEquals(reply.length, 1 + RatchetMessageHeader.SIZE + 5 + GcmAead.TagSize);
+    Assert.assertArrayEquals(alice.decrypt(reply, ad), "Obama".getBytes());
+
+    // And an AES-GCM session does not take legacy messages
+    Ratchet legacyAlice = new Ratchet();
+    legacyAlice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet legacy = new Ratchet();
+    legacy.initRecipient(pairBob, new Key(sk));
+    byte[] legacyMessage = legacyAlice.encrypt("Olala".getBytes(), ad);
+    try {
+      bob.decrypt(legacyMessage, ad);
+      Assert.fail();
+    } catch (DecryptionFailedException e) {
+    }
+    Assert.assertArrayEquals(legacy.decrypt(legacyMessage, ad), "Olala".getBytes());
+    reply = legacy.encrypt("Obama".getBytes(), ad);
+    Assert.assertEquals(reply.length, Aead.encryptedSize(5) + RatchetMessageHeader.SIZE);
+    Assert.assertArrayEquals(legacyAlice.decrypt(reply, ad), "Obama".getBytes());
+
+    byte[] changed = alice.encrypt("Omama".getBytes(), ad);
+    changed[changed.length - 1] ^= 1;
+    try {
+      bob.decrypt(changed, ad);
+      Assert.fail();
+    } catch (AuthenticationException e) {
+    }
+
+    // The suite is kept with the session, legacy sessions keep their encoding
+    // (encode needs the header keys, which are not set up by the init methods)
+    alice.header = alice.nextHeader = legacy.header = legacy.nextHeader = new Key(sk);
+    Assert.assertEquals(Ratchet.decode(alice.encode()).cipherSuite, CipherSuite.AesGcm);
+    Ratchet decoded = Ratchet.decode(legacy.encode());
+    Assert.assertEquals(decoded.cipherSuite, CipherSuite.Legacy);
+    Assert.assertEquals(Arrays.equals(decoded.encode(), legacy.encode()), true);
+  }
+
+  @Test
+  public void testBlake2bSuite() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcmBlake2b;
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.cipherSuite = CipherSuite.AesGcmBlake2b;
+    bob.initRecipient(pairBob, new Key(sk));
+
+    byte[] first = alice.encrypt("Olala".getBytes(), ad);
+    byte[] second = alice.encrypt("Osama".getBytes(), ad);
+    Assert.assertEquals(first[0], CipherSuite.AesGcmBlake2b.id);
+
+    // The skipped key of the first one is stepped with BLAKE2b as well
+    Assert.assertArrayEquals(bob.decrypt(second, ad), "Osama".getBytes());
+    Assert.assertArrayEquals(bob.decrypt(first, ad), "Olala".getBytes());
+
+    Assert.assertArrayEquals(alice.decrypt(bob.encrypt("Obama".getBytes(), ad), ad), "Obama".getBytes());
+    Assert.assertArrayEquals(bob.decrypt(alice.encrypt("Omama".getBytes(), ad), ad), "Omama".getBytes());
+
+    // A message of another suite is turned down
+    byte[] changed = alice.encrypt("Olala".getBytes(), ad);
+    changed[0] = CipherSuite.AesGcm.id;
+    try {
+      bob.decrypt(changed, ad);
+      Assert.fail();
+    } catch (DecryptionFailedException e) {
+    }
+
+    alice.header = alice.nextHeader = new Key(sk);
+    Assert.assertEquals(Ratchet.decode(alice.encode()).cipherSuite, CipherSuite.AesGcmBlake2b);
+  }
+
+  @Test
+  public void testForgedSuiteLeavesRatchet() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcm;
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.cipherSuite = CipherSuite.AesGcm;
+    bob.initRecipient(pairBob, new Key(sk));
+    Assert.assertArrayEquals(bob.decrypt(alice.encrypt("Olala".getBytes(), ad), ad), "Olala".getBytes());
+    Key chainKey = Key.copyOf(bob.chainKeyRecipient);
+    int number = bob.messageNumberRecipient;
+
+    // Claims the BLAKE2b suite and a message far ahead, in this chain and in a new one
+    byte[] message = alice.encrypt("Osama".getBytes(), ad);
+    byte[] forged = message.clone();
+    forged[0] = CipherSuite.AesGcmBlake2b.id;
+    ByteBuffer.wrap(forged, 1 + RatchetMessageHeader.SIZE - 4, 4).putInt(1000);
+    byte[] turned = forged.clone();
+    System.arraycopy(new KeyPair().publicKey.encode(), 0, turned, 1, Key.ESIZE);
+    for (byte[] m : new byte[][] { forged, turned }) {
+      try {
+        bob.decrypt(m, ad);
+        Assert.fail();
+      } catch (DecryptionFailedException e) {
+      }
+    }
+    Assert.assertEquals(bob.chainKeyRecipient, chainKey);
+    Assert.assertEquals(bob.messageNumberRecipient, number);
+    Assert.assertEquals(bob.skippedMessages.size(), 0);
+
+    // The real message still decrypts, and so do the ones after it
+    Assert.assertArrayEquals(bob.decrypt(message, ad), "Osama".getBytes());
+    Assert.assertArrayEquals(bob.decrypt(alice.encrypt("Obama".getBytes(), ad), ad), "Obama".getBytes());
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcm;
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.cipherSuite = CipherSuite.AesGcm;
+    bob.initRecipient(pairBob, new Key(sk));
+    // (encode needs the header keys, which are not set up by the init methods)
+    bob.header = bob.nextHeader = new Key(sk);
+
+    // A fresh ratchet has keys which are not set yet
+    Ratchet fresh = RatchetSnapshot.load(ByteBuffer.wrap(RatchetSnapshot.encode(bob)));
+    Assert.assertEquals(fresh.pairSender, pairBob);
+    Assert.assertEquals(fresh.publicRecipient, null);
+    Assert.assertEquals(fresh.chainKeyRecipient, null);
+    Assert.assertEquals(fresh.rootKey, bob.rootKey);
+
+    List<byte[]> messages = new ArrayList<>();
+    for (int i = 0; i < 50; i ++) {
+      messages.add(alice.encrypt(("Olala" + i).getBytes(), ad));
+    }
+    Assert.assertArrayEquals(bob.decrypt(messages.get(49), ad), "Olala49".getBytes());
+    Assert.assertEquals(bob.skippedMessages.size(), 49);
+
+    byte[] snapshot = RatchetSnapshot.encode(bob);
+    Assert.assertEquals(snapshot.length, RatchetSnapshot.size(bob));
+    Assert.assertEquals(snapshot.length, RatchetSnapshot.HeaderSize + 49 * (RatchetSnapshot.EntrySize + 4));
+
+    // From a direct buffer, at an offset
+    ByteBuffer direct = ByteBuffer.allocateDirect(snapshot.length + 10);
+    direct.position(10);
+    direct.put(snapshot);
+    direct.position(10);
+    Ratchet loaded = RatchetSnapshot.load(direct);
+    Assert.assertEquals(direct.position(), snapshot.length + 10);
+    Assert.assertEquals(loaded.pairSender, bob.pairSender);
+    Assert.assertEquals(Arrays.equals(loaded.pairSender.privateKey.forSigning, bob.pairSender.privateKey.forSigning), true);
+    Assert.assertEquals(loaded.publicRecipient, bob.publicRecipient);
+    Assert.assertEquals(loaded.chainKeyRecipient, bob.chainKeyRecipient);
+    Assert.assertEquals(loaded.messageNumberRecipient, bob.messageNumberRecipient);
+    Assert.assertEquals(loaded.cipherSuite, bob.cipherSuite);
+    Assert.assertEquals(loaded.skippedMessages.size(), 49);
+
+    // Written back untouched, or after a copy of the table, it is the same
+    Assert.assertArrayEquals(RatchetSnapshot.encode(loaded), snapshot);
+    Ratchet copied = RatchetSnapshot.load(ByteBuffer.wrap(snapshot));
+    Assert.assertEquals(copied.skippedMessages.chainCount(), 1);
+    Assert.assertArrayEquals(RatchetSnapshot.encode(copied), snapshot);
+
+    // Skipped keys are taken from the buffer, then the ratchet goes on as usual
+    Assert.assertArrayEquals(loaded.decrypt(messages.get(7), ad), "Olala7".getBytes());
+    Assert.assertArrayEquals(loaded.decrypt(messages.get(0), ad), "Olala0".getBytes());
+    Assert.assertEquals(loaded.skippedMessages.size(), 47);
+    byte[] later = alice.encrypt("Osama".getBytes(), ad);
+    alice.encrypt("Obama".getBytes(), ad);
+    Assert.assertArrayEquals(loaded.decrypt(alice.encrypt("Omama".getBytes(), ad), ad), "Omama".getBytes());
+    Assert.assertEquals(loaded.skippedMessages.size(), 49);
+    Assert.assertArrayEquals(loaded.decrypt(later, ad), "Osama".getBytes());
+    Assert.assertArrayEquals(loaded.decrypt(messages.get(48), ad), "Olala48".getBytes());
+
+    // The age order survives a round trip
+    Ratchet again = RatchetSnapshot.load(ByteBuffer.wrap(RatchetSnapshot.encode(loaded)));
+    Iterator<Map.Entry<Key, RatchetMessageBuffer>> it1 = loaded.skippedMessages.iterator();
+    Iterator<Map.Entry<Key, RatchetMessageBuffer>> it2 = again.skippedMessages.iterator();
+    while (it1.hasNext()) {
+      Map.Entry<Key, RatchetMessageBuffer> e1 = it1.next();
+      Map.Entry<Key, RatchetMessageBuffer> e2 = it2.next();
+      Assert.assertEquals(e1.getKey(), e2.getKey());
+      Assert.assertEquals(e1.getValue(), e2.getValue());
+    }
+    Assert.assertEquals(it2.hasNext(), false);
+
+    try {
+      RatchetSnapshot.load(ByteBuffer.wrap(snapshot, 0, snapshot.length - 1));
+      Assert.fail();
+    } catch (IllegalDataSizeException e) {
+    }
+    try {
+      RatchetSnapshot.load(ByteBuffer.wrap(bob.encode()));
+      Assert.fail();
+    } catch (IOException e) {
+    }
+    snapshot[4] = RatchetSnapshot.Version + 1;
+    try {
+      RatchetSnapshot.load(ByteBuffer.wrap(snapshot));
+      Assert.fail();
+    } catch (IOException e) {
+    }
+
+    // The older encoding fails on truncated data too
+    byte[] encoded = bob.encode();
+    try {
+      Ratchet.decode(Arrays.copyOf(encoded, 100));
+      Assert.fail();
+    } catch (IllegalDataSizeException e) {
+    }
+  }
+
+  // A snapshot followed by the journal records appended after it
+  private static final class Stored {
+    byte[] snapshot;
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+
+    void save(Ratchet r) throws IOException {
+      if (r.journal.needsCompaction()) {
+        snapshot = r.journal.compact(r);
+        records.reset();
+      } else {
+        records.write(r.journal.drain());
+      }
+    }
+
+    Ratchet load() throws Exception {
+      return RatchetJournal.replay(ByteBuffer.wrap(snapshot), ByteBuffer.wrap(records.toByteArray()));
+    }
+  }
+
+  @Test
+  public void testJournal() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcm;
+    alice.journal = new RatchetJournal();
+    Stored storedAlice = new Stored();
+    storedAlice.snapshot = alice.journal.compact(alice);
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    storedAlice.save(alice);
+
+    Ratchet bob = new Ratchet();
+    bob.cipherSuite = CipherSuite.AesGcm;
+    bob.journal = new RatchetJournal();
+    Stored storedBob = new Stored();
+    storedBob.snapshot = bob.journal.compact(bob);
+    bob.initRecipient(pairBob, new Key(sk));
+    storedBob.save(bob);
+
+    // A message costs a few tens of bytes
+    byte[] first = alice.encrypt("Olala".getBytes(), ad);
+    Assert.assertEquals(alice.journal.pending(), 1 + 1 + Key.SIZE + 4);
+    storedAlice.save(alice);
+    Assert.assertArrayEquals(bob.decrypt(first, ad), "Olala".getBytes());
+    storedBob.save(bob);
+    Assert.assertArrayEquals(RatchetSnapshot.encode(storedBob.load()), RatchetSnapshot.encode(bob));
+
+    // Turns and skipped keys, in both directions, until both journals were compacted
+    int compactions = 0;
+    for (int i = 0; i < 40; i ++) {
+      Ratchet from = i % 3 == 2 ? bob : alice;
+      Ratchet to = from == bob ? alice : bob;
+      Stored storedFrom = from == bob ? storedBob : storedAlice;
+      Stored storedTo = from == bob ? storedAlice : storedBob;
+      from.cipherSuite = CipherSuite.AesGcm;
+
+      byte[] late = from.encrypt(("Osama" + i).getBytes(), ad);
+      storedFrom.save(from);
+      byte[] m = from.encrypt(("Obama" + i).getBytes(), ad);
+      storedFrom.save(from);
+      Assert.assertArrayEquals(to.decrypt(m, ad), ("Obama" + i).getBytes());
+      byte[] before = storedTo.snapshot;
+      storedTo.save(to);
+      if (storedTo.snapshot != before) {
+        compactions ++;
+      }
+      if (i % 4 != 0) {
+        // The skipped message arrives later on
+        Assert.assertArrayEquals(to.decrypt(late, ad), ("Osama" + i).getBytes());
+        storedTo.save(to);
+      }
+
+      // The stored state always gives back the same ratchet
+      Assert.assertArrayEquals(RatchetSnapshot.encode(storedAlice.load()), RatchetSnapshot.encode(alice));
+      Assert.assertArrayEquals(RatchetSnapshot.encode(storedBob.load()), RatchetSnapshot.encode(bob));
+    }
+    Assert.assertEquals(compactions > 0, true);
+
+    // A ratchet loaded from the journal goes on as usual
+    Ratchet loaded = storedBob.load();
+    Assert.assertArrayEquals(loaded.decrypt(alice.encrypt("Olala".getBytes(), ad), ad), "Olala".getBytes());
+
+    // A record cut short by a crash is ignored
+    byte[] records = storedBob.records.toByteArray();
+    storedBob.records.write(RatchetJournal.SkippedAdd);
+    storedBob.records.write(new byte[10]);
+    Assert.assertArrayEquals(RatchetSnapshot.encode(storedBob.load()), RatchetSnapshot.encode(bob));
+
+    storedBob.records.reset();
+    storedBob.records.write(records);
+    storedBob.records.write(9);
+    try {
+      storedBob.load();
+      Assert.fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testEncryptBatch() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.initRecipient(pairBob, new Key(sk));
+
+    List<byte[]> plainTexts = new ArrayList<>();
+    for (int i = 0; i < 20; i ++) {
+      byte[] b = new byte[r.nextInt(100)];
+      r.nextBytes(b);
+      plainTexts.add(b);
+    }
+
+    for (CipherSuite suite : CipherSuite.values()) {
+      alice.cipherSuite = suite;
+      bob.cipherSuite = suite;
+      // The same as encrypting one by one on a copy of the ratchet
+      Ratchet copy = RatchetSnapshot.load(ByteBuffer.wrap(RatchetSnapshot.encode(alice)));
+      Ratchet.EncryptedBatch batch = alice.encryptBatch(plainTexts, ad);
+      Assert.assertEquals(batch.size(), plainTexts.size());
+      for (int i = 0; i < plainTexts.size(); i ++) {
+        byte[] expected = copy.encrypt(plainTexts.get(i), ad);
+        Assert.assertArrayEquals(batch.get(i), expected);
+        Assert.assertEquals(batch.length(i), expected.length);
+      }
+      Assert.assertEquals(batch.offset(plainTexts.size() - 1) + batch.length(plainTexts.size() - 1), batch.data.length);
+      Assert.assertEquals(alice.messageNumberSender, copy.messageNumberSender);
+      Assert.assertEquals(alice.chainKeySender, copy.chainKeySender);
+
+      for (int i = 0; i < plainTexts.size(); i ++) {
+        Assert.assertArrayEquals(bob.decrypt(batch.get(i), ad), plainTexts.get(i));
+      }
+    }
+
+    Ratchet.EncryptedBatch empty = alice.encryptBatch(new ArrayList<byte[]>(), ad);
+    Assert.assertEquals(empty.size(), 0);
+    Assert.assertEquals(empty.data.length, 0);
+  }
+
+  @Test
+  public void testEncryptBatchFailureLeavesRatchet() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.initRecipient(pairBob, new Key(sk));
+    alice.journal = new RatchetJournal();
+
+    for (CipherSuite suite : CipherSuite.values()) {
+      alice.cipherSuite = suite;
+      bob.cipherSuite = suite;
+      alice.encrypt("Olala".getBytes(), ad);
+      alice.journal.drain();
+      Ratchet copy = RatchetSnapshot.load(ByteBuffer.wrap(RatchetSnapshot.encode(alice)));
+
+      // Gives its plain texts once to be sized, then fails half way through encrypting them
+      final List<byte[]> plainTexts = new ArrayList<>();
+      for (int i = 0; i < 10; i ++) {
+        plainTexts.add(new byte[i * 10]);
+      }
+      List<byte[]> failing = new AbstractList<byte[]>() {
+        int reads;
+
+        @Override
+        public byte[] get(int i) {
+          if (reads ++ == plainTexts.size() + 5) {
+            throw new IllegalStateException();
+          }
+          return plainTexts.get(i);
+        }
+
+        @Override
+        public int size() {
+          return plainTexts.size();
+        }
+      };
+      try {
+        alice.encryptBatch(failing, ad);
+        Assert.fail();
+      } catch (IllegalStateException e) {
+      }
+      Assert.assertEquals(alice.messageNumberSender, copy.messageNumberSender);
+      Assert.assertEquals(alice.chainKeySender, copy.chainKeySender);
+      Assert.assertEquals(alice.journal.pending(), 0);
+
+      // The next messages carry on from where the ratchet was
+      Ratchet.EncryptedBatch batch = alice.encryptBatch(plainTexts, ad);
+      for (int i = 0; i < plainTexts.size(); i ++) {
+        Assert.assertArrayEquals(batch.get(i), copy.encrypt(plainTexts.get(i), ad));
+        Assert.assertArrayEquals(bob.decrypt(batch.get(i), ad), plainTexts.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testSkipWithCheckpoints() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.cipherSuite = CipherSuite.AesGcmBlake2b;
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.cipherSuite = CipherSuite.AesGcmBlake2b;
+    bob.initRecipient(pairBob, new Key(sk));
+    bob.skippedMessages.setCheckpoints(16, 1024);
+    bob.journal = new RatchetJournal();
+    byte[] snapshot = bob.journal.compact(bob);
+
+    List<byte[]> messages = new ArrayList<>();
+    for (int i = 0; i < 500; i ++) {
+      messages.add(alice.encrypt(("Olala" + i).getBytes(), ad));
+    }
+
+    // Message 3 comes first, then 499, which leaves checkpoints instead of 495 keys
+    Assert.assertArrayEquals(bob.decrypt(messages.get(3), ad), "Olala3".getBytes());
+    Assert.assertArrayEquals(bob.decrypt(messages.get(499), ad), "Olala499".getBytes());
+    Assert.assertEquals(bob.skippedMessages.size(), 0);
+    Assert.assertEquals(bob.skippedMessages.checkpointCount(), 1 + 31 + 1);
+
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < 499; i += 7) {
+      if (i != 3) {
+        order.add(i);
+      }
+    }
+    Collections.shuffle(order, r);
+    for (int i : order) {
+      Assert.assertArrayEquals(bob.decrypt(messages.get(i), ad), ("Olala" + i).getBytes());
+    }
+
+    // A key is only derived once
+    byte[] used = messages.get(order.get(0));
+    Assert.assertNull(bob.findSkippedKey(RatchetMessageHeader.decode(Arrays.copyOfRange(used, 1, 1 + RatchetMessageHeader.SIZE))));
+
+    // Checkpoints are kept by snapshots and journals
+    byte[] withCheckpoints = RatchetSnapshot.encode(bob);
+    Assert.assertEquals(withCheckpoints[4], RatchetSnapshot.Version);
+    Ratchet loaded = RatchetSnapshot.load(ByteBuffer.wrap(withCheckpoints));
+    Assert.assertArrayEquals(RatchetSnapshot.encode(loaded), withCheckpoints);
+    Ratchet replayed = RatchetJournal.replay(ByteBuffer.wrap(snapshot), ByteBuffer.wrap(bob.journal.drain()));
+    Assert.assertArrayEquals(RatchetSnapshot.encode(replayed), withCheckpoints);
+    Assert.assertArrayEquals(loaded.decrypt(messages.get(100), ad), "Olala100".getBytes());
+    Assert.assertArrayEquals(replayed.decrypt(messages.get(100), ad), "Olala100".getBytes());
+
+    // The remaining keys of a checkpoint are all derived, then it goes away
+    int before = bob.skippedMessages.checkpointCount();
+    for (int i = 480; i < 496; i ++) {
+      if (i % 7 != 0) {
+        Assert.assertArrayEquals(bob.decrypt(messages.get(i), ad), ("Olala" + i).getBytes());
+      }
+    }
+    Assert.assertEquals(bob.skippedMessages.checkpointCount(), before - 1);
+
+    // Beyond the limit, the oldest checkpoints go first
+    bob.skippedMessages.setCheckpoints(16, 4);
+    Assert.assertEquals(bob.skippedMessages.checkpointCount(), 4);
+    byte[] evicted = messages.get(5);
+    Assert.assertNull(bob.findSkippedKey(RatchetMessageHeader.decode(Arrays.copyOfRange(evicted, 1, 1 + RatchetMessageHeader.SIZE))));
+    Assert.assertArrayEquals(bob.decrypt(messages.get(498), ad), "Olala498".getBytes());
+
+    // Only the last checkpoints are made when skipping far ahead
+    for (int i = 0; i < 1000; i ++) {
+      messages.add(alice.encrypt(("Osama" + i).getBytes(), ad));
+    }
+    Assert.assertArrayEquals(bob.decrypt(messages.get(messages.size() - 1), ad), "Osama999".getBytes());
+    Assert.assertEquals(bob.skippedMessages.checkpointCount(), 4);
+    Assert.assertArrayEquals(bob.decrypt(messages.get(messages.size() - 50), ad), "Osama950".getBytes());
+  }
+
+  @Test
+  public void testCheckpointSettingsAreKept() throws Exception {
+    Random r = new Random();
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.initRecipient(pairBob, new Key(sk));
+
+    // The default limits keep the first version of the layout
+    Assert.assertEquals(RatchetSnapshot.encode(bob)[4], 1);
+
+    bob.skippedMessages.setLimits(100 * SkippedMessageKeys.EntrySize, 50, 2);
+    bob.skippedMessages.setCheckpoints(8, 16);
+    bob.journal = new RatchetJournal();
+    byte[] snapshot = bob.journal.compact(bob);
+    Assert.assertEquals(snapshot[4], RatchetSnapshot.Version);
+
+    List<byte[]> messages = new ArrayList<>();
+    for (int i = 0; i < 40; i ++) {
+      messages.add(alice.encrypt(("Olala" + i).getBytes(), ad));
+    }
+    Assert.assertArrayEquals(bob.decrypt(messages.get(39), ad), "Olala39".getBytes());
+
+    Ratchet loaded = RatchetSnapshot.load(ByteBuffer.wrap(RatchetSnapshot.encode(bob)));
+    Ratchet replayed = RatchetJournal.replay(ByteBuffer.wrap(snapshot), ByteBuffer.wrap(bob.journal.drain()));
+    for (Ratchet ratchet : new Ratchet[] { loaded, replayed }) {
+      SkippedMessageKeys skipped = ratchet.skippedMessages;
+      Assert.assertEquals(skipped.getCheckpointInterval(), 8);
+      Assert.assertEquals(skipped.getMaxCheckpoints(), 16);
+      Assert.assertEquals(skipped.getMaxBytes(), 100 * SkippedMessageKeys.EntrySize);
+      Assert.assertEquals(skipped.getMaxKeys(), 50);
+      Assert.assertEquals(skipped.getMaxChains(), 2);
+      Assert.assertArrayEquals(ratchet.decrypt(messages.get(10), ad), "Olala10".getBytes());
+    }
+
+    // The legacy encoding would drop the checkpoints
+    try {
+      bob.encode();
+      Assert.fail();
+    } catch (IOException e) {
+    }
+
+    // With checkpoints, skipping is limited to what they can hold
+    bob.skippedMessages.setCheckpoints(8, Constants.MaxSkippedCheckpoints);
+    try {
+      bob.skipMessages(bob.messageNumberRecipient + Constants.MaxSkippedMessagesWithCheckpoints + 1);
+      Assert.fail();
+    } catch (TooManySkippedMessagesException e) {
+    }
+  }
+
+  @Test
+  public void testSkippedKeysExpire() throws Exception {
+    Random r = new Random();
+    byte[] raw = new byte[32];
+    r.nextBytes(raw);
+    Key chain = new Key(raw);
+    r.nextBytes(raw);
+    Key old = new Key(raw);
+    r.nextBytes(raw);
+    Key fresh = new Key(raw);
+
+    // Keys older than the maximum age are evicted, and are not handed out while still held
+    SkippedMessageKeys store = new SkippedMessageKeys();
+    long now = System.currentTimeMillis();
+    store.put(chain, 0, old, now - 5000);
+    store.put(chain, 1, fresh, now);
+    Assert.assertEquals(store.size(), 2);
+    store.setMaxAge(1000);
+    Assert.assertEquals(store.getMaxAge(), 1000);
+    Assert.assertEquals(store.size(), 1);
+    Assert.assertNull(store.take(chain, 0));
+    Assert.assertEquals(store.take(chain, 1), fresh);
+
+    try {
+      store.setMaxAge(-1);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+    }
+
+    byte[] sk = new byte[32];
+    r.nextBytes(sk);
+    byte[] ad = "Omama".getBytes();
+    KeyPair pairBob = new KeyPair();
+
+    Ratchet alice = new Ratchet();
+    alice.initSender(pairBob.publicKey, new Key(sk));
+    Ratchet bob = new Ratchet();
+    bob.initRecipient(pairBob, new Key(sk));
+    bob.skippedMessages.setMaxAge(60000);
+    bob.journal = new RatchetJournal();
+    byte[] snapshot = bob.journal.compact(bob);
+
+    List<byte[]> messages = new ArrayList<>();
+    for (int i = 0; i < 5; i ++) {
+      messages.add(alice.encrypt(("Olala" + i).getBytes(), ad));
+    }
+    Assert.assertArrayEquals(bob.decrypt(messages.get(4), ad), "Olala4".getBytes());
+    long[] times = bob.skippedMessages.times();
+    Assert.assertEquals(times.length, 4);
+
+    // The maximum age and when each key was stored survive a snapshot and the journal
+    Ratchet loaded = RatchetSnapshot.load(ByteBuffer.wrap(RatchetSnapshot.encode(bob)));
+    Ratchet replayed = RatchetJournal.replay(ByteBuffer.wrap(snapshot), ByteBuffer.wrap(bob.journal.drain()));
+    for (Ratchet ratchet : new Ratchet[] { loaded, replayed }) {
+      Assert.assertEquals(ratchet.skippedMessages.getMaxAge(), 60000);
+      Assert.assertArrayEquals(ratchet.skippedMessages.times(), times);
+      Assert.assertArrayEquals(ratchet.decrypt(messages.get(1), ad), "Olala1".getBytes());
+    }
 
+    // Once they are too old, the skipped messages can no longer be read
+    Thread.sleep(10);
+    loaded.skippedMessages.setMaxAge(1);
+    Assert.assertEquals(loaded.skippedMessages.size(), 0);
+    try {
+      loaded.decrypt(messages.get(2), ad);
+      Assert.fail();
+    } catch (AuthenticationException e) {
     }
   }
-}
\ No newline at end of file
+}
@@ -1,6 +1,9 @@
 package id.ridon.ngobrel.core;
 
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
 import javax.crypto.Cipher;
@@ -8,14 +11,44 @@ import javax.crypto.Mac;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import static javax.crypto.Mac.getInstance;
-
+/**
+ * AES-CBC with PKCS#7 padding followed by HMAC-SHA512 over the additional data and the
+ * cipher text. Most objects encrypt or decrypt a single message, so the cipher and mac of the
+ * first call are borrowed from {@link CryptoPrimitives} and given back after it. An object which
+ * is used again keeps its own from then on, along with its buffers, and is not safe to use from
+ * several threads at once.
+ */
 public class Aead {
-  private byte[] key;
-  private String info;
-  private byte[] iv;
-  private byte[] authKey;
-  private byte[] opKey;
+  // The AES key, the HMAC key and the IV, in the order they come out of the KDF
+  static final int OpKeyOffset = 0;
+  static final int AuthKeyOffset = 16;
+  static final int IvOffset = 48;
+  static final int KeysSize = 64;
+
+  private static final int BlockSize = 16;
+  private static final int ChunkSize = 512;
+  public static final int TagSize = 64;
+
+  private final byte[] keys = new byte[KeysSize];
+
+  // Borrowed from CryptoPrimitives for the first call, kept by the object after that
+  private Cipher cipher;
+  private Mac mac;
+  private boolean keep;
+  // doFinal leaves the cipher as it was initialized, with the same IV
+  private int mode;
+
+  // Set up by the first encryption or decryption
+  private SecretKeySpec keySpec;
+  private SecretKeySpec macKeySpec;
+  private IvParameterSpec ivSpec;
+  private byte[] pad;
+  private byte[] work;
+  private byte[] tag;
+  private byte[] check;
+
+  private Aead() {
+  }
 
   /**
    * Creates an Aead object
@@ -23,21 +56,135 @@ public class Aead {
    * @param info The string containing the information of the key
    */
   public Aead(byte[] key, String info) {
-    this.info = info;
-    this.key = key;
-    iv = new byte[16];
-    authKey = new byte[32];
-    opKey = new byte[16];
+    this(key, new HkdfSha512.Info(info));
+  }
+
+  /**
+   * Creates an Aead object with a pre-encoded info string
+   * @param key The key in byte array
+   * @param info The information of the key
+   */
+  public Aead(byte[] key, HkdfSha512.Info info) {
+    HkdfSha512.derive(key, info, keys, 0, KeysSize);
+  }
+
+  /**
+   * Creates the Aead of the next message of a ratchet chain. The chain key is advanced in place,
+   * and the message key only lives in the key schedule of the returned object. This is the same as
+   * new Aead(mk, Constants.RidonRatchetInfo) where mk comes from ChainKeyStepper.Sha512.
+   * @param chainKey The chain key of the ratchet
+   * @return a new Aead object
+   */
+  public static Aead fromChainKey(Key chainKey) {
+    Aead aead = new Aead();
+    ChainKeyStepper.Sha512.step(chainKey, aead.keys, 0);
+    HkdfSha512.derive(aead.keys, 0, Key.SIZE, HkdfSha512.RatchetInfo, aead.keys, 0, KeysSize);
+    return aead;
+  }
+
+  /**
+   * Returns the size of the encryption of a plain text
+   * @param plainTextLength The length of the plain text
+   * @return the length of the cipher text including the tag
+   */
+  public static int encryptedSize(int plainTextLength) {
+    return (plainTextLength / BlockSize + 1) * BlockSize + TagSize;
+  }
+
+  private void setup(int mode) throws GeneralSecurityException {
+    if (keySpec == null) {
+      keySpec = new SecretKeySpec(keys, OpKeyOffset, 16, "AES");
+      macKeySpec = new SecretKeySpec(keys, AuthKeyOffset, 32, "HmacSHA512");
+      ivSpec = new IvParameterSpec(keys, IvOffset, 16);
+      pad = new byte[BlockSize];
+      tag = new byte[TagSize];
+      check = new byte[TagSize];
+    }
+    if (cipher == null) {
+      this.mode = 0;
+      mac = CryptoPrimitives.mac("HmacSHA512");
+      mac.init(macKeySpec);
+      cipher = CryptoPrimitives.cipher("AES/CBC/NoPadding");
+    }
+    if (this.mode != mode) {
+      // Stays unset if init fails
+      this.mode = 0;
+      cipher.init(mode, keySpec, ivSpec);
+      this.mode = mode;
+    }
+  }
+
+  // Gives back what the first call borrowed, or drops whatever a failed call left in the
+  // cipher and the mac which are kept
+  private void finish(boolean failed) {
+    if (!keep) {
+      CryptoPrimitives.release(cipher);
+      CryptoPrimitives.release(mac);
+      cipher = null;
+      mac = null;
+      keep = true;
+    } else if (failed) {
+      mode = 0;
+      if (mac != null) {
+        mac.reset();
+      }
+    }
+  }
+
+  // Buffers without an accessible array go through this, so that the JCE does not allocate.
+  // The input goes in the first half and the output in the second, the JCE copies the input
+  // when they overlap.
+  private byte[] work() {
+    if (work == null) {
+      work = new byte[2 * ChunkSize];
+    }
+    return work;
+  }
+
+  private void macUpdate(ByteBuffer b) {
+    if (b.hasArray()) {
+      mac.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
+      b.position(b.limit());
+      return;
+    }
+    byte[] w = work();
+    while (b.hasRemaining()) {
+      int n = Math.min(b.remaining(), ChunkSize);
+      b.get(w, 0, n);
+      mac.update(w, 0, n);
+    }
   }
 
-  private void generateKeys() {
-    byte[] salt = Constants.getRidonSalt512();
-    Kdf kdf = Kdf.KdfSha512(key, salt);
-    byte[] kdfResult = kdf.get(info, 64);
+  // Runs the cipher over src into dst, authenticating the output when encrypting
+  private void crypt(ByteBuffer src, ByteBuffer dst, byte[] last, int lastLength, boolean encrypting) throws GeneralSecurityException {
+    if (src.hasArray() && dst.hasArray()) {
+      byte[] d = dst.array();
+      int out = dst.arrayOffset() + dst.position();
+      int n = cipher.update(src.array(), src.arrayOffset() + src.position(), src.remaining(), d, out);
+      src.position(src.limit());
+      n += cipher.doFinal(last, 0, lastLength, d, out + n);
+      if (encrypting) {
+        mac.update(d, out, n);
+      }
+      dst.position(dst.position() + n);
+      return;
+    }
 
-    System.arraycopy(kdfResult, 0, opKey, 0, 16);
-    System.arraycopy(kdfResult, 16, authKey,0, 32);
-    System.arraycopy(kdfResult, 48, iv, 0, 16);
+    byte[] w = work();
+    while (src.hasRemaining()) {
+      int n = Math.min(src.remaining(), ChunkSize);
+      src.get(w, 0, n);
+      n = cipher.update(w, 0, n, w, ChunkSize);
+      if (encrypting) {
+        mac.update(w, ChunkSize, n);
+      }
+      dst.put(w, ChunkSize, n);
+    }
+    int n = cipher.doFinal(last, 0, lastLength, w, ChunkSize);
+    if (encrypting) {
+      mac.update(w, ChunkSize, n);
+    }
+    dst.put(w, ChunkSize, n);
   }
 
   /**
@@ -48,40 +195,41 @@ public class Aead {
    * @throws EncryptionFailedException
    */
   public byte[] encrypt(byte[] plainText, byte[] ad) throws EncryptionFailedException {
-    generateKeys();
+    byte[] retval = new byte[encryptedSize(plainText.length)];
+    encrypt(ByteBuffer.wrap(plainText), ByteBuffer.wrap(ad), ByteBuffer.wrap(retval));
+    return retval;
+  }
 
+  /**
+   * Encrypts the remaining bytes of src with additional data, appending the cipher text and
+   * the authentication data to dst. The padding is encrypted straight into dst, src and dst
+   * may be the same memory as long as dst starts where src does. All three buffers are
+   * consumed.
+   * @param src The plain text
+   * @param ad The additional data
+   * @param dst Buffer receiving encryptedSize(src.remaining()) bytes
+   * @throws EncryptionFailedException
+   */
+  public void encrypt(ByteBuffer src, ByteBuffer ad, ByteBuffer dst) throws EncryptionFailedException {
+    boolean failed = true;
     try {
-      IvParameterSpec ivSpec = new IvParameterSpec(iv);
-      SecretKeySpec keySpec = new SecretKeySpec(opKey, "AES");
-
-      Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-      cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-
-      int padLength = 16 - plainText.length % 16;
-      byte[] padding = new byte[plainText.length + padLength];
-      System.arraycopy(plainText, 0, padding, 0, plainText.length);
-      for (int i = 0; i < padLength; i++) {
-        padding[plainText.length + i] = (byte)padLength;
+      int padLength = BlockSize - src.remaining() % BlockSize;
+      if (dst.remaining() < encryptedSize(src.remaining())) {
+        throw new EncryptionFailedException();
       }
-      byte[] encrypted = cipher.doFinal(padding);
-
-      SecretKeySpec hks = new SecretKeySpec(authKey, "HmacSHA512");
-      Mac m = getInstance("HmacSHA512");
-      m.init(hks);
-      m.update(ad);
-      byte[] hmac = m.doFinal(encrypted);
-
-      byte[] retval = new byte[encrypted.length + hmac.length];
-      System.arraycopy(encrypted, 0, retval, 0,encrypted.length);
-      System.arraycopy(hmac, 0, retval,encrypted.length, hmac.length);
-      for (int i = 0; i < encrypted.length; i ++) {
-        encrypted[i] = 0;
-      }
-      return retval;
-    } catch (Exception e) {
+
+      setup(Cipher.ENCRYPT_MODE);
+      macUpdate(ad);
+      Arrays.fill(pad, 0, padLength, (byte) padLength);
+      crypt(src, dst, pad, padLength, true);
+      mac.doFinal(tag, 0);
+      dst.put(tag);
+      failed = false;
+    } catch (GeneralSecurityException e) {
       throw new EncryptionFailedException();
+    } finally {
+      finish(failed);
     }
-
   }
 
   /**
@@ -92,67 +240,86 @@ public class Aead {
    * @throws EncryptionFailedException
    */
   public byte[] decrypt(byte[] cipherText, byte[] ad) throws DecryptionFailedException, IllegalDataSizeException, AuthenticationException {
-    generateKeys();
-
-    if (cipherText.length <= 64) {
+    if (cipherText.length <= TagSize) {
       throw new IllegalDataSizeException();
     }
 
-    IvParameterSpec ivSpec = new IvParameterSpec(iv);
-    SecretKeySpec keySpec = new SecretKeySpec(opKey, "AES");
-
-    int pos = cipherText.length - 64;
-
-    byte[] check = new byte[64];
-    System.arraycopy(cipherText, pos, check, 0, 64);
-
-    byte[] hmac;
-    try {
-      SecretKeySpec hks = new SecretKeySpec(authKey, "HmacSHA512");
-      Mac m = getInstance("HmacSHA512");
-      m.init(hks);
-      m.update(ad);
-      m.update(cipherText, 0, cipherText.length - 64);
-      hmac = m.doFinal();
-    } catch (Exception e) {
-      throw new DecryptionFailedException();
-    }
+    byte[] decrypted = new byte[cipherText.length - TagSize];
+    ByteBuffer dst = ByteBuffer.wrap(decrypted);
+    decrypt(ByteBuffer.wrap(cipherText), ByteBuffer.wrap(ad), dst);
+    byte[] result = Arrays.copyOf(decrypted, dst.position());
+    Arrays.fill(decrypted, (byte) 0);
+    return result;
+  }
 
-    if (!Arrays.equals(hmac, check)) {
-      throw new AuthenticationException();
+  /**
+   * Authenticates and decrypts the remaining bytes of src, a cipher text followed with its
+   * authentication data, writing the plain text into dst. The buffers may be the same memory
+   * as long as dst starts where src does. All three buffers are consumed.
+   * @param src The cipher text
+   * @param ad The additional data
+   * @param dst Buffer with room for src.remaining() - TagSize bytes, its position is moved
+   *            past the plain text only
+   * @throws DecryptionFailedException
+   * @throws IllegalDataSizeException
+   * @throws AuthenticationException
+   */
+  public void decrypt(ByteBuffer src, ByteBuffer ad, ByteBuffer dst) throws DecryptionFailedException, IllegalDataSizeException, AuthenticationException {
+    int length = src.remaining() - TagSize;
+    if (length <= 0) {
+      throw new IllegalDataSizeException();
     }
 
-    byte[] decrypted;
+    int start = src.position();
+    int limit = src.limit();
+    int dstStart = dst.position();
+    boolean failed = true;
     try {
-      Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-      cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
+      setup(Cipher.DECRYPT_MODE);
+      macUpdate(ad);
+      src.limit(start + length);
+      macUpdate(src);
+      mac.doFinal(tag, 0);
 
-      decrypted = cipher.doFinal(cipherText, 0, cipherText.length - 64);
-    } catch (Exception e) {
+      src.limit(limit);
+      src.get(check);
+      if (!MessageDigest.isEqual(tag, check)) {
+        throw new AuthenticationException();
+      }
+      if (length % BlockSize != 0 || dst.remaining() < length) {
+        throw new DecryptionFailedException();
+      }
+
+      src.position(start);
+      src.limit(start + length);
+      crypt(src, dst, pad, 0, false);
+      failed = false;
+    } catch (GeneralSecurityException e) {
       throw new DecryptionFailedException();
+    } finally {
+      src.limit(limit);
+      src.position(limit);
+      finish(failed);
     }
 
-    int resultLength = decrypted.length;
-    if (resultLength <= 0) {
-      throw new DecryptionFailedException();
+    int end = dst.position();
+    int endIndex = dst.get(end - 1);
+    boolean valid = endIndex >= 0 && endIndex <= BlockSize;
+    for (int i = end - (valid ? endIndex : 0); i < end; i ++) {
+      valid &= dst.get(i) == endIndex;
     }
-    int endIndex = decrypted[resultLength - 1];
-    if (endIndex <= 16) {
-      if (1 < endIndex) {
-        for (int i = resultLength - endIndex; i < resultLength; i ++) {
-          if (decrypted[resultLength - 1] != decrypted[i]) {
-            throw new DecryptionFailedException();
-          }
-        }
-      }
-      byte[] result = new byte[resultLength - endIndex];
-      System.arraycopy(decrypted, 0, result, 0, resultLength - endIndex);
-      for (int i = 0; i < resultLength; i ++) {
-        decrypted[i] = 0;
-      }
-      return result;
+    if (!valid) {
+      clear(dst, dstStart, end);
+      dst.position(dstStart);
+      throw new DecryptionFailedException();
     }
+    clear(dst, end - endIndex, end);
+    dst.position(end - endIndex);
+  }
 
-    throw new DecryptionFailedException();
+  private static void clear(ByteBuffer b, int from, int to) {
+    for (int i = from; i < to; i ++) {
+      b.put(i, (byte) 0);
+    }
   }
-}
\ No newline at end of file
+}
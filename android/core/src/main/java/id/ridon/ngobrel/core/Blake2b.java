@@ -0,0 +1,252 @@
+package id.ridon.ngobrel.core;
+
+import java.util.Arrays;
+
+/**
+ * BLAKE2b as specified in RFC 7693, with an optional key of up to 64 bytes and an output of up
+ * to 64 bytes. Like a Mac, an object keeps its key and goes back to its initial state after
+ * doFinal, so that it can hash the next message right away. Nothing is allocated after
+ * construction. It is not safe to use from several threads at once.
+ */
+public final class Blake2b {
+  public static final int MaxSize = 64;
+  public static final int MaxKeySize = 64;
+
+  private static final int BlockSize = 128;
+
+  private static final long[] IV = {
+      0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+      0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+  };
+
+  private static final byte[][] Sigma = {
+      { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 },
+      { 14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3 },
+      { 11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4 },
+      { 7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8 },
+      { 9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13 },
+      { 2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9 },
+      { 12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11 },
+      { 13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10 },
+      { 6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5 },
+      { 10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0 },
+      { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 },
+      { 14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3 }
+  };
+
+  private final long[] h = new long[8];
+  private final long[] v = new long[16];
+  private final long[] m = new long[16];
+  private final byte[] buffer = new byte[BlockSize];
+  private final byte[] key = new byte[MaxKeySize];
+  private final byte[] one = new byte[1];
+  private int keyLength;
+  private int outLength;
+  private int bufferLength;
+  private long t0;
+  private long t1;
+
+  /**
+   * Creates an unkeyed BLAKE2b
+   * @param outLength The size of the output, from 1 to 64 bytes
+   */
+  public Blake2b(int outLength) {
+    init(null, 0, 0, outLength);
+  }
+
+  /**
+   * Creates a keyed BLAKE2b
+   * @param key The key, up to 64 bytes
+   * @param outLength The size of the output, from 1 to 64 bytes
+   */
+  public Blake2b(byte[] key, int outLength) {
+    init(key, 0, key.length, outLength);
+  }
+
+  /**
+   * Sets a new key and output size, dropping whatever was hashed so far
+   * @param key Byte array containing the key, or null for no key
+   * @param offset The offset of the key
+   * @param length The length of the key, up to 64 bytes
+   * @param outLength The size of the output, from 1 to 64 bytes
+   */
+  public void init(byte[] key, int offset, int length, int outLength) {
+    if (length < 0 || length > MaxKeySize || outLength < 1 || outLength > MaxSize) {
+      throw new IllegalArgumentException();
+    }
+    Arrays.fill(this.key, (byte) 0);
+    if (length > 0) {
+      System.arraycopy(key, offset, this.key, 0, length);
+    }
+    keyLength = length;
+    this.outLength = outLength;
+    reset();
+  }
+
+  /**
+   * Returns the size of the output
+   * @return the output size in bytes
+   */
+  public int getOutputSize() {
+    return outLength;
+  }
+
+  /**
+   * Drops whatever was hashed so far, keeping the key
+   */
+  public void reset() {
+    System.arraycopy(IV, 0, h, 0, 8);
+    h[0] ^= 0x01010000L | (keyLength << 8) | outLength;
+    t0 = 0;
+    t1 = 0;
+    bufferLength = 0;
+    Arrays.fill(buffer, (byte) 0);
+    if (keyLength > 0) {
+      // The key is hashed as a full block of its own
+      System.arraycopy(key, 0, buffer, 0, keyLength);
+      bufferLength = BlockSize;
+    }
+  }
+
+  /**
+   * Hashes a single byte
+   * @param b The byte
+   */
+  public void update(byte b) {
+    one[0] = b;
+    update(one, 0, 1);
+  }
+
+  /**
+   * Hashes a byte array
+   * @param b The byte array
+   */
+  public void update(byte[] b) {
+    update(b, 0, b.length);
+  }
+
+  /**
+   * Hashes a part of a byte array
+   * @param b Byte array containing the data
+   * @param offset The offset of the data
+   * @param length The length of the data
+   */
+  public void update(byte[] b, int offset, int length) {
+    while (length > 0) {
+      // The last block is only compressed by doFinal, with the final flag
+      if (bufferLength == BlockSize) {
+        increment(BlockSize);
+        compress(buffer, 0, false);
+        bufferLength = 0;
+      }
+      if (bufferLength == 0) {
+        while (length > BlockSize) {
+          increment(BlockSize);
+          compress(b, offset, false);
+          offset += BlockSize;
+          length -= BlockSize;
+        }
+      }
+      int n = Math.min(length, BlockSize - bufferLength);
+      System.arraycopy(b, offset, buffer, bufferLength, n);
+      bufferLength += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Finishes the hash and goes back to the initial state with the same key
+   * @param out Byte array receiving getOutputSize() bytes
+   * @param offset Where in out to write the hash
+   */
+  public void doFinal(byte[] out, int offset) {
+    increment(bufferLength);
+    Arrays.fill(buffer, bufferLength, BlockSize, (byte) 0);
+    compress(buffer, 0, true);
+
+    for (int i = 0; i < outLength; i ++) {
+      out[offset + i] = (byte) (h[i >> 3] >>> (8 * (i & 7)));
+    }
+    reset();
+  }
+
+  /**
+   * Finishes the hash and goes back to the initial state with the same key
+   * @return byte array containing the hash
+   */
+  public byte[] doFinal() {
+    byte[] out = new byte[outLength];
+    doFinal(out, 0);
+    return out;
+  }
+
+  private void increment(int n) {
+    t0 += n;
+    // Unsigned t0 < n, the counter wrapped
+    if ((t0 ^ Long.MIN_VALUE) < (n ^ Long.MIN_VALUE)) {
+      t1 ++;
+    }
+  }
+
+  private void compress(byte[] b, int offset, boolean last) {
+    long[] v = this.v;
+    long[] m = this.m;
+    for (int i = 0; i < 16; i ++) {
+      m[i] = littleEndian(b, offset + 8 * i);
+    }
+    System.arraycopy(h, 0, v, 0, 8);
+    System.arraycopy(IV, 0, v, 8, 8);
+    v[12] ^= t0;
+    v[13] ^= t1;
+    if (last) {
+      v[14] = ~v[14];
+    }
+
+    for (int r = 0; r < 12; r ++) {
+      byte[] s = Sigma[r];
+      g(v, m, 0, 4, 8, 12, s[0], s[1]);
+      g(v, m, 1, 5, 9, 13, s[2], s[3]);
+      g(v, m, 2, 6, 10, 14, s[4], s[5]);
+      g(v, m, 3, 7, 11, 15, s[6], s[7]);
+      g(v, m, 0, 5, 10, 15, s[8], s[9]);
+      g(v, m, 1, 6, 11, 12, s[10], s[11]);
+      g(v, m, 2, 7, 8, 13, s[12], s[13]);
+      g(v, m, 3, 4, 9, 14, s[14], s[15]);
+    }
+
+    for (int i = 0; i < 8; i ++) {
+      h[i] ^= v[i] ^ v[i + 8];
+    }
+  }
+
+  private static void g(long[] v, long[] m, int a, int b, int c, int d, int x, int y) {
+    long va = v[a];
+    long vb = v[b];
+    long vc = v[c];
+    long vd = v[d];
+    va += vb + m[x];
+    vd = Long.rotateRight(vd ^ va, 32);
+    vc += vd;
+    vb = Long.rotateRight(vb ^ vc, 24);
+    va += vb + m[y];
+    vd = Long.rotateRight(vd ^ va, 16);
+    vc += vd;
+    vb = Long.rotateRight(vb ^ vc, 63);
+    v[a] = va;
+    v[b] = vb;
+    v[c] = vc;
+    v[d] = vd;
+  }
+
+  private static long littleEndian(byte[] b, int offset) {
+    return (b[offset] & 0xffL)
+        | (b[offset + 1] & 0xffL) << 8
+        | (b[offset + 2] & 0xffL) << 16
+        | (b[offset + 3] & 0xffL) << 24
+        | (b[offset + 4] & 0xffL) << 32
+        | (b[offset + 5] & 0xffL) << 40
+        | (b[offset + 6] & 0xffL) << 48
+        | (b[offset + 7] & 0xffL) << 56;
+  }
+}
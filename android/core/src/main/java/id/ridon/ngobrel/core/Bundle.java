@@ -18,14 +18,27 @@ public class Bundle {
   }
 
   public void populatePreKeys() throws IllegalDataSizeException, NoSuchAlgorithmException, InvalidKeyException {
-    for (int i = 0; i < Constants.MaxPreKeys; i ++) {
-      KeyPair pair = new KeyPair();
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(pair.publicKey.raw());
-      PreKeyId id = new PreKeyId(md.digest());
+    populatePreKeys(Constants.MaxPreKeys);
+  }
+
+  /**
+   * Generates count new prekeys and inserts them into the bundle
+   * @param count The number of prekeys
+   */
+  public void populatePreKeys(int count) throws IllegalDataSizeException, NoSuchAlgorithmException, InvalidKeyException {
+    KeyPair[] pairs = KeyPair.generateBatch(count);
+    MessageDigest md = CryptoPrimitives.digest("SHA-256");
+    try {
+      for (int i = 0; i < count; i ++) {
+        KeyPair pair = pairs[i];
+        md.update(pair.publicKey.raw());
+        PreKeyId id = new PreKeyId(md.digest());
 
-      bundlePrivate.insert(id, pair.privateKey);
-      bundlePublic.insert(id, pair.publicKey);
+        bundlePrivate.insert(id, pair.privateKey);
+        bundlePublic.insert(id, pair.publicKey);
+      }
+    } finally {
+      CryptoPrimitives.release(md);
     }
   }
 }
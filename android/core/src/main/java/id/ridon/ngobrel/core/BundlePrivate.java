@@ -3,7 +3,7 @@ package id.ridon.ngobrel.core;
 
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -11,7 +11,8 @@ import java.util.Set;
 public class BundlePrivate {
   public final PrivateKey identity;
   public final PrivateKey spk;
-  Map<PreKeyId, PrivateKey> preKeys = new HashMap<>();
+  // Kept in insertion order, so that encoding a bundle is deterministic
+  Map<PreKeyId, PrivateKey> preKeys = new LinkedHashMap<>();
 
   public BundlePrivate(PrivateKey identity, PrivateKey spk) {
     this.identity = identity;
@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -12,7 +12,8 @@ import java.util.Set;
 public class BundlePublic {
   public final PublicKey identity;
   public final SignedPreKeyPublic spk;
-  Map<PreKeyId, PublicKey> preKeys = new HashMap<>();
+  // Insertion ordered, so pop hands out the oldest prekey first
+  Map<PreKeyId, PublicKey> preKeys = new LinkedHashMap<>();
 
   public BundlePublic(PublicKey identity, SignedPreKeyPublic spk) {
     this.identity = identity;
@@ -0,0 +1,187 @@
+package id.ridon.ngobrel.core;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Advances a symmetric chain key by one step, in place, writing the message key into a buffer
+ * owned by the caller. The hash and its output buffer are kept per thread, so a step allocates
+ * at most the key spec.
+ */
+public abstract class ChainKeyStepper {
+  /**
+   * The Ratchet chain: HMAC-SHA512(ck, 0x01) is split into the next chain key and the message key
+   */
+  public static final ChainKeyStepper Sha512 = new MacStepper("HmacSHA512", 64);
+
+  /**
+   * The group chain: the message key is HMAC-SHA256(ck, 0x01), the next chain key is
+   * HMAC-SHA256(ck, 0x02)
+   */
+  public static final ChainKeyStepper Sha256 = new MacStepper("HmacSHA256", 32);
+
+  /**
+   * The Ratchet chain of the AesGcmBlake2b suite: BLAKE2b-512 keyed with ck over 0x01, split like
+   * the output of Sha512
+   */
+  public static final ChainKeyStepper Blake2b = new Blake2bStepper();
+
+  private static final byte MessageKeyConstant = 1;
+  private static final byte ChainKeyConstant = 2;
+
+  private ChainKeyStepper() {
+  }
+
+  /**
+   * Advances the chain key and returns the message key of this step
+   * @param chainKey The chain key, it is replaced by the next chain key
+   * @param messageKey Byte array receiving the 32-byte message key
+   * @param offset Where in messageKey to write the key
+   */
+  public abstract void step(Key chainKey, byte[] messageKey, int offset);
+
+  /**
+   * Advances the chain key and returns the message key of this step
+   * @param chainKey The chain key, it is replaced by the next chain key
+   * @return a new Key containing the message key
+   */
+  public Key step(Key chainKey) {
+    Key messageKey = new Key();
+    step(chainKey, messageKey.raw(), 0);
+    return messageKey;
+  }
+
+  /**
+   * Advances the chain key over messages whose keys are not wanted. Sha256 skips the hash of the
+   * message key, the others get both keys from one hash and only skip copying it out.
+   * @param chainKey The chain key, it is replaced by the chain key steps later
+   * @param steps The number of steps
+   */
+  public abstract void advance(Key chainKey, int steps);
+
+  private static final class MacStepper extends ChainKeyStepper {
+    private final String algorithm;
+    private final int macSize;
+
+    private final class State {
+      final Mac mac;
+      final byte[] out = new byte[macSize];
+
+      State() throws NoSuchAlgorithmException {
+        mac = Mac.getInstance(algorithm);
+      }
+    }
+
+    private final ThreadLocal<State> local = new ThreadLocal<State>() {
+      @Override
+      protected State initialValue() {
+        try {
+          return new State();
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+
+    MacStepper(String algorithm, int macSize) {
+      this.algorithm = algorithm;
+      this.macSize = macSize;
+    }
+
+    @Override
+    public void step(Key chainKey, byte[] messageKey, int offset) {
+      State s = local.get();
+      Mac mac = s.mac;
+      byte[] ck = chainKey.raw();
+
+      try {
+        mac.init(new SecretKeySpec(ck, algorithm));
+        mac.update(MessageKeyConstant);
+        mac.doFinal(s.out, 0);
+        if (macSize == 2 * Key.SIZE) {
+          System.arraycopy(s.out, Key.SIZE, messageKey, offset, Key.SIZE);
+        } else {
+          // The Mac keeps its key after doFinal
+          System.arraycopy(s.out, 0, messageKey, offset, Key.SIZE);
+          mac.update(ChainKeyConstant);
+          mac.doFinal(s.out, 0);
+        }
+        System.arraycopy(s.out, 0, ck, 0, Key.SIZE);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        Arrays.fill(s.out, (byte) 0);
+      }
+    }
+
+    @Override
+    public void advance(Key chainKey, int steps) {
+      State s = local.get();
+      Mac mac = s.mac;
+      byte[] ck = chainKey.raw();
+      // The split chains take the chain key from the hash of the message key constant
+      byte constant = macSize == 2 * Key.SIZE ? MessageKeyConstant : ChainKeyConstant;
+
+      try {
+        for (int i = 0; i < steps; i ++) {
+          mac.init(new SecretKeySpec(ck, algorithm));
+          mac.update(constant);
+          mac.doFinal(s.out, 0);
+          System.arraycopy(s.out, 0, ck, 0, Key.SIZE);
+        }
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        Arrays.fill(s.out, (byte) 0);
+      }
+    }
+  }
+
+  private static final class Blake2bStepper extends ChainKeyStepper {
+    private static final class State {
+      final id.ridon.ngobrel.core.Blake2b hash = new id.ridon.ngobrel.core.Blake2b(2 * Key.SIZE);
+      final byte[] out = new byte[2 * Key.SIZE];
+    }
+
+    private final ThreadLocal<State> local = new ThreadLocal<State>() {
+      @Override
+      protected State initialValue() {
+        return new State();
+      }
+    };
+
+    @Override
+    public void step(Key chainKey, byte[] messageKey, int offset) {
+      State s = local.get();
+      byte[] ck = chainKey.raw();
+
+      s.hash.init(ck, 0, Key.SIZE, 2 * Key.SIZE);
+      s.hash.update(MessageKeyConstant);
+      s.hash.doFinal(s.out, 0);
+      System.arraycopy(s.out, Key.SIZE, messageKey, offset, Key.SIZE);
+      System.arraycopy(s.out, 0, ck, 0, Key.SIZE);
+      // Drops the chain key kept by the hash
+      s.hash.init(null, 0, 0, 2 * Key.SIZE);
+      Arrays.fill(s.out, (byte) 0);
+    }
+
+    @Override
+    public void advance(Key chainKey, int steps) {
+      State s = local.get();
+      byte[] ck = chainKey.raw();
+
+      for (int i = 0; i < steps; i ++) {
+        s.hash.init(ck, 0, Key.SIZE, 2 * Key.SIZE);
+        s.hash.update(MessageKeyConstant);
+        s.hash.doFinal(s.out, 0);
+        System.arraycopy(s.out, 0, ck, 0, Key.SIZE);
+      }
+      s.hash.init(null, 0, 0, 2 * Key.SIZE);
+      Arrays.fill(s.out, (byte) 0);
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package id.ridon.ngobrel.core;
+
+/**
+ * The ciphers a session can encrypt its messages with. Messages of every suite other than
+ * Legacy start with the id of their suite, and peers which only know Legacy keep working with
+ * sessions which stay on it. Both sides of a session use the same suite, a message with the id
+ * of another one is turned down before the ratchet moves.
+ */
+public enum CipherSuite {
+  /**
+   * AES-CBC with HMAC-SHA512 and its 64-byte tag, the original format without a version byte
+   */
+  Legacy((byte) 0),
+
+  /**
+   * AES-256-GCM with a 16-byte tag, encrypting and authenticating in a single pass
+   */
+  AesGcm((byte) 1),
+
+  /**
+   * AES-256-GCM like AesGcm, with the chain step and the key derivation of every message done
+   * with keyed BLAKE2b instead of HMAC-SHA512. Not available for group conversations.
+   */
+  AesGcmBlake2b((byte) 2);
+
+  public final byte id;
+
+  CipherSuite(byte id) {
+    this.id = id;
+  }
+
+  // The step of the ratchet chains of a session encrypting with this suite
+  ChainKeyStepper chainKeyStepper() {
+    return this == AesGcmBlake2b ? ChainKeyStepper.Blake2b : ChainKeyStepper.Sha512;
+  }
+
+  /**
+   * Returns the suite having the given id
+   * @param id The id of the suite
+   * @return the CipherSuite, or null if the suite is not known
+   */
+  public static CipherSuite fromId(int id) {
+    for (CipherSuite suite : values()) {
+      if (suite.id == id) {
+        return suite;
+      }
+    }
+    return null;
+  }
+}
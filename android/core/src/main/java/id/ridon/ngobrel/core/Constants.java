@@ -8,9 +8,19 @@ public final class Constants {
   public static final String X3DhMessageInfo = "RidonX3DMessage";
   public static final String RidonRatchetInfo = "Ridon";
   public static final int MaxSkippedMessages = 1024 * 1024;
+  public static final int MaxSkippedMessageKeys = 2000;
+  public static final int MaxSkippedMessageKeyBytes = 128 * 1024;
+  public static final int MaxSkippedChains = 8;
+  public static final int MaxSkippedCheckpoints = 1024;
+  public static final int MaxSkippedMessagesWithCheckpoints = MaxSkippedCheckpoints * SkippedMessageKeys.MaxCheckpointInterval;
   public static final String RidonSesameSharedKey = "RidonSesame-SharedKey";
   public static final String RidonSecretMessage = "R";
   public static final int RidonMagix = 0x201801;
+  public static final int MaxVerificationKeys = 32;
+  public static final String RidonGcmInfo = "RidonGcm";
+  public static final String RidonGroupGcmInfo = "RidonGroupGcm";
+  public static final String RidonFileChunkInfo = "RidonFileChunk";
+  public static final String RidonFileManifestInfo = "RidonFileManifest";
 
   public static byte[] getRidonSalt512() {
     byte[] salt = new byte[64];
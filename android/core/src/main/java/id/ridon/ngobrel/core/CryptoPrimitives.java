@@ -0,0 +1,164 @@
+package id.ridon.ngobrel.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A pool of Cipher, Mac and MessageDigest instances, so that the hot paths do not look up a
+ * provider and build a new object for every message. Each thread has its own small stack of
+ * instances per algorithm, nothing is shared between threads and no lock is taken, which also
+ * keeps virtual threads from being pinned. Instances are handed out with their previous use
+ * forgotten: digests and macs are reset, ciphers must be initialized by the caller anyway.
+ * An instance must not be used after it has been released.
+ *
+ * GCM ciphers are not pooled. The JDK refuses to initialize one for encryption with the key
+ * and IV it last encrypted with, so a reused instance would fail where a new one does not.
+ */
+public final class CryptoPrimitives {
+  // Enough for the nesting found in the library, more would only hold memory
+  static final int MaxPooled = 4;
+
+  private static final class Pool {
+    final HashMap<String, ArrayDeque<Cipher>> ciphers = new HashMap<>();
+    final HashMap<String, ArrayDeque<Mac>> macs = new HashMap<>();
+    final HashMap<String, ArrayDeque<MessageDigest>> digests = new HashMap<>();
+    // Counted per thread, so that borrowing does not touch memory shared between cores
+    long hits;
+    long misses;
+  }
+
+  private static final ThreadLocal<Pool> local = new ThreadLocal<Pool>() {
+    @Override
+    protected Pool initialValue() {
+      return new Pool();
+    }
+  };
+
+  private CryptoPrimitives() {
+  }
+
+  /**
+   * Borrows a cipher
+   * @param transformation The transformation, as given to Cipher.getInstance
+   * @return a Cipher which needs to be initialized before use
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public static Cipher cipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Pool pool = local.get();
+    Cipher c = take(pool, pool.ciphers, transformation);
+    return c != null ? c : Cipher.getInstance(transformation);
+  }
+
+  /**
+   * Borrows a mac. It is reset, but may still hold the key of its previous use.
+   * @param algorithm The algorithm, as given to Mac.getInstance
+   * @return a Mac which needs to be initialized before use
+   * @throws NoSuchAlgorithmException
+   */
+  public static Mac mac(String algorithm) throws NoSuchAlgorithmException {
+    Pool pool = local.get();
+    Mac m = take(pool, pool.macs, algorithm);
+    if (m == null) {
+      return Mac.getInstance(algorithm);
+    }
+    m.reset();
+    return m;
+  }
+
+  /**
+   * Borrows a message digest
+   * @param algorithm The algorithm, as given to MessageDigest.getInstance
+   * @return a MessageDigest ready for use
+   * @throws NoSuchAlgorithmException
+   */
+  public static MessageDigest digest(String algorithm) throws NoSuchAlgorithmException {
+    Pool pool = local.get();
+    MessageDigest md = take(pool, pool.digests, algorithm);
+    if (md == null) {
+      return MessageDigest.getInstance(algorithm);
+    }
+    md.reset();
+    return md;
+  }
+
+  /**
+   * Returns a cipher to the pool of the current thread. GCM ciphers are dropped.
+   * @param cipher The cipher, or null
+   */
+  public static void release(Cipher cipher) {
+    if (cipher != null && !isGcm(cipher.getAlgorithm())) {
+      put(local.get().ciphers, cipher.getAlgorithm(), cipher);
+    }
+  }
+
+  /**
+   * Returns a mac to the pool of the current thread
+   * @param mac The mac, or null
+   */
+  public static void release(Mac mac) {
+    if (mac != null) {
+      put(local.get().macs, mac.getAlgorithm(), mac);
+    }
+  }
+
+  /**
+   * Returns a message digest to the pool of the current thread
+   * @param digest The message digest, or null
+   */
+  public static void release(MessageDigest digest) {
+    if (digest != null) {
+      put(local.get().digests, digest.getAlgorithm(), digest);
+    }
+  }
+
+  /**
+   * Returns the number of borrows of the current thread served from its pool
+   * @return the number of hits
+   */
+  public static long hits() {
+    return local.get().hits;
+  }
+
+  /**
+   * Returns the number of borrows of the current thread which had to create a new instance
+   * @return the number of misses
+   */
+  public static long misses() {
+    return local.get().misses;
+  }
+
+  private static boolean isGcm(String transformation) {
+    return transformation.toUpperCase(Locale.ROOT).contains("/GCM/");
+  }
+
+  private static <T> T take(Pool pool, HashMap<String, ArrayDeque<T>> instances, String algorithm) {
+    ArrayDeque<T> stack = instances.get(algorithm);
+    T t = stack == null ? null : stack.pollFirst();
+    if (t == null) {
+      pool.misses ++;
+    } else {
+      pool.hits ++;
+    }
+    return t;
+  }
+
+  private static <T> void put(HashMap<String, ArrayDeque<T>> pool, String algorithm, T t) {
+    ArrayDeque<T> stack = pool.get(algorithm);
+    if (stack == null) {
+      stack = new ArrayDeque<>(MaxPooled);
+      pool.put(algorithm, stack);
+    }
+    // Releasing twice would hand the same instance to two borrowers
+    if (stack.size() < MaxPooled && !stack.contains(t)) {
+      stack.push(t);
+    }
+  }
+}
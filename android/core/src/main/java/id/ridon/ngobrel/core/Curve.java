@@ -9,6 +9,10 @@ package id.ridon.ngobrel.core;
  * Based on work by Daniel J Bernstein, http://cr.yp.to/ecdh.html
  */
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
 public class Curve {
 
   /* key size */
@@ -65,8 +69,33 @@ public class Curve {
    *
    * WARNING: if s is not NULL, this function has data-dependent timing */
   public static final void keygen(byte[] P, byte[] s, byte[] k) {
+    keygen(P, s, k, CurveContext.get());
+  }
+
+  /* Same as keygen, using the scratch space of ctx  */
+  public static final void keygen(byte[] P, byte[] s, byte[] k, CurveContext ctx) {
+    clamp(k);
+    core_base(P, s, k, ctx.scratch);
+    ctx.scratch.wipe();
+  }
+
+  /* Batch form of keygen for the first n entries of P, s and k.
+   * Gives the same keys as calling keygen on each, s may be null. */
+  public static final void keygenBatch(byte[][] P, byte[][] s, byte[][] k, int n, CurveContext ctx) {
+    for (int i = 0; i < n; i++)
+      clamp(k[i]);
+    core_base_batch(P, s, k, n, ctx.scratch);
+    ctx.scratch.wipe();
+  }
+
+  /* Key-pair generation through the variable-base Montgomery ladder.
+   * Gives the same output as keygen, kept as a reference for tests and
+   * benchmarks. */
+  static final void keygenLadder(byte[] P, byte[] s, byte[] k) {
+    Scratch sc = CurveContext.get().scratch;
     clamp(k);
-    core(P, s, k, null);
+    core(P, s, k, null, sc);
+    sc.wipe();
   }
 
   /* Key agreement
@@ -75,7 +104,28 @@ public class Curve {
    *   P  [in]  peer's public key
    */
   public static final void curve(byte[] Z, byte[] k, byte[] P) {
-    core(Z, null, k, P);
+    curve(Z, k, P, CurveContext.get());
+  }
+
+  /* Same as curve, using the scratch space of ctx  */
+  public static final void curve(byte[] Z, byte[] k, byte[] P, CurveContext ctx) {
+    core(Z, null, k, P, ctx.scratch);
+    ctx.scratch.wipe();
+  }
+
+  /* Batch form of curve,  Z[i] = k[i] P[i]  for every i
+   *   Z  [out] shared secrets (needs 32 bytes each)
+   *   k  [in]  your private keys
+   *   P  [in]  their public keys
+   * The same as calling curve for each, only cheaper as the ladders share
+   * one final inversion. */
+  public static final void curveBatch(byte[][] Z, byte[][] k, byte[][] P) {
+    curveBatch(Z, k, P, CurveContext.get());
+  }
+
+  public static final void curveBatch(byte[][] Z, byte[][] k, byte[][] P, CurveContext ctx) {
+    core_batch(Z, k, P, Z.length, ctx.scratch);
+    ctx.scratch.wipe();
   }
 
   /********* DIGITAL SIGNATURES *********/
@@ -161,48 +211,138 @@ public class Curve {
    *   P  [in]  public key
    */
   public static final void verify(byte[] Y, byte[] v, byte[] h, byte[] P) {
+    verify(Y, v, h, P, CurveContext.get());
+  }
+
+  /* Same as verify, using the scratch space of ctx  */
+  public static final void verify(byte[] Y, byte[] v, byte[] h, byte[] P, CurveContext ctx) {
 		/* Y = v abs(P) + h G  */
-    byte[] d=new byte[32];
-    long10[]
-        p=new long10[]{new long10(),new long10()},
-        s=new long10[]{new long10(),new long10()},
-        yx=new long10[]{new long10(),new long10(),new long10()},
-        yz=new long10[]{new long10(),new long10(),new long10()},
-        t1=new long10[]{new long10(),new long10(),new long10()},
-        t2=new long10[]{new long10(),new long10(),new long10()};
+    Scratch sc = ctx.scratch;
+    long10 yx = sc.yx[0], yz = sc.yz[0];
 
-    int vi = 0, hi = 0, di = 0, nvh=0, i, j, k;
+    verify_prepare(sc.x[1], sc.z[0], sc.z[1], P, sc);
+    verify_chain(yx, yz, v, h, sc.x[1], sc.z[0], sc.z[1], sc);
 
-		/* set p[0] to G and p[1] to P  */
+    recip(sc.t1[0], yz, 0, sc.r);
+    mul(sc.t1[1], yx, sc.t1[0]);
+    pack(sc.t1[1], Y);
+  }
 
-    set(p[0], 9);
-    unpack(p[1], P);
+  /* Batch form of verify,  Y[i] = v[i] abs(P[i]) + h[i] G  for i < n
+   * Each distinct public key is prepared once, and the final inversions of
+   * the whole batch share a single recip (Montgomery's trick). */
+  public static final void verifyBatch(byte[][] Y, byte[][] v, byte[][] h, byte[][] P, int n, CurveContext ctx) {
+    Scratch sc = ctx.scratch;
+    HashMap<ByteBuffer, PreparedKey> prepared = new HashMap<ByteBuffer, PreparedKey>();
+    long10[] x = long10s(n), z = long10s(n);
+    int i;
+
+    for (i = 0; i < n; i++) {
+      ByteBuffer id = ByteBuffer.wrap(P[i]);
+      PreparedKey pk = prepared.get(id);
+      if (pk == null) {
+        pk = prepare(P[i], ctx);
+        prepared.put(id, pk);
+      }
+      verify_chain(x[i], z[i], v[i], h[i], pk.p1, pk.s0, pk.s1, sc);
+    }
+
+    batch_recip(z, n, sc.r);
+    for (i = 0; i < n; i++) {
+      mul(sc.t1[0], x[i], z[i]);
+      pack(sc.t1[0], Y[i]);
+    }
+  }
+
+  /* The part of verify which only depends on the public key P, so that it can
+   * be computed once and reused for every signature made with that key */
+  public static final class PreparedKey {
+    private final long10 p1 = new long10(), s0 = new long10(), s1 = new long10();
+
+    private PreparedKey() {
+    }
+  }
+
+  public static final PreparedKey prepare(byte[] P) {
+    return prepare(P, CurveContext.get());
+  }
+
+  public static final PreparedKey prepare(byte[] P, CurveContext ctx) {
+    PreparedKey pk = new PreparedKey();
+    verify_prepare(pk.p1, pk.s0, pk.s1, P, ctx.scratch);
+    return pk;
+  }
+
+  /* Same as verify, with P given by prepare  */
+  public static final void verify(byte[] Y, byte[] v, byte[] h, PreparedKey P, CurveContext ctx) {
+    Scratch sc = ctx.scratch;
+    long10 yx = sc.yx[0], yz = sc.yz[0];
+
+    verify_chain(yx, yz, v, h, P.p1, P.s0, P.s1, sc);
+
+    recip(sc.t1[0], yz, 0, sc.r);
+    mul(sc.t1[1], yx, sc.t1[0]);
+    pack(sc.t1[1], Y);
+  }
+
+  /* p1 = P,  s0 = X(abs(P) + G),  s1 = X(abs(P) - G)
+   * This only depends on the public key, see verify_chain */
+  private static final void verify_prepare(long10 p1, long10 s0, long10 s1, byte[] P, Scratch sc) {
+    long10[]
+        s=sc.yz,
+        t1=sc.t1,
+        t2=sc.t2;
+    int j;
+
+    unpack(p1, P);
 
 		/* set s[0] to P+G and s[1] to P-G  */
 
 		/* s[0] = (Py^2 + Gy^2 - 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
 		/* s[1] = (Py^2 + Gy^2 + 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
 
-    x_to_y2(t1[0], t2[0], p[1]);	/* t2[0] = Py^2  */
-    sqrt(t1[0], t2[0]);	/* t1[0] = Py or -Py  */
+    x_to_y2(t1[0], t2[0], p1);	/* t2[0] = Py^2  */
+    sqrt(t1[0], t2[0], sc.q, sc.r);	/* t1[0] = Py or -Py  */
     j = is_negative(t1[0]);		/*      ... check which  */
     t2[0]._0 += 39420360;		/* t2[0] = Py^2 + Gy^2  */
     mul(t2[1], BASE_2Y, t1[0]);/* t2[1] = 2 Py Gy or -2 Py Gy  */
     sub(t1[j], t2[0], t2[1]);	/* t1[0] = Py^2 + Gy^2 - 2 Py Gy  */
     add(t1[1-j], t2[0], t2[1]);/* t1[1] = Py^2 + Gy^2 + 2 Py Gy  */
-    cpy(t2[0], p[1]);		/* t2[0] = Px  */
+    cpy(t2[0], p1);		/* t2[0] = Px  */
     t2[0]._0 -= 9;			/* t2[0] = Px - Gx  */
     sqr(t2[1], t2[0]);		/* t2[1] = (Px - Gx)^2  */
-    recip(t2[0], t2[1], 0);	/* t2[0] = 1/(Px - Gx)^2  */
+    recip(t2[0], t2[1], 0, sc.r);	/* t2[0] = 1/(Px - Gx)^2  */
     mul(s[0], t1[0], t2[0]);	/* s[0] = t1[0]/(Px - Gx)^2  */
-    sub(s[0], s[0], p[1]);	/* s[0] = t1[0]/(Px - Gx)^2 - Px  */
+    sub(s[0], s[0], p1);	/* s[0] = t1[0]/(Px - Gx)^2 - Px  */
     s[0]._0 -= 9 + 486662;		/* s[0] = X(P+G)  */
     mul(s[1], t1[1], t2[0]);	/* s[1] = t1[1]/(Px - Gx)^2  */
-    sub(s[1], s[1], p[1]);	/* s[1] = t1[1]/(Px - Gx)^2 - Px  */
+    sub(s[1], s[1], p1);	/* s[1] = t1[1]/(Px - Gx)^2 - Px  */
     s[1]._0 -= 9 + 486662;		/* s[1] = X(P-G)  */
-    mul_small(s[0], s[0], 1);	/* reduce s[0] */
-    mul_small(s[1], s[1], 1);	/* reduce s[1] */
+    mul_small(s0, s[0], 1);	/* reduce s[0] */
+    mul_small(s1, s[1], 1);	/* reduce s[1] */
+  }
 
+  /* Projective  Y = v abs(P) + h G  given the output of verify_prepare,
+   * returned as X(Y) = yx/yz */
+  private static final void verify_chain(long10 yxOut, long10 yzOut, byte[] v, byte[] h,
+                                         long10 p1, long10 s0, long10 s1, Scratch sc) {
+    byte[] d=sc.b32a;
+    long10[]
+        p=sc.x,
+        s=sc.z,
+        yx=sc.yx,
+        yz=sc.yz,
+        t1=sc.t1,
+        t2=sc.t2;
+
+    int vi = 0, hi = 0, di = 0, nvh=0, i, j, k;
+
+		/* set p[0] to G and p[1] to P  */
+
+    set(p[0], 9);
+    cpy(p[1], p1);
+    cpy(s[0], s0);
+    cpy(s[1], s1);
 
 		/* prepare the chain  */
     for (i = 0; i < 32; i++) {
@@ -264,10 +404,8 @@ public class Curve {
     }
 
     k = (vi & 1) + (hi & 1);
-    recip(t1[0], yz[k], 0);
-    mul(t1[1], yx[k], t1[0]);
-
-    pack(t1[1], Y);
+    cpy(yxOut, yx[k]);
+    cpy(yzOut, yz[k]);
   }
 
   ///////////////////////////////////////////////////////////////////////////
@@ -363,8 +501,9 @@ public class Curve {
    * Also, the returned buffer contains the inverse of a mod b,
    * as 32-byte signed.
    * x and y must have 64 bytes space for temporary use.
-   * requires that a[-1] and b[-1] are valid memory locations  */
-  private static final byte[] egcd32(byte[] x,byte[] y,byte[] a,byte[] b) {
+   * requires that a[-1] and b[-1] are valid memory locations
+   * temp is 32 bytes of scratch  */
+  private static final byte[] egcd32(byte[] x,byte[] y,byte[] a,byte[] b,byte[] temp) {
     int an, bn = 32, qn, i;
     for (i = 0; i < 32; i++)
       x[i] = y[i] = 0;
@@ -372,7 +511,6 @@ public class Curve {
     an = numsize(a, 32);
     if (an==0)
       return y;	/* division by zero */
-    byte[] temp=new byte[32];
     while (true) {
       qn = bn - an + 1;
       divmod(temp, b, bn, a, an);
@@ -499,6 +637,12 @@ public class Curve {
     out._8=0;	out._9=0;
   }
 
+  /* Set every number of an array to zero */
+  private static final void wipe(long10[] a) {
+    for (int i = 0; i < a.length; i++)
+      set(a[i], 0);
+  }
+
   /* Add/subtract two numbers.  The inputs must be in reduced form, and the
    * output isn't, so to do another addition or subtraction on the output,
    * first multiply it by one to reduce it. */
@@ -667,13 +811,14 @@ public class Curve {
   /* Calculates a reciprocal.  The output is in reduced form, the inputs need not
    * be.  Simply calculates  y = x^(p-2)  so it's not too fast. */
 	/* When sqrtassist is true, it instead calculates y = x^((p-5)/8) */
-  private static final void recip(long10 y, long10 x, int sqrtassist) {
+	/* t holds 5 temporaries */
+  private static final void recip(long10 y, long10 x, int sqrtassist, long10[] t) {
     long10
-        t0=new long10(),
-        t1=new long10(),
-        t2=new long10(),
-        t3=new long10(),
-        t4=new long10();
+        t0=t[0],
+        t1=t[1],
+        t2=t[2],
+        t3=t[3],
+        t4=t[4];
     int i;
 		/* the chain for x^(2^255-21) is straight from djb's implementation */
     sqr(t1, x);	/*  2 == 2 * 1	*/
@@ -740,16 +885,53 @@ public class Curve {
     }
   }
 
+  /* x[i] = 1/x[i] for i < n, sharing a single recip between all of them
+   * (Montgomery's trick). Like recip, zero is mapped to zero. */
+  private static final void batch_recip(long10[] x, int n, long10[] t /*5*/) {
+    long10[] prefix = long10s(n);
+    boolean[] zero = new boolean[n];
+    byte[] m = new byte[32];
+    long10 acc = new long10(), inv = new long10();
+    int i;
+
+    set(acc, 1);
+    for (i = 0; i < n; i++) {
+      zero[i] = is_zero(x[i], m);
+      if (zero[i])
+        set(x[i], 1);
+      cpy(prefix[i], acc);
+      mul(acc, acc, x[i]);	/* acc = x[0] ... x[i] */
+    }
+    recip(inv, acc, 0, t);
+    for (i = n; i-- != 0; ) {
+      mul(acc, prefix[i], inv);	/* acc = 1/x[i] */
+      mul(inv, inv, x[i]);	/* inv = 1/(x[0] ... x[i-1]) */
+      if (zero[i])
+        set(x[i], 0);
+      else
+        cpy(x[i], acc);
+    }
+  }
+
+  /* checks if x is zero mod p, m is a 32 byte temporary */
+  private static final boolean is_zero(long10 x, byte[] m) {
+    int z = 0;
+    pack(x, m);
+    for (int i = 0; i < 32; i++)
+      z |= m[i];
+    return z == 0;
+  }
+
   /* checks if x is "negative", requires reduced input */
   private static final int is_negative(long10 x) {
     return (int)(((is_overflow(x) || (x._9 < 0))?1:0) ^ (x._0 & 1));
   }
 
-  /* a square root */
-  private static final void sqrt(long10 x, long10 u) {
-    long10 v=new long10(), t1=new long10(), t2=new long10();
+  /* a square root, q holds 3 temporaries and r 5 more for recip */
+  private static final void sqrt(long10 x, long10 u, long10[] q, long10[] r) {
+    long10 v=q[0], t1=q[1], t2=q[2];
     add(t1, u, u);	/* t1 = 2u		*/
-    recip(v, t1, 1);	/* v = (2u)^((p-5)/8)	*/
+    recip(v, t1, 1, r);	/* v = (2u)^((p-5)/8)	*/
     sqr(x, v);		/* x = v^2		*/
     mul(t2, t1, x);	/* t2 = 2uv^2		*/
     t2._0--;		/* t2 = 2uv^2-1		*/
@@ -809,16 +991,51 @@ public class Curve {
   }
 
   /* P = kG   and  s = sign(P)/k  */
-  private static final void core(byte[] Px, byte[] s, byte[] k, byte[] Gx) {
+  private static final void core(byte[] Px, byte[] s, byte[] k, byte[] Gx, Scratch sc) {
+    long10
+        dx=sc.dx,
+        t1=sc.t1[0],
+        t2=sc.t1[1],
+        t3=sc.t1[2];
+    long10[]
+        x=sc.x,
+        z=sc.z;
+
+    ladder(k, Gx, sc);
+
+    recip(t1, z[0], 0, sc.r);
+    mul(dx, x[0], t1);
+    pack(dx, Px);
+
+		/* calculate s such that s abs(P) = G  .. assumes G is std base point */
+    if (s!=null) {
+      x_to_y2(t2, t1, dx);	/* t1 = Py^2  */
+      recip(t3, z[1], 0, sc.r);	/* where Q=P+G ... */
+      mul(t2, x[1], t3);	/* t2 = Qx  */
+      add(t2, t2, dx);	/* t2 = Qx + Px  */
+      t2._0 += 9 + 486662;	/* t2 = Qx + Px + Gx + 486662  */
+      dx._0 -= 9;		/* dx = Px - Gx  */
+      sqr(t3, dx);	/* t3 = (Px - Gx)^2  */
+      mul(dx, t2, t3);	/* dx = t2 (Px - Gx)^2  */
+      sub(dx, dx, t1);	/* dx = t2 (Px - Gx)^2 - Py^2  */
+      dx._0 -= 39420360;	/* dx = t2 (Px - Gx)^2 - Py^2 - Gy^2  */
+      mul(t1, dx, BASE_R2Y);	/* t1 = -Py  */
+      signing_key(s, k, t1, sc);
+    }
+  }
+
+  /* Montgomery ladder:  x[0]/z[0] = kG  and  x[1]/z[1] = (k+1)G  in sc,
+   * G the standard base point if Gx is null */
+  private static final void ladder(byte[] k, byte[] Gx, Scratch sc) {
     long10
-        dx=new long10(),
-        t1=new long10(),
-        t2=new long10(),
-        t3=new long10(),
-        t4=new long10();
+        dx=sc.dx,
+        t1=sc.t1[0],
+        t2=sc.t1[1],
+        t3=sc.t1[2],
+        t4=sc.t2[0];
     long10[]
-        x=new long10[]{new long10(),new long10()},
-        z=new long10[]{new long10(),new long10()};
+        x=sc.x,
+        z=sc.z;
     int i, j;
 
 		/* unpack the base */
@@ -856,41 +1073,469 @@ public class Curve {
         mont_dbl(t1, t2, t3, t4, bx, bz);
       }
     }
+  }
 
-    recip(t1, z[0], 0);
-    mul(dx, x[0], t1);
-    pack(dx, Px);
+  /* Batch form of curve for the first n entries, the final inversions of
+   * all the ladders share one recip */
+  private static final void core_batch(byte[][] Px, byte[][] k, byte[][] Gx, int n, Scratch sc) {
+    long10[] x = long10s(n), z = long10s(n);
+    int i;
 
-		/* calculate s such that s abs(P) = G  .. assumes G is std base point */
-    if (s!=null) {
-      x_to_y2(t2, t1, dx);	/* t1 = Py^2  */
-      recip(t3, z[1], 0);	/* where Q=P+G ... */
-      mul(t2, x[1], t3);	/* t2 = Qx  */
-      add(t2, t2, dx);	/* t2 = Qx + Px  */
-      t2._0 += 9 + 486662;	/* t2 = Qx + Px + Gx + 486662  */
-      dx._0 -= 9;		/* dx = Px - Gx  */
-      sqr(t3, dx);	/* t3 = (Px - Gx)^2  */
-      mul(dx, t2, t3);	/* dx = t2 (Px - Gx)^2  */
-      sub(dx, dx, t1);	/* dx = t2 (Px - Gx)^2 - Py^2  */
-      dx._0 -= 39420360;	/* dx = t2 (Px - Gx)^2 - Py^2 - Gy^2  */
-      mul(t1, dx, BASE_R2Y);	/* t1 = -Py  */
-      if (is_negative(t1)!=0)	/* sign is 1, so just copy  */
-        cpy32(s, k);
-      else			/* sign is -1, so negate  */
-        mula_small(s, ORDER_TIMES_8, 0, k, 32, -1);
-
-			/* reduce s mod q
-			 * (is this needed?  do it just in case, it's fast anyway) */
-      //divmod((dstptr) t1, s, 32, order25519, 32);
-
-			/* take reciprocal of s mod q */
-      byte[] temp1=new byte[32];
-      byte[] temp2=new byte[64];
-      byte[] temp3=new byte[64];
-      cpy32(temp1, ORDER);
-      cpy32(s, egcd32(temp2, temp3, s, temp1));
-      if ((s[31] & 0x80)!=0)
-        mula_small(s, s, 0, ORDER, 32, 1);
+    for (i = 0; i < n; i++) {
+      ladder(k[i], Gx[i], sc);
+      cpy(x[i], sc.x[0]);
+      cpy(z[i], sc.z[0]);
+    }
+
+    batch_recip(z, n, sc.r);
+    for (i = 0; i < n; i++) {
+      mul(sc.dx, x[i], z[i]);
+      pack(sc.dx, Px[i]);
+    }
+    wipe(x);
+    wipe(z);
+  }
+
+  /* s = sign(P)/k  mod q,  where negPy is -Py in reduced form */
+  private static final void signing_key(byte[] s, byte[] k, long10 negPy, Scratch sc) {
+    signing_sign(s, k, negPy);
+    recip_order(s, sc);
+  }
+
+  /* s = sign(P) k,  the signing key before taking its reciprocal */
+  private static final void signing_sign(byte[] s, byte[] k, long10 negPy) {
+    if (is_negative(negPy)!=0)	/* sign is 1, so just copy  */
+      cpy32(s, k);
+    else			/* sign is -1, so negate  */
+      mula_small(s, ORDER_TIMES_8, 0, k, 32, -1);
+
+		/* reduce s mod q
+		 * (is this needed?  do it just in case, it's fast anyway) */
+    //divmod((dstptr) t1, s, 32, order25519, 32);
+  }
+
+  /* s = 1/s  mod q */
+  private static final void recip_order(byte[] s, Scratch sc) {
+    byte[] temp1=sc.b32a;
+    byte[] temp2=sc.b64a;
+    byte[] temp3=sc.b64b;
+    cpy32(temp1, ORDER);
+    cpy32(s, egcd32(temp2, temp3, s, temp1, sc.b32b));
+    if ((s[31] & 0x80)!=0)
+      mula_small(s, s, 0, ORDER, 32, 1);
+  }
+
+  /********************* Fixed-base (twisted Edwards) *********************/
+
+	/* Curve25519 is birationally equivalent to the twisted Edwards curve
+	 *   -x^2 + y^2 = 1 + d x^2 y^2,   d = -121665/121666
+	 * through  u = (1+y)/(1-y),  v = C u/x,  C^2 = -486664.
+	 * The Edwards addition law is complete, so multiples of the base point
+	 * can be tabulated once and kG computed with table additions only
+	 * (same layout as ref10: 32 rows of 8 multiples of 256^i G). */
+
+  /* extended coordinates  x = X/Z, y = Y/Z, xy = T/Z */
+  private static final class ge {
+    final long10 X = new long10(), Y = new long10(), Z = new long10(), T = new long10();
+  }
+
+  /* affine precomputed point  y+x, y-x, 2dxy */
+  private static final class ge_niels {
+    final long10 ypx = new long10(), ymx = new long10(), xy2d = new long10();
+  }
+
+  /* Built on first use and shared by the whole process */
+  private static final class BaseTable {
+    static final long10 D2 = new long10();	/* 2d */
+    static final long10 NEG_C = new long10();	/* -C, maps Edwards to Montgomery y */
+    static final ge_niels[][] TABLE = new ge_niels[32][8];
+
+    static {
+      long10 t0 = new long10(), t1 = new long10(), t2 = new long10();
+      long10 d = new long10();
+      long10[] sq = long10s(3), r = long10s(5);
+
+			/* d = -121665/121666 */
+      set(t0, 121666);
+      recip(t1, t0, 0, r);
+      mul_small(d, t1, -121665);
+      add(D2, d, d);
+      mul_small(D2, D2, 1);
+
+			/* G: y = 4/5,  x^2 = (y^2 - 1)/(d y^2 + 1) */
+      ge g = new ge();
+      set(t0, 5);
+      recip(t1, t0, 0, r);
+      mul_small(g.Y, t1, 4);
+      sqr(t0, g.Y);
+      mul(t1, t0, d);
+      t1._0 += 1;	/* d y^2 + 1 */
+      t0._0 -= 1;	/* y^2 - 1 */
+      recip(t2, t1, 0, r);
+      mul(t1, t0, t2);
+      sqrt(g.X, t1, sq, r);
+      mul_small(g.X, g.X, 1);
+      set(g.Z, 1);
+      mul(g.T, g.X, g.Y);
+
+			/* C = Gy x/u  with u = 9 and Gy taken from BASE_2Y, so that the
+			 * mapping agrees with the sign convention of the ladder */
+      set(t0, 18);
+      recip(t1, t0, 0, r);
+      mul(t0, BASE_2Y, t1);
+      mul(t1, t0, g.X);
+      set(t0, 0);
+      sub(t0, t0, t1);
+      mul_small(NEG_C, t0, 1);
+
+			/* TABLE[i][j] = (j+1) 256^i G, kept projective until the end */
+      ge[] points = new ge[32 * 8];
+      ge p = new ge();
+      long10[] scratch = long10s(4);
+      for (int i = 0; i < 32; i++) {
+        ge q = new ge();
+        ge_cpy(q, g);
+        points[i * 8] = q;
+        for (int j = 1; j < 8; j++) {
+          q = new ge();
+          ge_add(q, points[i * 8 + j - 1], g, scratch);
+          points[i * 8 + j] = q;
+        }
+        ge_cpy(p, g);
+        for (int j = 0; j < 8; j++) {
+          ge_dbl(p, p, scratch);
+        }
+        ge_cpy(g, p);
+      }
+
+			/* one shared inversion for all Z */
+      long10[] zinv = new long10[points.length];
+      for (int i = 0; i < points.length; i++) {
+        zinv[i] = points[i].Z;
+      }
+      batch_recip(zinv, points.length, r);
+
+      for (int i = 0; i < points.length; i++) {
+        ge_niels n = new ge_niels();
+        mul(t1, points[i].X, zinv[i]);	/* x */
+        mul(t2, points[i].Y, zinv[i]);	/* y */
+        add(n.ypx, t2, t1);
+        mul_small(n.ypx, n.ypx, 1);
+        sub(n.ymx, t2, t1);
+        mul_small(n.ymx, n.ymx, 1);
+        mul(t0, t1, t2);
+        mul(n.xy2d, t0, D2);
+        TABLE[i / 8][i % 8] = n;
+      }
+    }
+  }
+
+  private static final long10[] long10s(int n) {
+    long10[] a = new long10[n];
+    for (int i = 0; i < n; i++)
+      a[i] = new long10();
+    return a;
+  }
+
+  private static final void ge_cpy(ge r, ge p) {
+    cpy(r.X, p.X);
+    cpy(r.Y, p.Y);
+    cpy(r.Z, p.Z);
+    cpy(r.T, p.T);
+  }
+
+  /* r = p + q  (add-2008-hwcd-3), r may alias p or q */
+  private static final void ge_add(ge r, ge p, ge q, long10[] t) {
+    sub(t[0], p.Y, p.X);
+    sub(t[1], q.Y, q.X);
+    mul(t[0], t[0], t[1]);	/* A = (Y1-X1)(Y2-X2) */
+    add(t[1], p.Y, p.X);
+    add(t[2], q.Y, q.X);
+    mul(t[1], t[1], t[2]);	/* B = (Y1+X1)(Y2+X2) */
+    mul(t[2], p.T, q.T);
+    mul(t[2], t[2], BaseTable.D2);	/* C = 2d T1 T2 */
+    mul(t[3], p.Z, q.Z);
+    mul_small(t[3], t[3], 2);	/* D = 2 Z1 Z2 */
+    ge_finish(r, t);
+  }
+
+  /* r = p + q  for a precomputed q, r may alias p */
+  private static final void ge_madd(ge r, ge p, ge_niels q, long10[] t) {
+    sub(t[0], p.Y, p.X);
+    mul(t[0], t[0], q.ymx);	/* A = (Y1-X1)(y2-x2) */
+    add(t[1], p.Y, p.X);
+    mul(t[1], t[1], q.ypx);	/* B = (Y1+X1)(y2+x2) */
+    mul(t[2], p.T, q.xy2d);	/* C = 2d T1 x2 y2 */
+    mul_small(t[3], p.Z, 2);	/* D = 2 Z1 */
+    ge_finish(r, t);
+  }
+
+  /* X3 = EF, Y3 = GH, T3 = EH, Z3 = FG  from t = {A, B, C, D} */
+  private static final void ge_finish(ge r, long10[] t) {
+    sub(r.X, t[1], t[0]);	/* E = B - A */
+    add(r.Y, t[1], t[0]);	/* H = B + A */
+    sub(r.Z, t[3], t[2]);	/* F = D - C */
+    add(r.T, t[3], t[2]);	/* G = D + C */
+    mul(t[0], r.X, r.Z);
+    mul(t[1], r.T, r.Y);
+    mul(t[2], r.Z, r.T);
+    mul(r.T, r.X, r.Y);
+    cpy(r.X, t[0]);
+    cpy(r.Y, t[1]);
+    cpy(r.Z, t[2]);
+  }
+
+  /* r = 2p  (dbl-2008-hwcd), r may alias p */
+  private static final void ge_dbl(ge r, ge p, long10[] t) {
+    sqr(t[0], p.X);	/* A = X1^2 */
+    sqr(t[1], p.Y);	/* B = Y1^2 */
+    sqr(t[2], p.Z);
+    mul_small(t[2], t[2], 2);	/* C = 2 Z1^2 */
+    add(t[3], p.X, p.Y);
+    sqr(t[3], t[3]);	/* (X1+Y1)^2 */
+    set(r.Y, 0);
+    sub(r.Y, r.Y, t[0]);
+    sub(r.Y, r.Y, t[1]);	/* H = -A - B */
+    sub(r.Z, t[1], t[0]);	/* G = B - A */
+    add(r.X, t[3], r.Y);
+    mul_small(r.X, r.X, 1);	/* E = (X1+Y1)^2 - A - B */
+    sub(r.T, r.Z, t[2]);	/* F = G - C */
+    mul(t[0], r.X, r.T);
+    mul(t[1], r.Z, r.Y);
+    mul(t[2], r.X, r.Y);
+    mul(r.Z, r.T, r.Z);
+    cpy(r.X, t[0]);
+    cpy(r.Y, t[1]);
+    cpy(r.T, t[2]);
+  }
+
+  /* out = b ? in : out,  in constant time */
+  private static final void cmov(long10 out, long10 in, int b) {
+    long m = -(long)b;
+    out._0 ^= m & (out._0 ^ in._0);	out._1 ^= m & (out._1 ^ in._1);
+    out._2 ^= m & (out._2 ^ in._2);	out._3 ^= m & (out._3 ^ in._3);
+    out._4 ^= m & (out._4 ^ in._4);	out._5 ^= m & (out._5 ^ in._5);
+    out._6 ^= m & (out._6 ^ in._6);	out._7 ^= m & (out._7 ^ in._7);
+    out._8 ^= m & (out._8 ^ in._8);	out._9 ^= m & (out._9 ^ in._9);
+  }
+
+  /* t = b 256^pos G  for b in -8 .. 8, without data-dependent branches */
+  private static final void ge_select(ge_niels t, long10 neg, int pos, int b) {
+    int bnegative = (b >>> 31);
+    int babs = b - (((-bnegative) & b) << 1);
+    ge_niels[] row = BaseTable.TABLE[pos];
+
+    set(t.ypx, 1);
+    set(t.ymx, 1);
+    set(t.xy2d, 0);
+    for (int j = 0; j < 8; j++) {
+      int eq = ((babs ^ (j + 1)) - 1) >>> 31;
+      cmov(t.ypx, row[j].ypx, eq);
+      cmov(t.ymx, row[j].ymx, eq);
+      cmov(t.xy2d, row[j].xy2d, eq);
+    }
+
+		/* -t = (y-x, y+x, -2dxy) */
+    cpy(neg, t.ypx);
+    cmov(t.ypx, t.ymx, bnegative);
+    cmov(t.ymx, neg, bnegative);
+    set(neg, 0);
+    sub(neg, neg, t.xy2d);
+    cmov(t.xy2d, neg, bnegative);
+  }
+
+  /* P = kG   and  s = sign(P)/k,  G the standard base point */
+  private static final void core_base(byte[] Px, byte[] s, byte[] k, Scratch sc) {
+    ge h = sc.h;
+    long10 t1 = sc.t1[0], t2 = sc.t1[1], t3 = sc.t1[2];
+
+    ge_scalarmult_base(h, k, sc);
+
+    add(t2, h.Z, h.Y);	/* Z + Y */
+    sub(t3, h.Z, h.Y);	/* Z - Y */
+    if (s == null) {
+			/* u = (Z + Y)/(Z - Y) */
+      recip(t1, t3, 0, sc.r);
+      mul(t3, t2, t1);
+      pack(t3, Px);
+      return;
+    }
+
+		/* one inversion for both u and u/x:  1/((Z - Y) X) */
+    mul(t1, t3, h.X);
+    recip(t3, t1, 0, sc.r);
+    mul(t1, t2, h.X);
+    mul(t1, t1, t3);	/* u = (Z + Y)/(Z - Y) */
+    pack(t1, Px);
+    mul(t1, t2, h.Z);
+    mul(t1, t1, t3);	/* u/x */
+    mul(t2, t1, BaseTable.NEG_C);	/* -Py = -C u/x */
+    signing_key(s, k, t2, sc);
+  }
+
+  /* Batch form of core_base for n keys.  The field inversions of all keys
+   * share one recip, and the reciprocals mod q of the signing keys share
+   * one egcd32 (Montgomery's trick in both cases). */
+  private static final void core_base_batch(byte[][] Px, byte[][] s, byte[][] k, int n, Scratch sc) {
+    ge h = sc.h;
+    long10 t1 = sc.t1[0], t2 = sc.t1[1];
+    long10[] zpy = long10s(n), d = long10s(n), x = null, z = null;
+    int i;
+
+    if (s != null) {
+      x = long10s(n);
+      z = long10s(n);
+    }
+
+    for (i = 0; i < n; i++) {
+      ge_scalarmult_base(h, k[i], sc);
+      add(zpy[i], h.Z, h.Y);	/* Z + Y */
+      sub(d[i], h.Z, h.Y);	/* Z - Y */
+      if (s != null) {
+        mul(d[i], d[i], h.X);	/* (Z - Y) X */
+        cpy(x[i], h.X);
+        cpy(z[i], h.Z);
+      }
+    }
+    batch_recip(d, n, sc.r);
+
+    for (i = 0; i < n; i++) {
+      if (s == null) {
+        mul(t1, zpy[i], d[i]);	/* u = (Z + Y)/(Z - Y) */
+        pack(t1, Px[i]);
+        continue;
+      }
+      mul(t1, zpy[i], x[i]);
+      mul(t1, t1, d[i]);	/* u */
+      pack(t1, Px[i]);
+      mul(t1, zpy[i], z[i]);
+      mul(t1, t1, d[i]);	/* u/x */
+      mul(t2, t1, BaseTable.NEG_C);	/* -Py */
+      signing_sign(s[i], k[i], t2);
+    }
+
+    if (s != null) {
+      batch_recip_order(s, n, sc);
+      wipe(x);
+      wipe(z);
+    }
+    wipe(zpy);
+    wipe(d);
+  }
+
+  /* s[i] = 1/s[i]  mod q  for i < n, with a single recip_order */
+  private static final void batch_recip_order(byte[][] s, int n, Scratch sc) {
+    byte[][] prefix = new byte[n][32];
+    byte[] acc = new byte[32], t = new byte[32];
+    int i;
+
+    acc[0] = 1;
+    for (i = 0; i < n; i++) {
+      cpy32(prefix[i], acc);
+      mul_order(acc, acc, s[i], sc);	/* acc = s[0] ... s[i] */
+    }
+    recip_order(acc, sc);
+    for (i = n; i-- != 0; ) {
+      mul_order(t, prefix[i], acc, sc);	/* t = 1/s[i] */
+      mul_order(acc, acc, s[i], sc);	/* acc = 1/(s[0] ... s[i-1]) */
+      cpy32(s[i], t);
+    }
+    for (i = 0; i < n; i++)
+      Arrays.fill(prefix[i], (byte) 0);
+    Arrays.fill(acc, (byte) 0);
+    Arrays.fill(t, (byte) 0);
+  }
+
+  /* p = x y  mod q,  p may alias x or y */
+  private static final void mul_order(byte[] p, byte[] x, byte[] y, Scratch sc) {
+    byte[] t = sc.b64a, q = sc.b64b;
+    for (int i = 0; i < 64; i++)
+      t[i] = 0;
+    mula32(t, x, y, 32, 1);
+    divmod(q, t, 64, ORDER, 32);
+    cpy32(p, t);
+  }
+
+  /* h = kG  in extended coordinates */
+  private static final void ge_scalarmult_base(ge h, byte[] k, Scratch sc) {
+    ge_niels t = sc.n;
+    long10[] scratch = sc.g;
+    long10 t1 = sc.t1[0];
+    byte[] e = sc.e;
+    int i, carry;
+
+		/* signed radix 16 digits, -8 <= e[i] < 8 (e[63] <= 8) */
+    for (i = 0; i < 32; i++) {
+      e[2 * i] = (byte)(k[i] & 15);
+      e[2 * i + 1] = (byte)((k[i] >> 4) & 15);
+    }
+    carry = 0;
+    for (i = 0; i < 63; i++) {
+      e[i] += carry;
+      carry = (e[i] + 8) >> 4;
+      e[i] -= carry << 4;
+    }
+    e[63] += carry;
+
+		/* neutral element */
+    set(h.X, 0);
+    set(h.Y, 1);
+    set(h.Z, 1);
+    set(h.T, 0);
+
+    for (i = 1; i < 64; i += 2) {
+      ge_select(t, t1, i / 2, e[i]);
+      ge_madd(h, h, t, scratch);
+    }
+    ge_dbl(h, h, scratch);
+    ge_dbl(h, h, scratch);
+    ge_dbl(h, h, scratch);
+    ge_dbl(h, h, scratch);
+    for (i = 0; i < 64; i += 2) {
+      ge_select(t, t1, i / 2, e[i]);
+      ge_madd(h, h, t, scratch);
+    }
+  }
+
+  /* Scratch space of a CurveContext, so that the operations above do not
+   * allocate.  Not safe for concurrent use. */
+  static final class Scratch {
+    final long10 dx = new long10();
+    final long10[] x = long10s(2), z = long10s(2);
+    final long10[] yx = long10s(3), yz = long10s(3);
+    final long10[] t1 = long10s(3), t2 = long10s(3);
+    final long10[] q = long10s(3);	/* sqrt */
+    final long10[] r = long10s(5);	/* recip */
+    final ge h = new ge();
+    final ge_niels n = new ge_niels();
+    final long10[] g = long10s(4);	/* ge_add, ge_madd, ge_dbl */
+    final byte[] e = new byte[64];
+    final byte[] b32a = new byte[32], b32b = new byte[32];
+    final byte[] b64a = new byte[64], b64b = new byte[64];
+
+    /* Zeroes everything a secret scalar may have left behind:  the ladder
+     * and fixed-base points, the temporaries, the radix 16 digits and the
+     * bytes of the reciprocal mod q */
+    void wipe() {
+      set(dx, 0);
+      Curve.wipe(x);
+      Curve.wipe(z);
+      Curve.wipe(t1);
+      Curve.wipe(t2);
+      Curve.wipe(r);
+      set(h.X, 0);
+      set(h.Y, 0);
+      set(h.Z, 0);
+      set(h.T, 0);
+      set(n.ypx, 0);
+      set(n.ymx, 0);
+      set(n.xy2d, 0);
+      Curve.wipe(g);
+      Arrays.fill(e, (byte) 0);
+      Arrays.fill(b32a, (byte) 0);
+      Arrays.fill(b32b, (byte) 0);
+      Arrays.fill(b64a, (byte) 0);
+      Arrays.fill(b64b, (byte) 0);
     }
   }
 
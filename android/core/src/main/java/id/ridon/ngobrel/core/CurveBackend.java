@@ -0,0 +1,31 @@
+package id.ridon.ngobrel.core;
+
+/**
+ * Implementation of the X25519 operations used by PrivateKey and KeyPair.
+ * See {@link CurveBackends} for the available backends and how one is chosen.
+ */
+public interface CurveBackend {
+  /**
+   * Returns a short name of the backend
+   * @return the name
+   */
+  String getName();
+
+  /**
+   * Computes a shared secret, the same as Curve.curve
+   * @param Z Byte array receiving the shared secret
+   * @param k The clamped private key
+   * @param P The public key of the other party
+   * @param ctx The curve context of the calling thread
+   */
+  void curve(byte[] Z, byte[] k, byte[] P, CurveContext ctx);
+
+  /**
+   * Generates a public key and optionally its signing key, the same as Curve.keygen
+   * @param P Byte array receiving the public key
+   * @param s Byte array receiving the signing key, or null
+   * @param k The private key, it is clamped in place
+   * @param ctx The curve context of the calling thread
+   */
+  void keygen(byte[] P, byte[] s, byte[] k, CurveContext ctx);
+}
@@ -0,0 +1,165 @@
+package id.ridon.ngobrel.core;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * The available CurveBackend implementations. The pure Java one is used unless another is
+ * set explicitly, the platform X25519 from jca() is an opt-in for devices where it is known
+ * to be faster.
+ */
+public final class CurveBackends {
+  /**
+   * The pure Java implementation in {@link Curve}, available everywhere
+   */
+  public static final CurveBackend JAVA = new CurveBackend() {
+    @Override
+    public String getName() {
+      return "java";
+    }
+
+    @Override
+    public void curve(byte[] Z, byte[] k, byte[] P, CurveContext ctx) {
+      Curve.curve(Z, k, P, ctx);
+    }
+
+    @Override
+    public void keygen(byte[] P, byte[] s, byte[] k, CurveContext ctx) {
+      Curve.keygen(P, s, k, ctx);
+    }
+  };
+
+  private static volatile CurveBackend selected = JAVA;
+
+  private CurveBackends() {
+  }
+
+  /**
+   * Returns the backend used by PrivateKey and KeyPair
+   * @return a CurveBackend
+   */
+  public static CurveBackend get() {
+    return selected;
+  }
+
+  /**
+   * Sets the backend used by PrivateKey and KeyPair
+   * @param backend The backend
+   */
+  public static void set(CurveBackend backend) {
+    if (backend == null) {
+      throw new IllegalArgumentException();
+    }
+    selected = backend;
+  }
+
+  /**
+   * Returns the backend using the X25519 KeyAgreement of the platform. It encodes the keys
+   * and creates key objects on every call, so setting it gives up the allocation-free
+   * PrivateKey.shareSecret. It only speeds up shared secrets, as KeyPair always asks for a
+   * signing key which the platform does not give, and falls back to Curve for that.
+   * @return a CurveBackend, or null if the platform has no X25519
+   */
+  public static CurveBackend jca() {
+    try {
+      return new JcaBackend();
+    } catch (GeneralSecurityException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Backend using KeyAgreement.getInstance("X25519"). The JDK implementation ignores the
+   * top bit of public keys and refuses low order points, those cases as well as signing
+   * keys are left to Curve so that the results stay the same.
+   */
+  private static final class JcaBackend implements CurveBackend {
+    // DER prefixes of PKCS#8 private and X.509 public X25519 keys
+    private static final byte[] PrivatePrefix = {
+        0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x04, 0x22, 0x04, 0x20
+    };
+    private static final byte[] PublicPrefix = {
+        0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+    };
+    private static final byte[] BasePoint = new byte[Key.SIZE];
+
+    static {
+      BasePoint[0] = 9;
+    }
+
+    private final ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>() {
+      @Override
+      protected KeyFactory initialValue() {
+        try {
+          return KeyFactory.getInstance("X25519");
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+
+    private final ThreadLocal<KeyAgreement> keyAgreement = new ThreadLocal<KeyAgreement>() {
+      @Override
+      protected KeyAgreement initialValue() {
+        try {
+          return KeyAgreement.getInstance("X25519");
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+
+    JcaBackend() throws GeneralSecurityException {
+      // Fail early if the platform has no X25519
+      KeyFactory.getInstance("X25519");
+      KeyAgreement.getInstance("X25519");
+    }
+
+    @Override
+    public String getName() {
+      return "jca";
+    }
+
+    @Override
+    public void curve(byte[] Z, byte[] k, byte[] P, CurveContext ctx) {
+      if ((P[Key.SIZE - 1] & 0x80) != 0) {
+        Curve.curve(Z, k, P, ctx);
+        return;
+      }
+
+      byte[] priv = Arrays.copyOf(PrivatePrefix, PrivatePrefix.length + Key.SIZE);
+      System.arraycopy(k, 0, priv, PrivatePrefix.length, Key.SIZE);
+      byte[] pub = Arrays.copyOf(PublicPrefix, PublicPrefix.length + Key.SIZE);
+      System.arraycopy(P, 0, pub, PublicPrefix.length, Key.SIZE);
+
+      try {
+        KeyFactory kf = keyFactory.get();
+        KeyAgreement ka = keyAgreement.get();
+        ka.init(kf.generatePrivate(new PKCS8EncodedKeySpec(priv)));
+        ka.doPhase(kf.generatePublic(new X509EncodedKeySpec(pub)), true);
+        ka.generateSecret(Z, 0);
+      } catch (GeneralSecurityException | IllegalStateException e) {
+        // Low order points are rejected by the JDK, Curve returns zeros for them
+        Curve.curve(Z, k, P, ctx);
+      } finally {
+        Arrays.fill(priv, (byte) 0);
+      }
+    }
+
+    @Override
+    public void keygen(byte[] P, byte[] s, byte[] k, CurveContext ctx) {
+      if (s != null) {
+        // The signing key is not available from the JDK
+        Curve.keygen(P, s, k, ctx);
+        return;
+      }
+      Curve.clamp(k);
+      curve(P, k, BasePoint, ctx);
+    }
+  }
+}
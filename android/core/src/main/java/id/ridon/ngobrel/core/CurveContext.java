@@ -0,0 +1,28 @@
+package id.ridon.ngobrel.core;
+
+/**
+ * This class holds the scratch space used by {@link Curve}, so that key agreement,
+ * key generation and signature verification run without allocating.
+ * A context must not be used by two threads at the same time.
+ */
+public final class CurveContext {
+  final Curve.Scratch scratch = new Curve.Scratch();
+
+  // Clamped copy of a private key while it is in use
+  final byte[] scalar = new byte[Key.SIZE];
+
+  private static final ThreadLocal<CurveContext> local = new ThreadLocal<CurveContext>() {
+    @Override
+    protected CurveContext initialValue() {
+      return new CurveContext();
+    }
+  };
+
+  /**
+   * Returns the context owned by the calling thread
+   * @return a CurveContext
+   */
+  public static CurveContext get() {
+    return local.get();
+  }
+}
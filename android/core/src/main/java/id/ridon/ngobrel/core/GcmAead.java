@@ -0,0 +1,175 @@
+package id.ridon.ngobrel.core;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-256-GCM with a key and nonce derived from a message key. Encryption and authentication
+ * happen in a single pass, and the tag is 16 bytes. Every message key must only encrypt one
+ * message, so an object refuses to encrypt twice.
+ */
+public class GcmAead {
+  public static final int TagSize = 16;
+
+  private static final int KeySize = 32;
+  private static final int NonceSize = 12;
+  private static final int KeysSize = KeySize + NonceSize;
+
+  private static final HkdfSha512.Info RatchetInfo = new HkdfSha512.Info(Constants.RidonGcmInfo);
+
+  private final byte[] keys = new byte[KeysSize];
+  private boolean used;
+
+  private GcmAead() {
+  }
+
+  /**
+   * Creates a GcmAead object
+   * @param key The message key in byte array
+   * @param info The information of the key
+   */
+  public GcmAead(byte[] key, HkdfSha512.Info info) {
+    HkdfSha512.derive(key, info, keys, 0, KeysSize);
+  }
+
+  /**
+   * Creates the GcmAead of the next message of a ratchet chain, advancing the chain key in place
+   * @param chainKey The chain key of the ratchet
+   * @return a new GcmAead object
+   */
+  public static GcmAead fromChainKey(Key chainKey) {
+    return fromChainKey(chainKey, CipherSuite.AesGcm);
+  }
+
+  /**
+   * Creates the GcmAead of the next message of a ratchet chain, advancing the chain key in place
+   * with the chain step of the suite
+   * @param chainKey The chain key of the ratchet
+   * @param suite AesGcm or AesGcmBlake2b
+   * @return a new GcmAead object
+   */
+  public static GcmAead fromChainKey(Key chainKey, CipherSuite suite) {
+    GcmAead aead = new GcmAead();
+    byte[] mk = new byte[Key.SIZE];
+    suite.chainKeyStepper().step(chainKey, mk, 0);
+    aead.derive(mk, suite);
+    Arrays.fill(mk, (byte) 0);
+    return aead;
+  }
+
+  /**
+   * Creates the GcmAead of a skipped ratchet message
+   * @param messageKey The message key
+   * @return a new GcmAead object
+   */
+  public static GcmAead fromMessageKey(byte[] messageKey) {
+    return fromMessageKey(messageKey, CipherSuite.AesGcm);
+  }
+
+  /**
+   * Creates the GcmAead of a skipped ratchet message of a suite
+   * @param messageKey The message key
+   * @param suite AesGcm or AesGcmBlake2b
+   * @return a new GcmAead object
+   */
+  public static GcmAead fromMessageKey(byte[] messageKey, CipherSuite suite) {
+    GcmAead aead = new GcmAead();
+    aead.derive(messageKey, suite);
+    return aead;
+  }
+
+  private void derive(byte[] messageKey, CipherSuite suite) {
+    switch (suite) {
+      case AesGcm:
+        HkdfSha512.derive(messageKey, RatchetInfo, keys, 0, KeysSize);
+        break;
+      case AesGcmBlake2b:
+        Blake2bKdf.derive(messageKey, RatchetInfo, keys, 0, KeysSize);
+        break;
+      default:
+        throw new IllegalArgumentException("Not a GCM suite");
+    }
+  }
+
+  // A new instance every time, see CryptoPrimitives
+  private Cipher init(int mode) throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(mode, new SecretKeySpec(keys, 0, KeySize, "AES"), new GCMParameterSpec(8 * TagSize, keys, KeySize, NonceSize));
+    return cipher;
+  }
+
+  /**
+   * Encrypts plain text with additional data
+   * @param plainText The plain text to be encrypted
+   * @param ad The additional data
+   * @return byte array of encrypted data followed with the 16-byte tag
+   * @throws EncryptionFailedException
+   */
+  public byte[] encrypt(byte[] plainText, byte[] ad) throws EncryptionFailedException {
+    byte[] out = new byte[plainText.length + TagSize];
+    encrypt(plainText, 0, plainText.length, ad, out, 0);
+    return out;
+  }
+
+  /**
+   * Encrypts a part of a byte array with additional data into another array
+   * @param plainText Byte array containing the plain text
+   * @param offset The offset of the plain text
+   * @param length The length of the plain text
+   * @param ad The additional data
+   * @param out Byte array receiving length + TagSize bytes
+   * @param outOffset Where in out to write the cipher text and the tag
+   * @throws EncryptionFailedException
+   */
+  public void encrypt(byte[] plainText, int offset, int length, byte[] ad, byte[] out, int outOffset) throws EncryptionFailedException {
+    if (used) {
+      throw new EncryptionFailedException();
+    }
+    used = true;
+    try {
+      Cipher cipher = init(Cipher.ENCRYPT_MODE);
+      cipher.updateAAD(ad);
+      cipher.doFinal(plainText, offset, length, out, outOffset);
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionFailedException();
+    }
+  }
+
+  /**
+   * Decrypts and authenticates a part of a byte array
+   * @param cipherText Byte array containing the cipher text followed with the tag
+   * @param offset The offset of the cipher text
+   * @param length The length of the cipher text including the tag
+   * @param ad The additional data
+   * @return decrypted byte array
+   */
+  public byte[] decrypt(byte[] cipherText, int offset, int length, byte[] ad) throws DecryptionFailedException, IllegalDataSizeException, AuthenticationException {
+    if (length < TagSize) {
+      throw new IllegalDataSizeException();
+    }
+    try {
+      Cipher cipher = init(Cipher.DECRYPT_MODE);
+      cipher.updateAAD(ad);
+      return cipher.doFinal(cipherText, offset, length);
+    } catch (AEADBadTagException e) {
+      throw new AuthenticationException();
+    } catch (GeneralSecurityException e) {
+      throw new DecryptionFailedException();
+    }
+  }
+
+  /**
+   * Decrypts and authenticates cipher text with additional data
+   * @param cipherText The cipher text followed with the tag
+   * @param ad The additional data
+   * @return decrypted byte array
+   */
+  public byte[] decrypt(byte[] cipherText, byte[] ad) throws DecryptionFailedException, IllegalDataSizeException, AuthenticationException {
+    return decrypt(cipherText, 0, cipherText.length, ad);
+  }
+}
@@ -9,30 +9,46 @@ import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import static javax.crypto.Mac.getInstance;
 
 public class GroupConversation {
   private HashId senderId;
 
   // This is only used by the sender
   private KeyPair signatureKey;
+  private Signer signer;
   private Key chainKeySender;
 
   // This is only used by the recipient
   private HashMap<HashId, PublicKey> signatureMap = new HashMap<>();
 
+  // Prepared signature keys of the most recent senders, least recently used first
+  private LinkedHashMap<HashId, Curve.PreparedKey> verificationCache = new LinkedHashMap<HashId, Curve.PreparedKey>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<HashId, Curve.PreparedKey> eldest) {
+      return size() > Constants.MaxVerificationKeys;
+    }
+  };
+
   private byte[] senderKey = new byte[64];
   private HashMap<HashId, Key> chainKeyMap = new HashMap<>();
 
+  private static final HkdfSha512.Info GcmInfo = new HkdfSha512.Info(Constants.RidonGroupGcmInfo);
+
+  // The suite this side encrypts with, announced in the sender key
+  private CipherSuite cipherSuite = CipherSuite.Legacy;
+  // The suites of the senders, those which are not here use the legacy one
+  private HashMap<HashId, CipherSuite> suiteMap = new HashMap<>();
+
   /**
    * Generates key in the conversation. This is done by sender when initiating conversation within a group
    * @throws IllegalDataSizeException
@@ -46,7 +62,8 @@ public class GroupConversation {
 
     chainKeySender = new Key(k);
     signatureKey = new KeyPair();
-    signatureMap.put(senderId, signatureKey.publicKey);
+    signer = null;
+    putSignatureKey(senderId, signatureKey.publicKey);
 
     System.arraycopy(chainKeySender.raw(), 0, senderKey, 0, 32);
     System.arraycopy(signatureKey.publicKey.raw(), 0, senderKey, 32, 32);
@@ -64,31 +81,61 @@ public class GroupConversation {
     ByteArrayOutputStream output = new ByteArrayOutputStream();
     output.write(senderId.raw());
     output.write(senderKey);
+    // Old peers only read the first 128 bytes
+    if (cipherSuite != CipherSuite.Legacy) {
+      output.write(cipherSuite.id);
+    }
     return output.toByteArray();
   }
 
+  /**
+   * Sets the cipher suite used to encrypt messages as sender. Recipients learn it from the
+   * sender key, so it must be set before the sender key is distributed
+   * @param cipherSuite The cipher suite, Legacy or AesGcm
+   */
+  public void setCipherSuite(CipherSuite cipherSuite) {
+    checkSuite(cipherSuite);
+    this.cipherSuite = cipherSuite;
+  }
+
   /**
    * Initializes GroupConversation as sender. This may be called from a saved session on disk
    * @param signatureKey The signature key
-   * @param chainKey The chain key
+   * @param chainKey The chain key, it is copied and the copy is advanced as messages are encrypted
    */
   public void initSender(HashId senderId, KeyPair signatureKey, Key chainKey) {
     this.senderId = senderId;
     this.signatureKey = signatureKey;
-    signatureMap.put(senderId, signatureKey.publicKey);
-    chainKeySender = chainKey;
+    signer = null;
+    putSignatureKey(senderId, signatureKey.publicKey);
+    chainKeySender = Key.copyOf(chainKey);
   }
 
   /**
    * Initializes GroupConversation as recipient. This may be called from a saved session on disk
    * @param senderId The sender id
    * @param signaturePublicKey The signature public key belongs to the sender id
-   * @param chainKey The chain key belongs to the sender id
+   * @param chainKey The chain key belongs to the sender id, it is copied and the copy is advanced
+   *                 as messages are decrypted
    */
   public void initRecipient(HashId senderId, PublicKey signaturePublicKey, Key chainKey) {
     this.senderId = senderId;
-    signatureMap.put(senderId, signaturePublicKey);
-    chainKeyMap.put(senderId, chainKey);
+    putSignatureKey(senderId, signaturePublicKey);
+    chainKeyMap.put(senderId, Key.copyOf(chainKey));
+  }
+
+  /**
+   * Initializes GroupConversation as recipient of a sender using a cipher suite. This may be called
+   * from a saved session on disk
+   * @param senderId The sender id
+   * @param signaturePublicKey The signature public key belongs to the sender id
+   * @param chainKey The chain key belongs to the sender id
+   * @param cipherSuite The cipher suite of the sender, Legacy or AesGcm
+   */
+  public void initRecipient(HashId senderId, PublicKey signaturePublicKey, Key chainKey, CipherSuite cipherSuite) {
+    checkSuite(cipherSuite);
+    initRecipient(senderId, signaturePublicKey, chainKey);
+    suiteMap.put(senderId, cipherSuite);
   }
 
   /**
@@ -106,17 +153,46 @@ public class GroupConversation {
     chainKeyMap.put(msgSenderId, new Key(data));
 
     System.arraycopy(senderKey, 64 + 32, data, 0, 32);
-    signatureMap.put(msgSenderId, new PublicKey(data));
+    putSignatureKey(msgSenderId, new PublicKey(data));
+
+    CipherSuite suite = CipherSuite.Legacy;
+    if (senderKey.length > 64 + 64) {
+      suite = CipherSuite.fromId(senderKey[64 + 64]);
+      if (suite == null || suite == CipherSuite.AesGcmBlake2b) {
+        throw new InvalidKeyException();
+      }
+    }
+    suiteMap.put(msgSenderId, suite);
 
   }
 
+  // Group chains are stepped with HMAC-SHA256, whatever the suite
+  private static void checkSuite(CipherSuite suite) {
+    if (suite == CipherSuite.AesGcmBlake2b) {
+      throw new IllegalArgumentException("Not available for groups");
+    }
+  }
+
+  private void putSignatureKey(HashId sender, PublicKey key) {
+    signatureMap.put(sender, key);
+    // A new key for the sender makes its prepared key stale
+    verificationCache.remove(sender);
+  }
+
+  private Curve.PreparedKey getPreparedKey(HashId sender, PublicKey key) {
+    Curve.PreparedKey prepared = verificationCache.get(sender);
+    if (prepared == null) {
+      prepared = key.prepare();
+      verificationCache.put(sender, prepared);
+    }
+    return prepared;
+  }
+
   private byte[] getMessageKey() throws IllegalDataSizeException, NoSuchAlgorithmException, InvalidKeyException {
     return getMessageKey(null);
   }
 
   private byte[] getMessageKey(HashId sender) throws NoSuchAlgorithmException, InvalidKeyException, IllegalDataSizeException {
-    SecretKeySpec hks;
-
     Key ck;
     if (sender == null) {
       ck = chainKeySender;
@@ -127,32 +203,16 @@ public class GroupConversation {
       }
     }
 
-    hks = new SecretKeySpec(ck.raw(), "HmacSHA256");
-
-    byte[] m1 = new byte[1];
-    m1[0] = 1;
-
-    Mac m = getInstance("HmacSHA256");
-    m.init(hks);
-    m.update(m1);
-    byte[] messageKey = m.doFinal();
-
-    m1[0] = 2;
-    m.init(hks);
-    m.update(m1);
-    if (sender != null) {
-      chainKeyMap.put(sender, new Key(m.doFinal()));
-    } else {
-      chainKeySender = new Key(m.doFinal());
-    }
-
+    byte[] messageKey = new byte[32];
+    ChainKeyStepper.Sha256.step(ck, messageKey, 0);
     return messageKey;
   }
 
   /**
    * Encrypts plain text in a group conversation. The resulting data is formed from the HashId of
    * the sender, then followed with cipher text, and finally appended with a 64-byte
-   * signature
+   * signature. With a cipher suite other than the legacy one, the cipher text starts with the id
+   * of the suite
    * @param plainText
    * @return byte array containing cipher text
    * @throws InvalidKeyException
@@ -164,24 +224,37 @@ public class GroupConversation {
    * @throws IllegalBlockSizeException
    * @throws SignatureException
    * @throws IOException
+   * @throws EncryptionFailedException
    */
-  public byte[] encrypt(byte[] plainText) throws InvalidKeyException, IllegalDataSizeException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoSuchPaddingException, BadPaddingException, IllegalBlockSizeException, SignatureException, IOException {
+  public byte[] encrypt(byte[] plainText) throws InvalidKeyException, IllegalDataSizeException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoSuchPaddingException, BadPaddingException, IllegalBlockSizeException, SignatureException, IOException, EncryptionFailedException {
+    if (cipherSuite == CipherSuite.AesGcm) {
+      return encryptGcm(plainText);
+    }
+
     byte[] iv = new byte[16];
     IvParameterSpec ivSpec = new IvParameterSpec(iv);
     SecretKeySpec keySpec = new SecretKeySpec(getMessageKey(), "AES");
 
-    Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-    cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-
     int padLength = 16 - plainText.length % 16;
     byte[] padding = new byte[plainText.length + padLength];
     System.arraycopy(plainText, 0, padding, 0, plainText.length);
     for (int i = 0; i < padLength; i++) {
       padding[plainText.length + i] = (byte)padLength;
     }
-    byte[] encrypted = cipher.doFinal(padding);
 
-    Signature sig = signatureKey.privateKey.sign(encrypted);
+    byte[] encrypted;
+    Cipher cipher = CryptoPrimitives.cipher("AES/CBC/NoPadding");
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
+      encrypted = cipher.doFinal(padding);
+    } finally {
+      CryptoPrimitives.release(cipher);
+    }
+
+    if (signer == null) {
+      signer = new Signer(signatureKey.privateKey);
+    }
+    Signature sig = signer.sign(encrypted);
 
     ByteArrayOutputStream output = new ByteArrayOutputStream();
     output.write(senderId.raw());
@@ -190,6 +263,28 @@ public class GroupConversation {
     return output.toByteArray();
   }
 
+  // The sender id and the suite id are authenticated together with the cipher text
+  private byte[] encryptGcm(byte[] plainText) throws IllegalDataSizeException, NoSuchAlgorithmException, InvalidKeyException, SignatureException, IOException, EncryptionFailedException {
+    byte[] ad = new byte[HashId.SIZE + 1];
+    System.arraycopy(senderId.raw(), 0, ad, 0, HashId.SIZE);
+    ad[HashId.SIZE] = cipherSuite.id;
+    byte[] encrypted = new GcmAead(getMessageKey(), GcmInfo).encrypt(plainText, ad);
+
+    if (signer == null) {
+      signer = new Signer(signatureKey.privateKey);
+    }
+    byte[] body = new byte[1 + encrypted.length];
+    body[0] = cipherSuite.id;
+    System.arraycopy(encrypted, 0, body, 1, encrypted.length);
+    Signature sig = signer.sign(body);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    output.write(senderId.raw());
+    output.write(body);
+    output.write(sig.getBytes());
+    return output.toByteArray();
+  }
+
   /**
    * Decrypts cipher text in a group conversation
    * @param cipherText
@@ -223,21 +318,33 @@ public class GroupConversation {
     }
 
     // Cipher text starts just after the hash id of the sender
-    if (k.verify(cipherText, HashId.SIZE, pos - HashId.SIZE, signature) == false) {
+    if (k.verify(cipherText, HashId.SIZE, pos - HashId.SIZE, signature, getPreparedKey(sender, k)) == false) {
       throw new AuthenticationException();
     }
 
+    CipherSuite suite = suiteMap.get(sender);
+    if (suite == CipherSuite.AesGcm) {
+      if (cipherText[HashId.SIZE] != suite.id) {
+        throw new DecryptionFailedException();
+      }
+      byte[] ad = Arrays.copyOf(cipherText, HashId.SIZE + 1);
+      return new GcmAead(getMessageKey(sender), GcmInfo).decrypt(cipherText, ad.length, pos - ad.length, ad);
+    }
+
     IvParameterSpec ivSpec = new IvParameterSpec(iv);
     SecretKeySpec keySpec = new SecretKeySpec(getMessageKey(sender), "AES");
 
     byte[] decrypted;
+    Cipher cipher = null;
     try {
-      Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+      cipher = CryptoPrimitives.cipher("AES/CBC/NoPadding");
       cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
 
       decrypted = cipher.doFinal(cipherText, 64, cipherText.length - 128);
     } catch (Exception e) {
       throw new DecryptionFailedException();
+    } finally {
+      CryptoPrimitives.release(cipher);
     }
 
     int resultLength = decrypted.length;
@@ -68,9 +68,15 @@ public class HashId {
     byte[] data = new byte[HashId.SIZE];
     r.nextBytes(data);
 
-    MessageDigest md = MessageDigest.getInstance("SHA-512");
-    md.update(data);
-    return new HashId(md.digest());
+    MessageDigest md = CryptoPrimitives.digest("SHA-512");
+    byte[] digest;
+    try {
+      md.update(data);
+      digest = md.digest();
+    } finally {
+      CryptoPrimitives.release(md);
+    }
+    return new HashId(digest);
   }
 
   public String toString() {
@@ -0,0 +1,166 @@
+package id.ridon.ngobrel.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HKDF-SHA512 with the same input conventions as {@link Kdf}, producing the same output.
+ * Mac instances are kept per thread, the Ridon salt is keyed only once per thread, and the
+ * output is written into buffers owned by the caller.
+ */
+public final class HkdfSha512 {
+  public static final int HASH_LEN = 64;
+
+  // Kdf prefixes the secret with 32 bytes of 0xFF
+  private static final byte[] Prefix = new byte[32];
+
+  static {
+    for (int i = 0; i < Prefix.length; i ++) {
+      Prefix[i] = -1;
+    }
+  }
+
+  /**
+   * An info string encoded once, to be passed to derive
+   */
+  public static final class Info {
+    final byte[] encoded;
+
+    public Info(String info) {
+      encoded = info.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  public static final Info RatchetInfo = new Info(Constants.RidonRatchetInfo);
+  public static final Info X3dhMessageInfo = new Info(Constants.X3DhMessageInfo);
+
+  private static final class State {
+    // Keyed with the Ridon salt, doFinal leaves it ready for the next extract
+    final Mac ridon;
+    final Mac mac;
+    final byte[] prk = new byte[HASH_LEN];
+    final byte[] t = new byte[HASH_LEN];
+    final byte[] counter = new byte[1];
+
+    State() throws GeneralSecurityException {
+      ridon = Mac.getInstance("HmacSHA512");
+      ridon.init(new SecretKeySpec(Constants.getRidonSalt512(), "HmacSHA512"));
+      mac = Mac.getInstance("HmacSHA512");
+    }
+  }
+
+  private static final ThreadLocal<State> local = new ThreadLocal<State>() {
+    @Override
+    protected State initialValue() {
+      try {
+        return new State();
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  private HkdfSha512() {
+  }
+
+  /**
+   * Derives key material using the Ridon salt, the same as
+   * Kdf.KdfSha512(secret, Constants.getRidonSalt512()).get(info, length)
+   * @param secret The input key material
+   * @param info The info string
+   * @param out Byte array receiving the output
+   * @param offset Where in out to write the output
+   * @param length The number of bytes to derive
+   */
+  public static void derive(byte[] secret, Info info, byte[] out, int offset, int length) {
+    derive(secret, 0, secret.length, info, out, offset, length);
+  }
+
+  /**
+   * Derives key material from a part of secret using the Ridon salt. The secret is read
+   * before anything is written, so it may share its array with the output.
+   * @param secret Byte array containing the input key material
+   * @param secretOffset The offset of the input key material
+   * @param secretLength The length of the input key material
+   * @param info The info string
+   * @param out Byte array receiving the output
+   * @param offset Where in out to write the output
+   * @param length The number of bytes to derive
+   */
+  public static void derive(byte[] secret, int secretOffset, int secretLength, Info info, byte[] out, int offset, int length) {
+    State s = local.get();
+    try {
+      s.ridon.update(Prefix);
+      s.ridon.update(secret, secretOffset, secretLength);
+      s.ridon.doFinal(s.prk, 0);
+      expand(s, info, out, offset, length);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Derives key material, the same as Kdf.KdfSha512(secret, salt).get(info, length)
+   * @param secret The input key material
+   * @param salt The salt
+   * @param info The info string
+   * @param out Byte array receiving the output
+   * @param offset Where in out to write the output
+   * @param length The number of bytes to derive
+   */
+  public static void derive(byte[] secret, byte[] salt, Info info, byte[] out, int offset, int length) {
+    State s = local.get();
+    try {
+      s.mac.init(new SecretKeySpec(salt, "HmacSHA512"));
+      s.mac.update(Prefix);
+      s.mac.update(secret);
+      s.mac.doFinal(s.prk, 0);
+      expand(s, info, out, offset, length);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Derives key material using the Ridon salt into a new array
+   * @param secret The input key material
+   * @param info The info string
+   * @param length The number of bytes to derive
+   * @return byte array containing the output
+   */
+  public static byte[] derive(byte[] secret, Info info, int length) {
+    byte[] out = new byte[length];
+    derive(secret, info, out, 0, length);
+    return out;
+  }
+
+  // T(i) = HMAC(prk, T(i-1) | info | i)
+  private static void expand(State s, Info info, byte[] out, int offset, int length) throws GeneralSecurityException {
+    if (length > 255 * HASH_LEN) {
+      throw new IllegalArgumentException("Output too long");
+    }
+    Mac mac = s.mac;
+    mac.init(new SecretKeySpec(s.prk, "HmacSHA512"));
+
+    int done = 0;
+    for (int i = 1; done < length; i ++) {
+      if (i > 1) {
+        mac.update(s.t);
+      }
+      mac.update(info.encoded);
+      s.counter[0] = (byte) i;
+      mac.update(s.counter);
+      mac.doFinal(s.t, 0);
+
+      int n = Math.min(HASH_LEN, length - done);
+      System.arraycopy(s.t, 0, out, offset + done, n);
+      done += n;
+    }
+    Arrays.fill(s.prk, (byte) 0);
+    Arrays.fill(s.t, (byte) 0);
+  }
+}
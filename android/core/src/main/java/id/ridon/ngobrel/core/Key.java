@@ -59,6 +59,20 @@ public class Key {
   }
 
 
+  /**
+   * Copies a key, so that stepping the copy in place leaves the original as it is
+   * @param other The key, may be null
+   * @return a new Key holding the same bytes, or null
+   */
+  static Key copyOf(Key other) {
+    if (other == null) {
+      return null;
+    }
+    Key k = new Key();
+    arraycopy(other.key, 0, k.key, 0, SIZE);
+    return k;
+  }
+
   /**
    * Returns the raw key
    * @return byte sequence containing the key
@@ -109,11 +123,7 @@ public class Key {
 
   @Override
   public int hashCode() {
-    int h = 0;
-    for (int i = 0; i < key.length; i ++) {
-      h |= key[i];
-    }
-    return h;
+    return Arrays.hashCode(key);
   }
 
   public boolean isNull() {
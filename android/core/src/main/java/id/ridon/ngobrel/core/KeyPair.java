@@ -17,7 +17,7 @@ public final class KeyPair {
 
     byte[] pubKey = new byte[32];
     byte[] privSignature = new byte[32];
-    Curve.keygen(pubKey, privSignature, priv);
+    CurveBackends.get().keygen(pubKey, privSignature, priv, CurveContext.get());
     privateKey = new PrivateKey(priv, privSignature);
     publicKey = new PublicKey(pubKey);
   }
@@ -27,6 +27,31 @@ public final class KeyPair {
     this.publicKey = publicKey;
   }
 
+  /**
+   * Generates n new key pairs at once. This is much faster than creating them one by one,
+   * as the expensive inversions are shared by the whole batch
+   * @param n The number of key pairs
+   * @return an array of n new KeyPair objects
+   * @throws IllegalDataSizeException
+   */
+  public static KeyPair[] generateBatch(int n) throws IllegalDataSizeException {
+    Random r = new SecureRandom();
+    byte[][] priv = new byte[n][32];
+    byte[][] pubKey = new byte[n][32];
+    byte[][] privSignature = new byte[n][32];
+    for (int i = 0; i < n; i++) {
+      r.nextBytes(priv[i]);
+    }
+
+    Curve.keygenBatch(pubKey, privSignature, priv, n, CurveContext.get());
+
+    KeyPair[] pairs = new KeyPair[n];
+    for (int i = 0; i < n; i++) {
+      pairs[i] = new KeyPair(new PrivateKey(priv[i], privSignature[i]), new PublicKey(pubKey[i]));
+    }
+    return pairs;
+  }
+
   public byte[] encode() throws IOException {
     ByteArrayOutputStream ss = new ByteArrayOutputStream();
     ss.write(privateKey.encode());
@@ -0,0 +1,495 @@
+package id.ridon.ngobrel.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts files, like media attachments, in fixed-size chunks using all the cores of the
+ * machine. Every chunk is an {@link Aead} message with its own key and IV, derived from the file
+ * key and the chunk index, so chunks are encrypted and decrypted independently of each other and
+ * any chunk can be read on its own. The files are memory mapped a batch of chunks at a time.
+ *
+ * The encrypted file starts with a manifest: a version byte, the chunk size, the length of the
+ * plain text and an HMAC-SHA512 over those and the additional data. Every chunk authenticates
+ * the manifest as well, so a chunk which was moved, or taken from a file of another length,
+ * fails authentication, and a file which was cut short no longer matches its manifest.
+ *
+ * Objects made with a parallelism have their own threads and must be closed. The others run on
+ * a pool given by the caller, or on one shared by the whole process, and need not be.
+ */
+public class ParallelFileAead implements Closeable {
+  public static final int DefaultChunkSize = 1024 * 1024;
+  public static final int MaxChunkSize = StreamingAead.MaxChunkSize;
+  public static final int ManifestSize = 13 + Aead.TagSize;
+
+  private static final byte Version = 1;
+  private static final int ManifestBodySize = 13;
+  private static final int BlockSize = 16;
+  // Plain text mapped by a single task
+  private static final int MappedSize = 32 * 1024 * 1024;
+  // Tasks per thread, so that a thread which is done early can help the others
+  private static final int TasksPerThread = 4;
+
+  private static final HkdfSha512.Info ChunkInfo = new HkdfSha512.Info(Constants.RidonFileChunkInfo);
+  private static final HkdfSha512.Info ManifestInfo = new HkdfSha512.Info(Constants.RidonFileManifestInfo);
+
+  private final byte[] fileKey;
+  private final byte[] manifestKey;
+  private final int chunkSize;
+  private final ForkJoinPool pool;
+  private final boolean ownsPool;
+
+  // Used by the objects which are not given a pool, created on first use
+  private static ForkJoinPool sharedPool;
+
+  private static synchronized ForkJoinPool sharedPool() {
+    if (sharedPool == null) {
+      sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return sharedPool;
+  }
+
+  /**
+   * Creates a ParallelFileAead with the default chunk size, running on a pool of all available
+   * processors which is shared by the whole process
+   * @param fileKey The key of the file
+   */
+  public ParallelFileAead(byte[] fileKey) {
+    this(fileKey, DefaultChunkSize, sharedPool(), false);
+  }
+
+  /**
+   * Creates a ParallelFileAead running on a pool of the caller, which is not shut down by close
+   * @param fileKey The key of the file
+   * @param chunkSize The size of the plain text of a chunk, a multiple of 16
+   * @param pool The pool to encrypt and decrypt on
+   */
+  public ParallelFileAead(byte[] fileKey, int chunkSize, ForkJoinPool pool) {
+    this(fileKey, chunkSize, pool, false);
+  }
+
+  /**
+   * Creates a ParallelFileAead with threads of its own, which are stopped by close
+   * @param fileKey The key of the file
+   * @param chunkSize The size of the plain text of a chunk, a multiple of 16
+   * @param parallelism The number of threads to encrypt and decrypt with
+   */
+  public ParallelFileAead(byte[] fileKey, int chunkSize, int parallelism) {
+    this(fileKey, chunkSize, newPool(parallelism), true);
+  }
+
+  private static ForkJoinPool newPool(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException();
+    }
+    return new ForkJoinPool(parallelism);
+  }
+
+  private ParallelFileAead(byte[] fileKey, int chunkSize, ForkJoinPool pool, boolean ownsPool) {
+    if (chunkSize < BlockSize || chunkSize > MaxChunkSize || chunkSize % BlockSize != 0) {
+      if (ownsPool) {
+        pool.shutdown();
+      }
+      throw new IllegalArgumentException("Invalid chunk size");
+    }
+    if (pool == null) {
+      throw new IllegalArgumentException();
+    }
+    this.fileKey = fileKey.clone();
+    this.manifestKey = HkdfSha512.derive(fileKey, ManifestInfo, 32);
+    this.chunkSize = chunkSize;
+    this.pool = pool;
+    this.ownsPool = ownsPool;
+  }
+
+  /**
+   * Returns the size of the plain text of a chunk of the files this object encrypts
+   * @return the chunk size
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Returns the size of the encryption of a file
+   * @param plainTextLength The length of the file
+   * @return the length of the encrypted file, including the manifest
+   */
+  public long encryptedSize(long plainTextLength) {
+    return new Manifest(chunkSize, plainTextLength, new byte[0]).encryptedSize();
+  }
+
+  /**
+   * Encrypts a file
+   * @param in The file to encrypt
+   * @param out The file receiving the manifest and the encrypted chunks
+   * @param ad The additional data
+   * @throws IOException
+   */
+  public void encrypt(File in, File out, byte[] ad) throws IOException {
+    RandomAccessFile src = new RandomAccessFile(in, "r");
+    try {
+      RandomAccessFile dst = new RandomAccessFile(out, "rw");
+      try {
+        Manifest m = new Manifest(chunkSize, src.length(), ad);
+        dst.setLength(m.encryptedSize());
+
+        byte[] manifest = Arrays.copyOf(m.chunkAd, ManifestSize);
+        System.arraycopy(tag(m), 0, manifest, ManifestBodySize, Aead.TagSize);
+        dst.getChannel().write(ByteBuffer.wrap(manifest), 0);
+
+        run(true, m, src.getChannel(), dst.getChannel());
+      } finally {
+        dst.close();
+      }
+    } finally {
+      src.close();
+    }
+  }
+
+  /**
+   * Decrypts a whole file
+   * @param in The encrypted file
+   * @param out The file receiving the plain text
+   * @param ad The additional data
+   * @throws IOException
+   * @throws StreamingAead.ChunkAuthenticationException if the file was modified
+   */
+  public void decrypt(File in, File out, byte[] ad) throws IOException {
+    RandomAccessFile src = new RandomAccessFile(in, "r");
+    try {
+      Manifest m = readManifest(src, ad);
+      RandomAccessFile dst = new RandomAccessFile(out, "rw");
+      try {
+        dst.setLength(m.length);
+        run(false, m, src.getChannel(), dst.getChannel());
+      } finally {
+        dst.close();
+      }
+    } finally {
+      src.close();
+    }
+  }
+
+  /**
+   * Opens an encrypted file for reading single chunks, after checking its manifest
+   * @param in The encrypted file
+   * @param ad The additional data
+   * @return an EncryptedFile, to be closed
+   * @throws IOException
+   * @throws StreamingAead.ChunkAuthenticationException if the manifest was modified
+   */
+  public EncryptedFile open(File in, byte[] ad) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(in, "r");
+    try {
+      return new EncryptedFile(file, readManifest(file, ad));
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Stops the threads of this object, if it has its own. The pool of the caller or the shared
+   * one keeps running.
+   */
+  @Override
+  public void close() {
+    if (ownsPool) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Same as close
+   */
+  public void shutdown() {
+    close();
+  }
+
+  /**
+   * An encrypted file opened for random access. It is not safe to use from several threads
+   * at once.
+   */
+  public final class EncryptedFile implements Closeable {
+    private final RandomAccessFile file;
+    private final Manifest manifest;
+    private final ByteBuffer scratch;
+
+    private EncryptedFile(RandomAccessFile file, Manifest manifest) {
+      this.file = file;
+      this.manifest = manifest;
+      this.scratch = scratch(manifest);
+    }
+
+    /**
+     * Returns the length of the plain text
+     * @return the length
+     */
+    public long getLength() {
+      return manifest.length;
+    }
+
+    /**
+     * Returns the size of the plain text of a chunk, only the last one may be shorter
+     * @return the chunk size
+     */
+    public int getChunkSize() {
+      return manifest.chunkSize;
+    }
+
+    /**
+     * Returns the number of chunks
+     * @return the number of chunks
+     */
+    public long getChunkCount() {
+      return manifest.chunkCount();
+    }
+
+    /**
+     * Authenticates and decrypts a single chunk. The chunk holding the byte at position p
+     * is p / getChunkSize().
+     * @param index The index of the chunk
+     * @param dst Buffer receiving the plain text of the chunk
+     * @return the number of bytes written to dst
+     * @throws IOException
+     * @throws StreamingAead.ChunkAuthenticationException if the chunk was modified
+     */
+    public int readChunk(long index, ByteBuffer dst) throws IOException {
+      if (index < 0 || index >= manifest.chunkCount()) {
+        throw new IndexOutOfBoundsException();
+      }
+      int n = manifest.plainSize(index);
+      if (dst.remaining() < n) {
+        throw new BufferOverflowException();
+      }
+      long start = manifest.encryptedOffset(index);
+      MappedByteBuffer src = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, Aead.encryptedSize(n));
+      decryptChunk(manifest, index, src, scratch, dst);
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+
+  // The chunk size and the length of the plain text, with everything derived from them
+  private static final class Manifest {
+    final int chunkSize;
+    final long length;
+    // The manifest without its tag, followed with the additional data
+    final byte[] chunkAd;
+
+    Manifest(int chunkSize, long length, byte[] ad) {
+      this.chunkSize = chunkSize;
+      this.length = length;
+      chunkAd = new byte[ManifestBodySize + ad.length];
+      ByteBuffer b = ByteBuffer.wrap(chunkAd);
+      b.put(Version);
+      b.putInt(chunkSize);
+      b.putLong(length);
+      b.put(ad);
+    }
+
+    long chunkCount() {
+      return (length + chunkSize - 1) / chunkSize;
+    }
+
+    int plainSize(long index) {
+      return (int) Math.min(chunkSize, length - index * chunkSize);
+    }
+
+    long encryptedOffset(long index) {
+      return ManifestSize + index * Aead.encryptedSize(chunkSize);
+    }
+
+    long encryptedSize() {
+      long count = chunkCount();
+      if (count == 0) {
+        return ManifestSize;
+      }
+      return encryptedOffset(count - 1) + Aead.encryptedSize(plainSize(count - 1));
+    }
+  }
+
+  private byte[] tag(Manifest m) throws IOException {
+    Mac mac = null;
+    try {
+      mac = CryptoPrimitives.mac("HmacSHA512");
+      mac.init(new SecretKeySpec(manifestKey, "HmacSHA512"));
+      return mac.doFinal(m.chunkAd);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    } finally {
+      CryptoPrimitives.release(mac);
+    }
+  }
+
+  private Manifest readManifest(RandomAccessFile file, byte[] ad) throws IOException {
+    if (file.length() < ManifestSize) {
+      throw new StreamingAead.ChunkAuthenticationException();
+    }
+    byte[] manifest = new byte[ManifestSize];
+    file.readFully(manifest);
+
+    ByteBuffer b = ByteBuffer.wrap(manifest);
+    byte version = b.get();
+    int size = b.getInt();
+    long length = b.getLong();
+    if (version != Version || size < BlockSize || size > MaxChunkSize || size % BlockSize != 0 || length < 0) {
+      throw new IOException("Invalid file manifest");
+    }
+
+    Manifest m = new Manifest(size, length, ad);
+    if (!MessageDigest.isEqual(tag(m), Arrays.copyOfRange(manifest, ManifestBodySize, ManifestSize))) {
+      throw new StreamingAead.ChunkAuthenticationException();
+    }
+    if (file.length() != m.encryptedSize()) {
+      throw new StreamingAead.ChunkAuthenticationException();
+    }
+    return m;
+  }
+
+  private Aead chunkAead(long index) {
+    byte[] secret = Arrays.copyOf(fileKey, fileKey.length + 8);
+    ByteBuffer.wrap(secret).putLong(fileKey.length, index);
+    Aead aead = new Aead(secret, ChunkInfo);
+    Arrays.fill(secret, (byte) 0);
+    return aead;
+  }
+
+  // The chunk is copied into scratch and encrypted or decrypted there in place, which keeps the
+  // cipher and the mac working on arrays rather than on the mapped memory
+  private ByteBuffer scratch(Manifest m) {
+    return ByteBuffer.allocate(Aead.encryptedSize(m.chunkSize));
+  }
+
+  // Encrypts the chunk found at the position of src into dst, moving both past the chunk
+  private void encryptChunk(Manifest m, long index, ByteBuffer src, ByteBuffer scratch, ByteBuffer dst) throws IOException {
+    int n = m.plainSize(index);
+    byte[] b = scratch.array();
+    src.get(b, 0, n);
+    try {
+      chunkAead(index).encrypt(ByteBuffer.wrap(b, 0, n), ByteBuffer.wrap(m.chunkAd), ByteBuffer.wrap(b));
+      dst.put(b, 0, Aead.encryptedSize(n));
+    } catch (EncryptionFailedException e) {
+      throw new IOException(e);
+    } finally {
+      Arrays.fill(b, 0, n, (byte) 0);
+    }
+  }
+
+  // Decrypts the chunk found at the position of src into dst, moving both past the chunk
+  private void decryptChunk(Manifest m, long index, ByteBuffer src, ByteBuffer scratch, ByteBuffer dst) throws IOException {
+    int n = m.plainSize(index);
+    byte[] b = scratch.array();
+    int length = Aead.encryptedSize(n);
+    src.get(b, 0, length);
+    ByteBuffer plain = ByteBuffer.wrap(b);
+    try {
+      chunkAead(index).decrypt(ByteBuffer.wrap(b, 0, length), ByteBuffer.wrap(m.chunkAd), plain);
+      if (plain.position() != n) {
+        throw new StreamingAead.ChunkAuthenticationException();
+      }
+      dst.put(b, 0, n);
+    } catch (AuthenticationException | DecryptionFailedException | IllegalDataSizeException e) {
+      throw new StreamingAead.ChunkAuthenticationException();
+    } finally {
+      Arrays.fill(b, 0, length, (byte) 0);
+    }
+  }
+
+  private void run(boolean encrypting, Manifest m, FileChannel in, FileChannel out) throws IOException {
+    long count = m.chunkCount();
+    if (count == 0) {
+      return;
+    }
+    long tasks = (long) TasksPerThread * pool.getParallelism();
+    long batch = Math.max(1, Math.min(MappedSize / m.chunkSize, (count + tasks - 1) / tasks));
+    try {
+      pool.invoke(new ChunkTask(encrypting, m, in, out, batch, 0, count));
+    } catch (ChunkException e) {
+      throw (IOException) e.getCause();
+    }
+  }
+
+  private static final class ChunkException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    ChunkException(IOException cause) {
+      super(cause);
+    }
+  }
+
+  private final class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean encrypting;
+    private final Manifest m;
+    private final FileChannel in;
+    private final FileChannel out;
+    // The number of chunks a single task maps and processes
+    private final long batch;
+    private final long from;
+    private final long to;
+
+    ChunkTask(boolean encrypting, Manifest m, FileChannel in, FileChannel out, long batch, long from, long to) {
+      this.encrypting = encrypting;
+      this.m = m;
+      this.in = in;
+      this.out = out;
+      this.batch = batch;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > batch) {
+        long middle = from + (to - from) / 2;
+        invokeAll(new ChunkTask(encrypting, m, in, out, batch, from, middle), new ChunkTask(encrypting, m, in, out, batch, middle, to));
+        return;
+      }
+
+      long plainStart = from * m.chunkSize;
+      long plainEnd = Math.min(m.length, to * m.chunkSize);
+      long encryptedStart = m.encryptedOffset(from);
+      long encryptedEnd = m.encryptedOffset(to - 1) + Aead.encryptedSize(m.plainSize(to - 1));
+      try {
+        if (encrypting) {
+          MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY, plainStart, plainEnd - plainStart);
+          MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, encryptedStart, encryptedEnd - encryptedStart);
+          ByteBuffer scratch = scratch(m);
+          for (long i = from; i < to; i ++) {
+            encryptChunk(m, i, src, scratch, dst);
+          }
+        } else {
+          MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY, encryptedStart, encryptedEnd - encryptedStart);
+          MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, plainStart, plainEnd - plainStart);
+          ByteBuffer scratch = scratch(m);
+          for (long i = from; i < to; i ++) {
+            decryptChunk(m, i, src, scratch, dst);
+          }
+        }
+      } catch (IOException e) {
+        throw new ChunkException(e);
+      }
+    }
+  }
+}
@@ -2,7 +2,6 @@ package id.ridon.ngobrel.core;
 
 import java.security.InvalidKeyException;
 import java.util.Arrays;
-import java.util.Objects;
 
 /**
  * This class represents a prekey id
@@ -48,12 +47,7 @@ public class PreKeyId {
   @Override
   public int hashCode()
   {
-    int result = 0;
-    for (int i = 0; i < preKeyId.length; i ++) {
-      result |= Objects.hashCode(preKeyId[i]);
-    }
-
-    return result;
+    return Arrays.hashCode(preKeyId);
   }
 
   public final byte[] raw() {
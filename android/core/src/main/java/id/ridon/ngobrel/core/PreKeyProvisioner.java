@@ -0,0 +1,153 @@
+package id.ridon.ngobrel.core;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates large numbers of prekeys for bundles using all the cores of the machine.
+ * The keys are generated in batches on a ForkJoinPool, and are then inserted into the
+ * bundle in the order they were generated, so the result only depends on the random keys.
+ */
+public class PreKeyProvisioner {
+  // Number of keys generated by a single task, sharing their inversions
+  public static final int DefaultBatchSize = 64;
+
+  private final ForkJoinPool pool;
+  private final int batchSize;
+
+  /**
+   * Creates a provisioner using all available processors
+   */
+  public PreKeyProvisioner() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a provisioner
+   * @param parallelism The number of threads to generate keys with
+   */
+  public PreKeyProvisioner(int parallelism) {
+    this(parallelism, DefaultBatchSize);
+  }
+
+  /**
+   * Creates a provisioner
+   * @param parallelism The number of threads to generate keys with
+   * @param batchSize The number of keys generated by a single task
+   */
+  public PreKeyProvisioner(int parallelism, int batchSize) {
+    if (parallelism < 1 || batchSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.pool = new ForkJoinPool(parallelism);
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Returns the number of threads used by this provisioner
+   * @return the parallelism
+   */
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+
+  /**
+   * Generates count new prekeys and inserts them into the bundle
+   * @param bundle The bundle to populate
+   * @param count The number of prekeys
+   */
+  public void populate(Bundle bundle, int count) throws IllegalDataSizeException, NoSuchAlgorithmException, InvalidKeyException {
+    KeyPair[] pairs = new KeyPair[count];
+    PreKeyId[] ids = new PreKeyId[count];
+
+    try {
+      pool.invoke(new GenerateTask(pairs, ids, 0, count));
+    } catch (ProvisioningException e) {
+      // The pool may have wrapped the exception of the worker once more
+      Throwable cause = e.getCause();
+      while (cause instanceof ProvisioningException) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IllegalDataSizeException) {
+        throw (IllegalDataSizeException) cause;
+      }
+      if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      }
+      if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+
+    for (int i = 0; i < count; i ++) {
+      bundle.bundlePrivate.insert(ids[i], pairs[i].privateKey);
+      bundle.bundlePublic.insert(ids[i], pairs[i].publicKey);
+    }
+  }
+
+  /**
+   * Stops the threads of this provisioner
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  private static final class ProvisioningException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    ProvisioningException(Exception cause) {
+      super(cause);
+    }
+  }
+
+  private final class GenerateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final KeyPair[] pairs;
+    private final PreKeyId[] ids;
+    private final int from;
+    private final int to;
+
+    GenerateTask(KeyPair[] pairs, PreKeyId[] ids, int from, int to) {
+      this.pairs = pairs;
+      this.ids = ids;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > batchSize) {
+        int middle = from + (to - from) / 2;
+        invokeAll(new GenerateTask(pairs, ids, from, middle), new GenerateTask(pairs, ids, middle, to));
+        return;
+      }
+
+      try {
+        KeyPair[] batch = KeyPair.generateBatch(to - from);
+        MessageDigest md = CryptoPrimitives.digest("SHA-256");
+        try {
+          for (int i = from; i < to; i ++) {
+            pairs[i] = batch[i - from];
+            md.update(pairs[i].publicKey.raw());
+            ids[i] = new PreKeyId(md.digest());
+          }
+        } finally {
+          CryptoPrimitives.release(md);
+        }
+      } catch (IllegalDataSizeException | NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new ProvisioningException(e);
+      }
+    }
+  }
+}
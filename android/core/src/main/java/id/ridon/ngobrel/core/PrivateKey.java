@@ -1,15 +1,14 @@
 package id.ridon.ngobrel.core;
 
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.util.Arrays;
 
 
 public class PrivateKey extends Key {
 
-  private final byte[] forSigning;
+  final byte[] forSigning;
 
   public static final int SIZE = 64;
   public static final int ESIZE = SIZE + 1;
@@ -32,37 +31,8 @@ public class PrivateKey extends Key {
    * @throws NoSuchAlgorithmException
    */
   public id.ridon.ngobrel.core.Signature sign(byte[] message) throws NoSuchAlgorithmException, SignatureException {
-
-    boolean done = false;
-
-    byte[] pubKey = new byte[Key.SIZE];
-    Curve.keygen(pubKey, null, key);
-
-    byte[] pubPoint = new byte[Key.SIZE];
-    byte[] sig1 = new byte[0];
-    byte[] sig2 = sig1.clone();
-    while (!done) {
-      SecureRandom random = new SecureRandom();
-      byte[] privPoint = new byte[Key.SIZE];
-      random.nextBytes(privPoint);
-      Curve.keygen(pubPoint, null, privPoint);
-
-      MessageDigest d1 = MessageDigest.getInstance("SHA-256");
-      sig1 = d1.digest(pubPoint);
-
-      MessageDigest d2 = MessageDigest.getInstance("SHA-256");
-      d2.update(message);
-      d2.update(pubKey);
-      byte[] msgDigest = d2.digest();
-
-      sig2 = new byte[Key.SIZE];
-      done = Curve.sign(sig2, msgDigest, privPoint, forSigning);
-    }
-
-    byte[] sig = new byte[SIZE];
-    System.arraycopy(sig1, 0, sig, 0, Key.SIZE);
-    System.arraycopy(sig2, 0, sig, Key.SIZE, Key.SIZE);
-    return new id.ridon.ngobrel.core.Signature(sig);
+    // Use a Signer directly when signing many messages with the same key
+    return new Signer(this).sign(message);
   }
 
   /**
@@ -101,15 +71,34 @@ public class PrivateKey extends Key {
    */
   public final byte[] shareSecret(PublicKey other) {
     byte[] shared = new byte[Key.SIZE];
-    byte[] k = key.clone();
-    k[31] &= 0x7F;
-    k[31] |= 0x40;
-    k[ 0] &= 0xF8;
-    Curve.curve(shared, k, other.raw());
+    shareSecret(other, shared);
 
     return shared;
   }
 
+  /**
+   * Creates a shared secret from this private key and other public key
+   * @param other The other public key
+   * @param shared Byte array of at least Key.SIZE bytes receiving the shared secret
+   */
+  public final void shareSecret(PublicKey other, byte[] shared) {
+    shareSecret(other, shared, CurveContext.get());
+  }
+
+  /**
+   * Creates a shared secret from this private key and other public key without allocating
+   * @param other The other public key
+   * @param shared Byte array of at least Key.SIZE bytes receiving the shared secret
+   * @param ctx The curve context to work in
+   */
+  public final void shareSecret(PublicKey other, byte[] shared, CurveContext ctx) {
+    byte[] k = ctx.scalar;
+    System.arraycopy(key, 0, k, 0, Key.SIZE);
+    Curve.clamp(k);
+    CurveBackends.get().curve(shared, k, other.raw(), ctx);
+    Arrays.fill(k, (byte) 0);
+  }
+
   /**
    * Derives a key from this private key and other public key
    * @param other The other public key
@@ -120,10 +109,7 @@ public class PrivateKey extends Key {
   public byte[] deriveKey(PublicKey other, String info, int length) {
     byte[] shared = shareSecret(other);
 
-    byte[] salt = Constants.getRidonSalt512();
-    Kdf kdf = Kdf.KdfSha512(shared, salt);
-    byte[] kdfResult = kdf.get(info, length);
-    return kdfResult;
+    return HkdfSha512.derive(shared, new HkdfSha512.Info(info), length);
   }
 
 }
@@ -7,6 +7,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Objects;
 
 import static java.lang.System.*;
@@ -47,6 +49,23 @@ public class PublicKey extends Key {
    * @throws InvalidKeyException
    */
   public boolean verify(byte[] message, int offset, int length, id.ridon.ngobrel.core.Signature signature) throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+    return verify(message, offset, length, signature, null);
+  }
+
+  /**
+   * Precomputes the curve state of this key which does not depend on the message, so that
+   * it can be passed to verify when checking many signatures from the same key
+   * @return the prepared key
+   */
+  Curve.PreparedKey prepare() {
+    return Curve.prepare(key);
+  }
+
+  /**
+   * Verifies a message given a signature, using the output of prepare
+   * @param prepared The prepared form of this key, or null
+   */
+  boolean verify(byte[] message, int offset, int length, id.ridon.ngobrel.core.Signature signature, Curve.PreparedKey prepared) throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
 
     byte[] y = new byte[32];
     byte[] s1 = new byte[32];
@@ -55,17 +74,23 @@ public class PublicKey extends Key {
     byte[] s2 = new byte[32];
     System.arraycopy(sig, 32, s2, 0, 32);
 
-    MessageDigest md = MessageDigest.getInstance("SHA-256");
-    md.update(message, offset, length);
-    md.update(key);
-    byte[] digest = md.digest();
-
-    Curve.verify(y, s2, digest, key);
-
-    MessageDigest md2 = MessageDigest.getInstance("SHA-256");
-    md2.update(y);
-
-    return Arrays.equals(md2.digest(), s1);
+    MessageDigest md = CryptoPrimitives.digest("SHA-256");
+    try {
+      md.update(message, offset, length);
+      md.update(key);
+      byte[] digest = md.digest();
+
+      if (prepared == null) {
+        Curve.verify(y, s2, digest, key);
+      } else {
+        Curve.verify(y, s2, digest, prepared, CurveContext.get());
+      }
+
+      md.update(y);
+      return Arrays.equals(md.digest(), s1);
+    } finally {
+      CryptoPrimitives.release(md);
+    }
   }
 
   /**
@@ -81,5 +106,49 @@ public class PublicKey extends Key {
     return verify(message, 0, message.length, signature);
   }
 
+  /**
+   * Verifies a batch of signed messages at once. This gives the same answers as calling
+   * verify on each of them, but the curve work of repeated public keys and the final
+   * field inversions are shared across the batch.
+   * @param messages The messages to be verified
+   * @return A set with bit i on if the signature of messages[i] is valid
+   * @throws NoSuchAlgorithmException
+   */
+  public static BitSet verifyBatch(List<SignedMessage> messages) throws NoSuchAlgorithmException {
+    int n = messages.size();
+    byte[][] y = new byte[n][32];
+    byte[][] v = new byte[n][32];
+    byte[][] h = new byte[n][];
+    byte[][] p = new byte[n][];
+
+    MessageDigest md = CryptoPrimitives.digest("SHA-256");
+    BitSet valid = new BitSet(n);
+    try {
+      for (int i = 0; i < n; i++) {
+        SignedMessage m = messages.get(i);
+        System.arraycopy(m.signature.getBytes(), 32, v[i], 0, 32);
+        p[i] = m.publicKey.key;
+        md.update(m.message, m.offset, m.length);
+        md.update(p[i]);
+        h[i] = md.digest();
+      }
+
+      Curve.verifyBatch(y, v, h, p, n, CurveContext.get());
+
+      for (int i = 0; i < n; i++) {
+        byte[] digest = md.digest(y[i]);
+        byte[] sig = messages.get(i).signature.getBytes();
+        boolean equal = true;
+        for (int j = 0; j < 32; j++) {
+          equal &= digest[j] == sig[j];
+        }
+        valid.set(i, equal);
+      }
+    } finally {
+      CryptoPrimitives.release(md);
+    }
+    return valid;
+  }
+
 
 }
\ No newline at end of file
@@ -6,19 +6,18 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Set;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
-import static javax.crypto.Mac.getInstance;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This represents a Ratchet mechanism
  */
 public class Ratchet {
+  // Legacy messages start with the tag of the encoded public key in their header
+  private static final byte LegacyTag = 0x5;
+
   public KeyPair pairSender;
   public PublicKey publicRecipient;
 
@@ -31,10 +30,16 @@ public class Ratchet {
   public int messageNumberRecipient;
 
   public int chainLength;
-  public HashMap<Key, RatchetMessageBuffer> skippedMessages;
+  public SkippedMessageKeys skippedMessages;
+
+  // The suite of the session, both sides have to use the same one
+  public CipherSuite cipherSuite = CipherSuite.Legacy;
+
+  // Records the changes made by the methods below, if set
+  public RatchetJournal journal;
 
   public Ratchet() {
-    skippedMessages = new HashMap<>();
+    skippedMessages = new SkippedMessageKeys();
   }
 
   public void build(KeyPair pairSender,
@@ -47,12 +52,13 @@ public class Ratchet {
                     int messageNumberSender,
                     int messageNumberRecipient,
                     int chainLength,
-                    HashMap<Key, RatchetMessageBuffer> skippedMessages) {
+                    SkippedMessageKeys skippedMessages) {
     this.pairSender = pairSender;
     this.publicRecipient = publicRecipient;
     this.rootKey = rootKey;
-    this.chainKeySender = chainKeySender;
-    this.chainKeyRecipient = chainKeyRecipient;
+    // The chain keys are stepped in place, the caller keeps its own
+    this.chainKeySender = Key.copyOf(chainKeySender);
+    this.chainKeyRecipient = Key.copyOf(chainKeyRecipient);
     this.nextHeader = nextHeader;
     this.header = header;
     this.messageNumberSender = messageNumberSender;
@@ -75,9 +81,8 @@ public class Ratchet {
       rk = this.rootKey;
     }
 
-    byte[] salt = Constants.getRidonSalt512();
-    Kdf kdf = Kdf.KdfSha512(dh, rk.raw());
-    byte[] kdfResult = kdf.get(Constants.RidonRatchetInfo, 64);
+    byte[] kdfResult = new byte[64];
+    HkdfSha512.derive(dh, rk.raw(), HkdfSha512.RatchetInfo, kdfResult, 0, 64);
 
     this.pairSender = pair;
     this.publicRecipient = remotePublicKey;
@@ -89,6 +94,9 @@ public class Ratchet {
     this.messageNumberSender = 0;
     this.messageNumberRecipient = 0;
     this.chainLength = 0;
+    if (journal != null) {
+      journal.state(this);
+    }
   }
 
   /**
@@ -105,14 +113,23 @@ public class Ratchet {
     messageNumberSender = 0;
     messageNumberRecipient = 0;
     chainLength = 0;
+    if (journal != null) {
+      journal.state(this);
+    }
   }
 
   /**
-   * Encodes a Ratchet into a byte sequence
+   * Encodes a Ratchet into a byte sequence. RatchetSnapshot has a layout which can be loaded
+   * without decoding the skipped message keys, and is the only one which keeps checkpoints and
+   * the limits of the skipped message keys. A decoded Ratchet has the default limits, callers
+   * which change them have to set them again.
    * @return byte sequence
-   * @throws IOException
+   * @throws IOException if the Ratchet has checkpoints, which would be lost
    */
   public byte[] encode() throws IOException {
+    if (skippedMessages.checkpointCount() > 0) {
+      throw new IOException("Checkpoints can only be kept by RatchetSnapshot");
+    }
     ByteArrayOutputStream s = new ByteArrayOutputStream();
     s.write(pairSender.encode());
     s.write(publicRecipient.encode());
@@ -134,14 +151,17 @@ public class Ratchet {
     b.clear();
     b.putInt(skippedMessages.size());
     s.write(b.array());
-    Set<Key> keyIds = skippedMessages.keySet();
-    Iterator<Key> it = keyIds.iterator();
+    Iterator<Map.Entry<Key, RatchetMessageBuffer>> it = skippedMessages.iterator();
     while (it.hasNext()) {
-      Key id = it.next();
-      RatchetMessageBuffer buf = skippedMessages.get(id);
+      Map.Entry<Key, RatchetMessageBuffer> e = it.next();
 
-      s.write(id.encode());
-      s.write(buf.encode());
+      s.write(e.getKey().encode());
+      s.write(e.getValue().encode());
+    }
+
+    // Sessions on the legacy suite keep their original encoding
+    if (cipherSuite != CipherSuite.Legacy) {
+      s.write(cipherSuite.id);
     }
     return s.toByteArray();
   }
@@ -155,47 +175,48 @@ public class Ratchet {
     ByteArrayInputStream in = new ByteArrayInputStream(raw);
 
     byte[] b = new byte[65 + 33];
-    in.read(b);
+    read(in, b);
     KeyPair pairSender = KeyPair.decode(b);
     b = new byte[33];
-    in.read(b);
+    read(in, b);
     PublicKey publicRecipient = PublicKey.decode(b, 0);
-    in.read(b);
+    read(in, b);
     Key rootKey = Key.decode(b, 0);
-    in.read(b);
+    read(in, b);
     Key chainKeySender = Key.decode(b, 0);
-    in.read(b);
+    read(in, b);
     Key chainKeyRecipient = Key.decode(b, 0);
-    in.read(b);
+    read(in, b);
     Key nextHeader = Key.decode(b, 0);
-    in.read(b);
+    read(in, b);
     Key header = Key.decode(b, 0);
     b = new byte[4];
-    in.read(b);
+    read(in, b);
     ByteBuffer bf = ByteBuffer.wrap(b, 0, 4);
     int messageNumberSender = bf.getInt();
 
-    in.read(b);
+    read(in, b);
     bf = ByteBuffer.wrap(b, 0, 4);
     int messageNumberRecipient = bf.getInt();
 
-    in.read(b);
+    read(in, b);
     bf = ByteBuffer.wrap(b, 0, 4);
     int chainLength  = bf.getInt();
 
-    in.read(b);
+    read(in, b);
     bf = ByteBuffer.wrap(b, 0, 4);
     int size  = bf.getInt();
 
-    HashMap<Key, RatchetMessageBuffer> skippedMessages = new HashMap<>();
+    // Oldest first, as they were encoded
+    SkippedMessageKeys skippedMessages = new SkippedMessageKeys();
     b = new byte[33];
     byte[] b37 = new byte[37];
     for (int i = 0; i < size; i ++) {
-      in.read(b);
+      read(in, b);
       Key key = Key.decode(b, 0);
-      in.read(b37);
+      read(in, b37);
       RatchetMessageBuffer buffer = RatchetMessageBuffer.decode(b37);
-      skippedMessages.put(key, buffer);
+      skippedMessages.put(key, buffer.number, buffer.key);
     }
 
     Ratchet r = new Ratchet();
@@ -203,9 +224,24 @@ public class Ratchet {
             chainKeySender, chainKeyRecipient, nextHeader,
             header, messageNumberSender, messageNumberRecipient,
             chainLength, skippedMessages);
+
+    int suite = in.read();
+    if (suite >= 0) {
+      r.cipherSuite = CipherSuite.fromId(suite);
+      if (r.cipherSuite == null) {
+        throw new IOException("Unknown cipher suite");
+      }
+    }
     return r;
   }
 
+  // Fails on truncated data instead of decoding the zeroes left in b
+  private static void read(ByteArrayInputStream in, byte[] b) throws IllegalDataSizeException {
+    if (in.read(b, 0, b.length) != b.length) {
+      throw new IllegalDataSizeException();
+    }
+  }
+
   /**
    * Encrypts plain text with additional data
    * @param plainText Plain text
@@ -213,81 +249,207 @@ public class Ratchet {
    * @return
    */
   public byte[] encrypt(final byte[] plainText, final byte[] ad) throws NoSuchAlgorithmException, InvalidKeyException, IllegalDataSizeException, EncryptionFailedException, IOException {
-    byte[] m = new byte[1];
-    m[0] = 1;
-
-    SecretKeySpec hks = new SecretKeySpec(chainKeySender.raw(), "HmacSHA512");
-    Mac mac = getInstance("HmacSHA512");
-    mac.init(hks);
-    mac.update(m);
-    byte[] sum = mac.doFinal();
-
-    byte[] b = new byte[32];
-    System.arraycopy(sum, 0, b, 0, 32);
-    chainKeySender = new Key(b);
-    byte[] mk = new byte[32];
-    System.arraycopy(sum, 32, mk, 0, 32);
-
-
     RatchetMessageHeader header = new RatchetMessageHeader(pairSender.publicKey, chainLength, messageNumberSender);
     byte[] hs = header.encode();
-    byte[] adAll = new byte[ad.length + hs.length];
-    System.arraycopy(ad, 0, adAll, 0, ad.length);
-    System.arraycopy(hs, 0, adAll, ad.length, hs.length);
+    byte[] adAll = associatedData(ad, cipherSuite, hs);
 
-    Aead aead = new Aead(mk, Constants.RidonRatchetInfo);
-    byte[] encrypted = aead.encrypt(plainText, adAll);
+    byte[] encrypted;
+    if (cipherSuite == CipherSuite.Legacy) {
+      encrypted = Aead.fromChainKey(chainKeySender).encrypt(plainText, adAll);
+    } else {
+      encrypted = GcmAead.fromChainKey(chainKeySender, cipherSuite).encrypt(plainText, adAll);
+    }
     messageNumberSender ++;
+    if (journal != null) {
+      journal.senderStep(this);
+    }
 
     ByteArrayOutputStream s = new ByteArrayOutputStream();
+    if (cipherSuite != CipherSuite.Legacy) {
+      s.write(cipherSuite.id);
+    }
     s.write(hs);
     s.write(encrypted);
     return s.toByteArray();
   }
 
-  public Key findSkippedKey(RatchetMessageHeader header) {
-    try {
-      RatchetMessageBuffer buffer = skippedMessages.get(new Key(header.publicKey.raw()));
-      if (buffer == null) {
-        return null;
+  /**
+   * The messages encrypted by encryptBatch, one after another in a single array
+   */
+  public static final class EncryptedBatch {
+    public final byte[] data;
+    private final int[] offsets;
+
+    EncryptedBatch(byte[] data, int[] offsets) {
+      this.data = data;
+      this.offsets = offsets;
+    }
+
+    /**
+     * Returns the number of messages
+     * @return the number of messages
+     */
+    public int size() {
+      return offsets.length - 1;
+    }
+
+    /**
+     * Returns where a message starts in data
+     * @param i The index of the message
+     * @return the offset of the message
+     */
+    public int offset(int i) {
+      return offsets[i];
+    }
+
+    /**
+     * Returns the length of a message
+     * @param i The index of the message
+     * @return the length of the message
+     */
+    public int length(int i) {
+      return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * Copies a message out of data
+     * @param i The index of the message
+     * @return byte array containing the message
+     */
+    public byte[] get(int i) {
+      return Arrays.copyOfRange(data, offsets[i], offsets[i + 1]);
+    }
+  }
+
+  /**
+   * Encrypts several plain texts with the same additional data, as if encrypt was called on
+   * each of them in turn. The header and the additional data are built once and only their
+   * message number changes, and the messages are written into a single array. If any of them
+   * fails, the ratchet is left as it was before the call.
+   * @param plainTexts The plain texts
+   * @param ad Additional data
+   * @return the encrypted messages
+   */
+  public EncryptedBatch encryptBatch(List<byte[]> plainTexts, byte[] ad) throws IllegalDataSizeException, EncryptionFailedException {
+    int n = plainTexts.size();
+    boolean legacy = cipherSuite == CipherSuite.Legacy;
+    int prefix = legacy ? 0 : 1;
+    int[] offsets = new int[n + 1];
+    for (int i = 0; i < n; i ++) {
+      int length = plainTexts.get(i).length;
+      offsets[i + 1] = offsets[i] + prefix + RatchetMessageHeader.SIZE
+          + (legacy ? Aead.encryptedSize(length) : length + GcmAead.TagSize);
+    }
+    byte[] out = new byte[offsets[n]];
+
+    RatchetMessageHeader header = new RatchetMessageHeader(pairSender.publicKey, chainLength, messageNumberSender);
+    byte[] adAll = associatedData(ad, cipherSuite, header.encode());
+    // The header ends with the message number
+    int headerAt = adAll.length - RatchetMessageHeader.SIZE;
+    int numberAt = adAll.length - 4;
+
+    // The messages are encrypted with a copy of the chain key, and the ratchet only moves on
+    // once all of them are, so a failure leaves it as it was before the call
+    Key chainKey = Key.copyOf(chainKeySender);
+    int number = messageNumberSender;
+    for (int i = 0; i < n; i ++) {
+      adAll[numberAt] = (byte) (number >>> 24);
+      adAll[numberAt + 1] = (byte) (number >>> 16);
+      adAll[numberAt + 2] = (byte) (number >>> 8);
+      adAll[numberAt + 3] = (byte) number;
+
+      int pos = offsets[i];
+      if (!legacy) {
+        out[pos ++] = cipherSuite.id;
       }
-      if (buffer.number != header.messageNumber) {
-        return null;
+      System.arraycopy(adAll, headerAt, out, pos, RatchetMessageHeader.SIZE);
+      pos += RatchetMessageHeader.SIZE;
+
+      byte[] plainText = plainTexts.get(i);
+      if (legacy) {
+        Aead.fromChainKey(chainKey).encrypt(ByteBuffer.wrap(plainText), ByteBuffer.wrap(adAll),
+            ByteBuffer.wrap(out, pos, offsets[i + 1] - pos));
+      } else {
+        GcmAead.fromChainKey(chainKey, cipherSuite).encrypt(plainText, 0, plainText.length, adAll, out, pos);
       }
-      skippedMessages.remove(header.publicKey);
-      return buffer.key;
-    } catch (Exception e) {
-      return null;
+      number ++;
+    }
+
+    if (n > 0) {
+      chainKeySender = chainKey;
+      messageNumberSender = number;
+      if (journal != null) {
+        journal.senderStep(this);
+      }
+    }
+    return new EncryptedBatch(out, offsets);
+  }
+
+  // The additional data is followed with the suite id, if any, and the header
+  private static byte[] associatedData(byte[] ad, CipherSuite suite, byte[] hs) {
+    int pos = ad.length;
+    byte[] adAll = new byte[ad.length + (suite == CipherSuite.Legacy ? 0 : 1) + hs.length];
+    System.arraycopy(ad, 0, adAll, 0, ad.length);
+    if (suite != CipherSuite.Legacy) {
+      adAll[pos ++] = suite.id;
+    }
+    System.arraycopy(hs, 0, adAll, pos, hs.length);
+    return adAll;
+  }
+
+  public Key findSkippedKey(RatchetMessageHeader header) {
+    Key mk = skippedMessages.take(header.publicKey, header.messageNumber);
+    if (mk != null && journal != null) {
+      journal.skippedTake(header.publicKey, header.messageNumber);
     }
+    return mk;
   }
 
   public byte[] trySkippedMessages(RatchetMessageHeader header, ByteArrayInputStream in, byte[] ad) throws IOException, DecryptionFailedException, IllegalDataSizeException, TooManySkippedMessagesException, AuthenticationException {
+    return trySkippedMessages(header, in, ad, CipherSuite.Legacy);
+  }
+
+  private byte[] trySkippedMessages(RatchetMessageHeader header, ByteArrayInputStream in, byte[] ad, CipherSuite suite) throws IOException, DecryptionFailedException, IllegalDataSizeException, TooManySkippedMessagesException, AuthenticationException {
     Key mk = findSkippedKey(header);
     if (mk == null) {
       return null;
     }
 
-    Aead aead = new Aead(mk.raw(), Constants.RidonRatchetInfo);
-
-    byte[] hs = header.encode();
-    byte[] adAll = new byte[ad.length + hs.length];
-    System.arraycopy(ad, 0, adAll, 0, ad.length);
-    System.arraycopy(hs, 0, adAll, ad.length, hs.length);
+    byte[] adAll = associatedData(ad, suite, header.encode());
 
     int size = in.available();
     byte[] data = new byte[size];
     in.read(data);
-    return aead.decrypt(data, adAll);
+    if (suite != CipherSuite.Legacy) {
+      return GcmAead.fromMessageKey(mk.raw(), suite).decrypt(data, adAll);
+    }
+    return new Aead(mk.raw(), HkdfSha512.RatchetInfo).decrypt(data, adAll);
   }
 
   public byte[] decrypt(byte[] cipherText, byte[] ad) throws DecryptionFailedException, IOException, InvalidKeyException, IllegalDataSizeException, TooManySkippedMessagesException, NoSuchAlgorithmException, AuthenticationException, InvalidKeyException {
-    ByteArrayInputStream in = new ByteArrayInputStream(cipherText);
+    if (cipherText.length == 0) {
+      throw new IllegalDataSizeException();
+    }
+    // The suite byte is not authenticated yet, so only the one of the session is accepted
+    CipherSuite suite = cipherSuite;
+    int offset = 0;
+    if (suite == CipherSuite.Legacy) {
+      if (cipherText[0] != LegacyTag) {
+        throw new DecryptionFailedException();
+      }
+    } else {
+      if (cipherText[0] != suite.id) {
+        throw new DecryptionFailedException();
+      }
+      offset = 1;
+    }
+    ByteArrayInputStream in = new ByteArrayInputStream(cipherText, offset, cipherText.length - offset);
 
     byte[] hs = new byte[RatchetMessageHeader.SIZE];
     in.read(hs);
     RatchetMessageHeader h = RatchetMessageHeader.decode(hs);
 
-    byte[] e = trySkippedMessages(h, in, ad);
+    byte[] e = trySkippedMessages(h, in, ad, suite);
 
     if (e != null) {
       return e;
@@ -299,38 +461,33 @@ public class Ratchet {
     }
     skipMessages(h.messageNumber);
 
-    SecretKeySpec hks = new SecretKeySpec(chainKeyRecipient.raw(), "HmacSHA512");
-    byte[] m1 = new byte[1];
-    m1[0] = 1;
-
-    Mac m = getInstance("HmacSHA512");
-    m.init(hks);
-    m.update(m1);
-    byte[] hmac = m.doFinal();
-
-    byte[] part = new byte[32];
-    System.arraycopy(hmac, 0, part, 0, 32);
-    chainKeyRecipient = new Key(part);
-    System.arraycopy(hmac, 32, part, 0, 32);
-
     int size = in.available();
     byte[] data = new byte[size];
     in.read(data);
-    Aead aead = new Aead(part, Constants.RidonRatchetInfo);
 
-    byte[] adAll = new byte[ad.length + hs.length];
-    System.arraycopy(ad, 0, adAll, 0, ad.length);
-    System.arraycopy(hs, 0, adAll, ad.length, hs.length);
+    byte[] adAll = associatedData(ad, suite, hs);
 
-    byte[] decrypted = aead.decrypt(data, adAll);
+    byte[] decrypted;
+    if (suite == CipherSuite.Legacy) {
+      decrypted = Aead.fromChainKey(chainKeyRecipient).decrypt(data, adAll);
+    } else {
+      decrypted = GcmAead.fromChainKey(chainKeyRecipient, suite).decrypt(data, adAll);
+    }
 
     messageNumberRecipient ++;
+    if (journal != null) {
+      journal.recipientStep(this);
+    }
 
     return decrypted;
   }
 
+  // The chain is stepped with the suite of the session, never with one read off a message
   public void skipMessages(int num) throws TooManySkippedMessagesException, NoSuchAlgorithmException, InvalidKeyException, IllegalDataSizeException{
-    if (messageNumberRecipient + Constants.MaxSkippedMessages < num) {
+    CipherSuite suite = cipherSuite;
+    int interval = skippedMessages.getCheckpointInterval();
+    int max = interval > 0 ? Constants.MaxSkippedMessagesWithCheckpoints : Constants.MaxSkippedMessages;
+    if (messageNumberRecipient + max < num) {
       throw new TooManySkippedMessagesException();
     }
 
@@ -338,29 +495,49 @@ public class Ratchet {
       return;
     }
 
-    while (true) {
-      if (messageNumberRecipient >= num) {
-        break;
+    int first = messageNumberRecipient;
+    ChainKeyStepper stepper = suite.chainKeyStepper();
+    if (interval > 0) {
+      // Only the chain key at every interval-th message is kept, the message keys are derived
+      // from it when a late message arrives
+      long firstKept = (long) num - (long) skippedMessages.getMaxCheckpoints() * interval;
+      while (messageNumberRecipient < num) {
+        int n = messageNumberRecipient;
+        int count = Math.min(interval - n % interval, num - n);
+        if (n + count > firstKept) {
+          skippedMessages.putCheckpoint(publicRecipient, n, count, suite, chainKeyRecipient);
+          if (journal != null) {
+            journal.checkpoint(publicRecipient, n, count, suite, chainKeyRecipient);
+          }
+        }
+        stepper.advance(chainKeyRecipient, count);
+        messageNumberRecipient += count;
       }
+      if (journal != null && messageNumberRecipient != first) {
+        journal.recipientStep(this);
+      }
+      return;
+    }
 
-      byte[] m = new byte[1];
-      m[0] = 1;
-
-      SecretKeySpec hks = new SecretKeySpec(chainKeyRecipient.raw(), "HmacSHA512");
-      Mac mac = getInstance("HmacSHA512");
-      mac.init(hks);
-      mac.update(m);
-      byte[] sum = mac.doFinal();
-
-      byte[] b = new byte[32];
-      System.arraycopy(sum, 0, b, 0, 32);
-      chainKeyRecipient = new Key(b);
-      System.arraycopy(sum, 32, b, 0, 32);
-
-      RatchetMessageBuffer buffer = new RatchetMessageBuffer(messageNumberRecipient, new Key(b));
-      skippedMessages.put(new Key(publicRecipient.raw()), buffer);
+    // The chain still has to be stepped over every message, but keys which would be evicted
+    // right away are not stored
+    int firstKept = num - skippedMessages.capacity();
+    if (messageNumberRecipient < firstKept) {
+      stepper.advance(chainKeyRecipient, firstKept - messageNumberRecipient);
+      messageNumberRecipient = firstKept;
+    }
+    long now = System.currentTimeMillis();
+    while (messageNumberRecipient < num) {
+      Key mk = stepper.step(chainKeyRecipient);
+      skippedMessages.put(publicRecipient, messageNumberRecipient, mk, now);
+      if (journal != null) {
+        journal.skippedAdd(publicRecipient, messageNumberRecipient, mk, now);
+      }
       messageNumberRecipient ++;
     }
+    if (journal != null && messageNumberRecipient != first) {
+      journal.recipientStep(this);
+    }
   }
 
   public void turn(PublicKey remote) throws IllegalDataSizeException {
@@ -371,9 +548,8 @@ public class Ratchet {
 
     byte[] dh = pairSender.privateKey.shareSecret(remote);
 
-    byte[] salt = Constants.getRidonSalt512();
-    Kdf kdf = Kdf.KdfSha512(dh, rootKey.raw());
-    byte[] kdfResult = kdf.get(Constants.RidonRatchetInfo, 64);
+    byte[] kdfResult = new byte[64];
+    HkdfSha512.derive(dh, rootKey.raw(), HkdfSha512.RatchetInfo, kdfResult, 0, 64);
 
     KeyPair pair = new KeyPair();
     byte[] b = new byte[32];
@@ -386,15 +562,16 @@ public class Ratchet {
     pairSender = pair;
 
     dh = pairSender.privateKey.shareSecret(publicRecipient);
-    kdf = Kdf.KdfSha512(dh, rootKey.raw());
-    kdfResult = kdf.get(Constants.RidonRatchetInfo, 64);
+    HkdfSha512.derive(dh, rootKey.raw(), HkdfSha512.RatchetInfo, kdfResult, 0, 64);
 
     pair = new KeyPair();
     System.arraycopy(kdfResult, 0, b, 0, 32);
     rootKey = new Key(b);
     System.arraycopy(kdfResult, 32, b, 0, 32);
     chainKeySender = new Key(b);
-
+    if (journal != null) {
+      journal.state(this);
+    }
   }
 
 }
@@ -0,0 +1,225 @@
+package id.ridon.ngobrel.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Records the changes made to a Ratchet as small records, so that a session can be persisted by
+ * appending tens of bytes per message instead of writing it out in full. The state is a
+ * RatchetSnapshot followed by the records appended after it, and is compacted into a new
+ * snapshot from time to time.
+ *
+ * Set it as the journal of a Ratchet and write out compact() as the first snapshot. Then append
+ * what drain() returns to the storage after every operation, and write compact() over the
+ * storage when needsCompaction() says so.
+ *
+ * Records are a type byte followed by a fixed size body:
+ * <pre>
+ *   SenderStep     suite id 1, chainKeySender 32, messageNumberSender 4
+ *   RecipientStep  chainKeyRecipient 32, messageNumberRecipient 4
+ *   State          the RatchetSnapshot header of the Ratchet, after a turn or an init
+ *   SkippedAdd     chain 32, message number 4, message key 32, counted as stored when replayed
+ *   SkippedTake    chain 32, message number 4, of a stored key or one derived from a checkpoint
+ *   Checkpoint     a checkpoint of skipped messages, as in a RatchetSnapshot
+ *   SkippedAddAt   chain 32, message number 4, message key 32, when it was stored 8
+ * </pre>
+ * Keys evicted from the store are not recorded, replaying the additions evicts them again as
+ * long as the store has the same limits. The limits, the maximum age and the checkpoint interval
+ * are kept by the snapshot only, so write a new one with compact() after changing them.
+ */
+public class RatchetJournal {
+  public static final byte SenderStep = 1;
+  public static final byte RecipientStep = 2;
+  public static final byte State = 3;
+  public static final byte SkippedAdd = 4;
+  public static final byte SkippedTake = 5;
+  public static final byte Checkpoint = 6;
+  public static final byte SkippedAddAt = 7;
+
+  // Compaction is not worth it while the journal is smaller than this
+  public static final int MinCompactionSize = 4096;
+
+  private byte[] pending = new byte[256];
+  private int pendingLength;
+  private long size;
+  private long snapshotSize;
+
+  /**
+   * Returns the number of bytes recorded since the last call to drain
+   * @return the number of bytes
+   */
+  public int pending() {
+    return pendingLength;
+  }
+
+  /**
+   * Returns the records made since the last call, to be appended to the storage
+   * @return byte array containing the records
+   */
+  public byte[] drain() {
+    byte[] ret = Arrays.copyOf(pending, pendingLength);
+    pendingLength = 0;
+    return ret;
+  }
+
+  /**
+   * Returns the number of bytes recorded since the last compaction
+   * @return the number of bytes
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Tells whether replaying the journal costs more than loading a new snapshot would
+   * @return whether compact should be called
+   */
+  public boolean needsCompaction() {
+    return size >= Math.max(MinCompactionSize, snapshotSize);
+  }
+
+  /**
+   * Writes a new snapshot of the Ratchet, which replaces the old one and every record so far
+   * @param r The Ratchet
+   * @return byte array containing the snapshot
+   */
+  public byte[] compact(Ratchet r) {
+    byte[] snapshot = RatchetSnapshot.encode(r);
+    snapshotSize = snapshot.length;
+    size = 0;
+    pendingLength = 0;
+    return snapshot;
+  }
+
+  void senderStep(Ratchet r) {
+    ByteBuffer b = append(SenderStep, 1 + Key.SIZE + 4);
+    b.put(r.cipherSuite.id);
+    b.put(r.chainKeySender.raw());
+    b.putInt(r.messageNumberSender);
+  }
+
+  void recipientStep(Ratchet r) {
+    ByteBuffer b = append(RecipientStep, Key.SIZE + 4);
+    b.put(r.chainKeyRecipient.raw());
+    b.putInt(r.messageNumberRecipient);
+  }
+
+  void state(Ratchet r) {
+    ByteBuffer b = append(State, RatchetSnapshot.HeaderSize);
+    RatchetSnapshot.writeHeader(r, 0, RatchetSnapshot.Version, b);
+  }
+
+  void skippedAdd(Key chain, int number, Key key, long time) {
+    ByteBuffer b = append(SkippedAddAt, Key.SIZE + 4 + Key.SIZE + 8);
+    b.put(chain.raw());
+    b.putInt(number);
+    b.put(key.raw());
+    b.putLong(time);
+  }
+
+  void skippedTake(Key chain, int number) {
+    ByteBuffer b = append(SkippedTake, Key.SIZE + 4);
+    b.put(chain.raw());
+    b.putInt(number);
+  }
+
+  void checkpoint(Key chain, int number, int count, CipherSuite suite, Key chainKey) {
+    ByteBuffer b = append(Checkpoint, RatchetSnapshot.CheckpointSize);
+    RatchetSnapshot.writeCheckpoint(new SkippedMessageKeys.Checkpoint(chain, number, count, suite, chainKey, 0), b);
+  }
+
+  private ByteBuffer append(byte type, int length) {
+    if (pendingLength + 1 + length > pending.length) {
+      pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + 1 + length));
+    }
+    ByteBuffer b = ByteBuffer.wrap(pending, pendingLength, 1 + length);
+    b.put(type);
+    pendingLength += 1 + length;
+    size += 1 + length;
+    return b;
+  }
+
+  /**
+   * Loads a Ratchet from a snapshot and replays the records which were appended after it. A
+   * record cut short at the end, as left by a crash while appending, is ignored.
+   * @param snapshot The buffer holding the snapshot, which must not change while the Ratchet is in use
+   * @param journal The records
+   * @return Ratchet
+   * @throws IOException if the snapshot or a record is not valid
+   */
+  public static Ratchet replay(ByteBuffer snapshot, ByteBuffer journal) throws IOException, IllegalDataSizeException {
+    Ratchet r = RatchetSnapshot.load(snapshot);
+    ByteBuffer b = journal.slice().order(ByteOrder.BIG_ENDIAN);
+    while (b.hasRemaining()) {
+      int start = b.position();
+      byte type = b.get();
+      int length = bodySize(type);
+      if (length < 0) {
+        throw new IOException("Unknown journal record");
+      }
+      if (b.remaining() < length) {
+        break;
+      }
+
+      switch (type) {
+        case SenderStep:
+          r.cipherSuite = CipherSuite.fromId(b.get());
+          if (r.cipherSuite == null) {
+            throw new IOException("Unknown cipher suite");
+          }
+          r.chainKeySender = readKey(b);
+          r.messageNumberSender = b.getInt();
+          break;
+        case RecipientStep:
+          r.chainKeyRecipient = readKey(b);
+          r.messageNumberRecipient = b.getInt();
+          break;
+        case State:
+          RatchetSnapshot.readHeader(b.slice(), r);
+          break;
+        case SkippedAdd:
+          r.skippedMessages.put(readKey(b), b.getInt(), readKey(b));
+          break;
+        case SkippedAddAt:
+          r.skippedMessages.put(readKey(b), b.getInt(), readKey(b), b.getLong());
+          break;
+        case SkippedTake:
+          r.skippedMessages.take(readKey(b), b.getInt());
+          break;
+        case Checkpoint:
+          r.skippedMessages.putCheckpoint(RatchetSnapshot.readCheckpoint(b));
+          break;
+      }
+      b.position(start + 1 + length);
+    }
+    return r;
+  }
+
+  private static int bodySize(byte type) {
+    switch (type) {
+      case SenderStep:
+        return 1 + Key.SIZE + 4;
+      case RecipientStep:
+      case SkippedTake:
+        return Key.SIZE + 4;
+      case State:
+        return RatchetSnapshot.HeaderSize;
+      case SkippedAdd:
+        return Key.SIZE + 4 + Key.SIZE;
+      case SkippedAddAt:
+        return Key.SIZE + 4 + Key.SIZE + 8;
+      case Checkpoint:
+        return RatchetSnapshot.CheckpointSize;
+      default:
+        return -1;
+    }
+  }
+
+  private static Key readKey(ByteBuffer b) {
+    Key k = new Key();
+    b.get(k.raw());
+    return k;
+  }
+}
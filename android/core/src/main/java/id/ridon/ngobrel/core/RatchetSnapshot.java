@@ -0,0 +1,473 @@
+package id.ridon.ngobrel.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A versioned binary layout of a Ratchet in which every field has a fixed offset, readable
+ * straight from a ByteBuffer, be it on the heap, direct or mapped from a file. Big endian:
+ *
+ * <pre>
+ *   0  int    Magic
+ *   4  byte   Version
+ *   5  byte   cipher suite id
+ *   6  short  which of the keys are set, one bit each, in the order below
+ *   8  int    messageNumberSender
+ *  12  int    messageNumberRecipient
+ *  16  int    chainLength
+ *  20  int    n, the number of skipped message keys
+ *  24  32x3   pairSender: private key, its signing half and public key
+ * 120  32     publicRecipient
+ * 152  32     rootKey
+ * 184  32     chainKeySender
+ * 216  32     chainKeyRecipient
+ * 248  32     nextHeader
+ * 280  32     header
+ * 312  68xn   skipped message keys (chain 32, number 4, key 32), sorted by chain then number
+ *      4xn    the positions of the skipped message keys in the table above, oldest first
+ * </pre>
+ *
+ * Version 4 is written when there are checkpoints of skipped messages or the store of skipped
+ * message keys does not have the default limits, and adds them at the end, checkpoints oldest
+ * first:
+ * <pre>
+ *      int    checkpoint interval
+ *      int    maximum number of checkpoints
+ *      int    maximum number of bytes of skipped message keys
+ *      int    maximum number of skipped message keys
+ *      int    maximum number of chains
+ *      long   maximum age of skipped message keys in milliseconds
+ *      8xn    when each skipped message key was stored, in milliseconds since the epoch, in
+ *             the order of the table
+ *      int    m, the number of checkpoints
+ *      80xm   chain 32, first message number 4, message count 1, suite id 1, zero 2,
+ *             bits of the messages whose key was taken 8, chain key 32
+ * </pre>
+ * Version 3 has neither the maximum age nor the times, and version 2 only has the checkpoints.
+ * The limits they do not have are left at their defaults, and keys loaded without a time count
+ * as stored when they were loaded.
+ *
+ * A loaded Ratchet reads the skipped message keys from the buffer as they are looked up, with
+ * a binary search, and only copies the table once the store is changed in another way. The
+ * buffer must not change while such a Ratchet is in use.
+ */
+public final class RatchetSnapshot {
+  public static final int Magic = 0x52446e52;
+  public static final byte Version = 4;
+  public static final int HeaderSize = 312;
+  public static final int EntrySize = Key.SIZE + 4 + Key.SIZE;
+  public static final int CheckpointSize = Key.SIZE + 4 + 4 + 8 + Key.SIZE;
+
+  private static final int KeysOffset = 24;
+  private static final int LimitsSize = 5 * 4 + 8;
+
+  private RatchetSnapshot() {
+  }
+
+  /**
+   * Returns the size of the snapshot of a Ratchet
+   * @param r The Ratchet
+   * @return the size in bytes
+   */
+  public static int size(Ratchet r) {
+    SkippedMessageKeys skipped = r.skippedMessages;
+    int size = size(skipped.size());
+    if (hasSettings(skipped)) {
+      size += LimitsSize + skipped.size() * 8 + 4 + skipped.checkpointCount() * CheckpointSize;
+    }
+    return size;
+  }
+
+  // Tells whether the store needs version 4
+  private static boolean hasSettings(SkippedMessageKeys skipped) {
+    return skipped.checkpointCount() > 0
+        || skipped.getMaxAge() != 0
+        || skipped.getCheckpointInterval() != 0
+        || skipped.getMaxCheckpoints() != Constants.MaxSkippedCheckpoints
+        || skipped.getMaxBytes() != Constants.MaxSkippedMessageKeyBytes
+        || skipped.getMaxKeys() != Constants.MaxSkippedMessageKeys
+        || skipped.getMaxChains() != Constants.MaxSkippedChains;
+  }
+
+  private static int size(int skipped) {
+    return HeaderSize + skipped * (EntrySize + 4);
+  }
+
+  /**
+   * Writes the snapshot of a Ratchet into a new array
+   * @param r The Ratchet
+   * @return byte array containing the snapshot
+   */
+  public static byte[] encode(Ratchet r) {
+    byte[] out = new byte[size(r)];
+    write(r, ByteBuffer.wrap(out));
+    return out;
+  }
+
+  /**
+   * Writes the snapshot of a Ratchet at the position of a buffer, advancing it
+   * @param r The Ratchet
+   * @param out The buffer, with at least size(r) bytes remaining
+   */
+  public static void write(Ratchet r, ByteBuffer out) {
+    ByteBuffer b = out.duplicate().order(ByteOrder.BIG_ENDIAN);
+    SkippedMessageKeys skipped = r.skippedMessages;
+    int n = skipped.size();
+    int m = skipped.checkpointCount();
+    boolean settings = hasSettings(skipped);
+
+    writeHeader(r, n, settings ? Version : 1, b);
+    Table table = skipped.untouchedSnapshot();
+    int[] ages = null;
+    if (table != null) {
+      // Loaded and not changed since, the table can be copied as it is
+      ByteBuffer t = table.buffer.duplicate();
+      t.limit(table.offset + n * (EntrySize + 4));
+      t.position(table.offset);
+      b.put(t);
+    } else {
+      ages = writeTable(skipped, n, b);
+    }
+    if (settings) {
+      b.putInt(skipped.getCheckpointInterval());
+      b.putInt(skipped.getMaxCheckpoints());
+      b.putInt(skipped.getMaxBytes());
+      b.putInt(skipped.getMaxKeys());
+      b.putInt(skipped.getMaxChains());
+      b.putLong(skipped.getMaxAge());
+      if (table != null) {
+        for (int i = 0; i < n; i ++) {
+          b.putLong(table.time(i));
+        }
+      } else {
+        long[] times = skipped.times();
+        for (int i = 0; i < n; i ++) {
+          b.putLong(times[ages[i]]);
+        }
+      }
+      b.putInt(m);
+      Iterator<SkippedMessageKeys.Checkpoint> it = skipped.checkpoints();
+      while (it.hasNext()) {
+        writeCheckpoint(it.next(), b);
+      }
+    }
+    out.position(b.position());
+  }
+
+  static void writeCheckpoint(SkippedMessageKeys.Checkpoint c, ByteBuffer b) {
+    b.put(c.chain.raw());
+    b.putInt(c.number);
+    b.put((byte) c.count);
+    b.put(c.suite.id);
+    b.putShort((short) 0);
+    b.putLong(c.used);
+    b.put(c.chainKey.raw());
+  }
+
+  static SkippedMessageKeys.Checkpoint readCheckpoint(ByteBuffer b) throws IOException {
+    Key chain = readKey(b, b.position());
+    int number = b.getInt();
+    int count = b.get();
+    CipherSuite suite = CipherSuite.fromId(b.get());
+    b.getShort();
+    long used = b.getLong();
+    Key chainKey = readKey(b, b.position());
+    if (suite == null || count < 1 || count > SkippedMessageKeys.MaxCheckpointInterval) {
+      throw new IOException("Invalid checkpoint");
+    }
+    return new SkippedMessageKeys.Checkpoint(chain, number, count, suite, chainKey, used);
+  }
+
+  // Writes the first HeaderSize bytes at the position of b, advancing it
+  static void writeHeader(Ratchet r, int skipped, byte version, ByteBuffer b) {
+    int start = b.position();
+    int flags = 0;
+    b.putInt(Magic);
+    b.put(version);
+    b.put(r.cipherSuite.id);
+    b.putShort((short) 0);
+    b.putInt(r.messageNumberSender);
+    b.putInt(r.messageNumberRecipient);
+    b.putInt(r.chainLength);
+    b.putInt(skipped);
+    if (r.pairSender != null) {
+      b.put(r.pairSender.privateKey.raw());
+      b.put(r.pairSender.privateKey.forSigning);
+      b.put(r.pairSender.publicKey.raw());
+      flags |= 1;
+    } else {
+      b.position(b.position() + 3 * Key.SIZE);
+    }
+    Key[] keys = { r.publicRecipient, r.rootKey, r.chainKeySender, r.chainKeyRecipient, r.nextHeader, r.header };
+    for (int i = 0; i < keys.length; i ++) {
+      if (keys[i] != null) {
+        b.put(keys[i].raw());
+        flags |= 2 << i;
+      } else {
+        for (int j = 0; j < Key.SIZE; j ++) {
+          b.put((byte) 0);
+        }
+      }
+    }
+    b.putShort(start + 6, (short) flags);
+  }
+
+  private static final class Entry {
+    final Key chain;
+    final RatchetMessageBuffer buffer;
+    final int age;
+
+    Entry(Key chain, RatchetMessageBuffer buffer, int age) {
+      this.chain = chain;
+      this.buffer = buffer;
+      this.age = age;
+    }
+  }
+
+  private static final Comparator<Entry> Order = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      int c = compareChains(a.chain.raw(), b.chain.raw());
+      if (c != 0) {
+        return c;
+      }
+      return a.buffer.number < b.buffer.number ? -1 : (a.buffer.number == b.buffer.number ? 0 : 1);
+    }
+  };
+
+  private static int compareChains(byte[] a, byte[] b) {
+    for (int i = 0; i < Key.SIZE; i ++) {
+      int c = (a[i] & 0xff) - (b[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  // Returns the age of each entry, in the order they were written
+  private static int[] writeTable(SkippedMessageKeys skipped, int n, ByteBuffer b) {
+    Entry[] entries = new Entry[n];
+    Iterator<Map.Entry<Key, RatchetMessageBuffer>> it = skipped.iterator();
+    for (int i = 0; i < n; i ++) {
+      Map.Entry<Key, RatchetMessageBuffer> e = it.next();
+      entries[i] = new Entry(e.getKey(), e.getValue(), i);
+    }
+    Arrays.sort(entries, Order);
+
+    int[] positions = new int[n];
+    int[] ages = new int[n];
+    for (int i = 0; i < n; i ++) {
+      b.put(entries[i].chain.raw());
+      b.putInt(entries[i].buffer.number);
+      b.put(entries[i].buffer.key.raw());
+      positions[entries[i].age] = i;
+      ages[i] = entries[i].age;
+    }
+    for (int i = 0; i < n; i ++) {
+      b.putInt(positions[i]);
+    }
+    return ages;
+  }
+
+  /**
+   * Loads a Ratchet from the snapshot at the position of a buffer. The skipped message keys
+   * stay in the buffer, which must not change while the Ratchet is in use.
+   * @param in The buffer
+   * @return Ratchet
+   * @throws IOException if the buffer does not hold a snapshot of a known version
+   */
+  public static Ratchet load(ByteBuffer in) throws IOException, IllegalDataSizeException {
+    ByteBuffer b = in.slice().order(ByteOrder.BIG_ENDIAN);
+    Ratchet r = new Ratchet();
+    readHeader(b, r);
+    int n = b.getInt(20);
+    if (n < 0 || n > (b.remaining() - HeaderSize) / (EntrySize + 4)) {
+      throw new IllegalDataSizeException();
+    }
+    int end = size(n);
+    byte version = b.get(4);
+    int times = -1;
+    if (version >= 3) {
+      // Set before the table is attached, changing the limits later would copy it
+      int size = version >= 4 ? LimitsSize + n * 8 : LimitsSize - 8;
+      if (b.remaining() < end + size) {
+        throw new IllegalDataSizeException();
+      }
+      readLimits(b, end, version, r.skippedMessages);
+      if (version >= 4) {
+        times = end + LimitsSize;
+      }
+      end += size;
+    }
+    if (n > 0) {
+      r.skippedMessages.attach(new Table(b, HeaderSize, n, times, System.currentTimeMillis()));
+    }
+
+    if (version >= 2) {
+      if (b.remaining() < end + 4) {
+        throw new IllegalDataSizeException();
+      }
+      int m = b.getInt(end);
+      end += 4;
+      if (m < 0 || m > (b.remaining() - end) / CheckpointSize) {
+        throw new IllegalDataSizeException();
+      }
+      b.position(end);
+      for (int i = 0; i < m; i ++) {
+        r.skippedMessages.putCheckpoint(readCheckpoint(b));
+      }
+      end = b.position();
+    }
+    in.position(in.position() + end);
+    return r;
+  }
+
+  private static void readLimits(ByteBuffer b, int offset, byte version, SkippedMessageKeys skipped) throws IOException {
+    int interval = b.getInt(offset);
+    int maxCheckpoints = b.getInt(offset + 4);
+    int maxBytes = b.getInt(offset + 8);
+    int maxKeys = b.getInt(offset + 12);
+    int maxChains = b.getInt(offset + 16);
+    long maxAge = version >= 4 ? b.getLong(offset + 20) : 0;
+    if (interval < 0 || interval > SkippedMessageKeys.MaxCheckpointInterval || maxCheckpoints < 0
+        || maxBytes < 0 || maxKeys < 0 || maxChains < 0 || maxAge < 0) {
+      throw new IOException("Invalid limits");
+    }
+    skipped.setLimits(maxBytes, maxKeys, maxChains);
+    skipped.setCheckpoints(interval, maxCheckpoints);
+    skipped.setMaxAge(maxAge);
+  }
+
+  // Reads every field but the skipped message keys from the header at the start of b
+  static void readHeader(ByteBuffer b, Ratchet r) throws IOException, IllegalDataSizeException {
+    if (b.remaining() < HeaderSize || b.getInt(0) != Magic) {
+      throw new IOException("Not a ratchet snapshot");
+    }
+    if (b.get(4) < 1 || b.get(4) > Version) {
+      throw new IOException("Unknown snapshot version");
+    }
+    CipherSuite suite = CipherSuite.fromId(b.get(5));
+    if (suite == null) {
+      throw new IOException("Unknown cipher suite");
+    }
+    int flags = b.getShort(6);
+
+    r.pairSender = null;
+    if ((flags & 1) != 0) {
+      byte[] forSigning = new byte[Key.SIZE];
+      Key priv = readKey(b, KeysOffset);
+      b.position(KeysOffset + Key.SIZE);
+      b.get(forSigning);
+      r.pairSender = new KeyPair(new PrivateKey(priv.raw(), forSigning), new PublicKey(readKey(b, KeysOffset + 2 * Key.SIZE).raw()));
+    }
+    Key[] keys = new Key[6];
+    for (int i = 0; i < keys.length; i ++) {
+      if ((flags & (2 << i)) != 0) {
+        keys[i] = readKey(b, KeysOffset + (3 + i) * Key.SIZE);
+      }
+    }
+    r.publicRecipient = keys[0] == null ? null : new PublicKey(keys[0].raw());
+    r.rootKey = keys[1];
+    r.chainKeySender = keys[2];
+    r.chainKeyRecipient = keys[3];
+    r.nextHeader = keys[4];
+    r.header = keys[5];
+    r.messageNumberSender = b.getInt(8);
+    r.messageNumberRecipient = b.getInt(12);
+    r.chainLength = b.getInt(16);
+    r.cipherSuite = suite;
+    b.position(0);
+  }
+
+  // Leaves the position of b after the key
+  static Key readKey(ByteBuffer b, int offset) {
+    Key k = new Key();
+    b.position(offset);
+    b.get(k.raw());
+    return k;
+  }
+
+  /**
+   * The skipped message key table of a snapshot, read in place
+   */
+  static final class Table {
+    final ByteBuffer buffer;
+    final int offset;
+    final int count;
+    // Where the times of the entries are, or -1 if the snapshot has none
+    final int times;
+    final long loaded;
+
+    Table(ByteBuffer buffer, int offset, int count, int times, long loaded) {
+      this.buffer = buffer.duplicate();
+      this.offset = offset;
+      this.count = count;
+      this.times = times;
+      this.loaded = loaded;
+    }
+
+    /**
+     * Finds an entry with a binary search
+     * @param chain The ratchet public key of the chain
+     * @param number The message number
+     * @return the position of the entry, or -1 if it is not there
+     */
+    int find(Key chain, int number) {
+      byte[] c = chain.raw();
+      int low = 0;
+      int high = count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compare(mid, c, number);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+
+    private int compare(int i, byte[] chain, int number) {
+      int at = offset + i * EntrySize;
+      for (int j = 0; j < Key.SIZE; j ++) {
+        int c = (buffer.get(at + j) & 0xff) - (chain[j] & 0xff);
+        if (c != 0) {
+          return c;
+        }
+      }
+      int n = buffer.getInt(at + Key.SIZE);
+      return n < number ? -1 : (n == number ? 0 : 1);
+    }
+
+    Key chain(int i) {
+      return readKey(buffer, offset + i * EntrySize);
+    }
+
+    int number(int i) {
+      return buffer.getInt(offset + i * EntrySize + Key.SIZE);
+    }
+
+    Key key(int i) {
+      return readKey(buffer, offset + i * EntrySize + Key.SIZE + 4);
+    }
+
+    // When the entry was stored, or when the table was loaded if the snapshot does not say
+    long time(int i) {
+      return times < 0 ? loaded : buffer.getLong(times + 8 * i);
+    }
+
+    // The position of the entry which is the age-th oldest
+    int byAge(int age) {
+      return buffer.getInt(offset + count * EntrySize + 4 * age);
+    }
+  }
+}
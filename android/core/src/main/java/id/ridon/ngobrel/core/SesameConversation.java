@@ -82,10 +82,14 @@ public class SesameConversation {
         System.arraycopy(senderBundle.bundlePublic.identity.encode(), 0, ad, 0, PublicKey.ESIZE);
         System.arraycopy(bundlePublic.identity.encode(), 0, ad, PublicKey.ESIZE, PublicKey.ESIZE);
 
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        md.update(ad);
-
-        byte[] adHash = md.digest();
+        MessageDigest md = CryptoPrimitives.digest("SHA-256");
+        byte[] adHash;
+        try {
+          md.update(ad);
+          adHash = md.digest();
+        } finally {
+          CryptoPrimitives.release(md);
+        }
 
         X3dhMessage msg = new X3dhMessage(senderBundle.bundlePublic.identity, ephKey.publicKey, sk.preKeyId, sk.key, m, adHash);
         byte[] msgEncoded = msg.encode();
@@ -143,10 +147,14 @@ public class SesameConversation {
     System.arraycopy(pub.identity.encode(), 0, ad, 0, Key.ESIZE);
     System.arraycopy(senderBundle.bundlePublic.identity.encode(), 0, ad, Key.ESIZE, Key.ESIZE);
 
-    MessageDigest md = MessageDigest.getInstance("SHA-256");
-    md.update(ad);
-
-    byte[] adHash = md.digest();
+    MessageDigest md = CryptoPrimitives.digest("SHA-256");
+    byte[] adHash;
+    try {
+      md.update(ad);
+      adHash = md.digest();
+    } finally {
+      CryptoPrimitives.release(md);
+    }
 
     SesameConversationSecret secret = new SesameConversationSecret(adHash);
     secrets.put(id, secret);
@@ -0,0 +1,25 @@
+package id.ridon.ngobrel.core;
+
+/**
+ * A message together with the signature and the key it should be verified with,
+ * see {@link PublicKey#verifyBatch(java.util.List)}
+ */
+public class SignedMessage {
+  public final byte[] message;
+  public final int offset;
+  public final int length;
+  public final Signature signature;
+  public final PublicKey publicKey;
+
+  public SignedMessage(byte[] message, int offset, int length, final Signature signature, final PublicKey publicKey) {
+    this.message = message;
+    this.offset = offset;
+    this.length = length;
+    this.signature = signature;
+    this.publicKey = publicKey;
+  }
+
+  public SignedMessage(byte[] message, final Signature signature, final PublicKey publicKey) {
+    this(message, 0, message.length, signature, publicKey);
+  }
+}
@@ -0,0 +1,181 @@
+package id.ridon.ngobrel.core;
+
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Signs many messages with the same private key. The public key and random generator are
+ * set up once, the digest is borrowed from CryptoPrimitives, and nonces can be precomputed
+ * by a background thread so that signing only hashes the message and runs Curve.sign.
+ * The signatures are the same as the ones made by PrivateKey.sign.
+ *
+ * A signer which precomputes nonces has to be closed to stop its thread.
+ */
+public class Signer implements Closeable {
+  private final byte[] forSigning;
+  private final byte[] publicKey = new byte[Key.SIZE];
+  private final SecureRandom random = new SecureRandom();
+
+  private final BlockingQueue<Nonce> nonces;
+  private final Thread worker;
+
+  // A random scalar together with the hash of its point
+  private static final class Nonce {
+    final byte[] privPoint = new byte[Key.SIZE];
+    byte[] digest;
+  }
+
+  // Fills the queue until interrupted. Static, so that the thread does not keep the signer and
+  // its key alive.
+  private static final class NonceWorker implements Runnable {
+    private final BlockingQueue<Nonce> nonces;
+    private final SecureRandom random;
+    private final MessageDigest md;
+
+    NonceWorker(BlockingQueue<Nonce> nonces, SecureRandom random, MessageDigest md) {
+      this.nonces = nonces;
+      this.random = random;
+      this.md = md;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          nonces.put(newNonce(random, md));
+        }
+      } catch (InterruptedException e) {
+        // Stopped by close
+      }
+    }
+  }
+
+  /**
+   * Creates a signer which computes the nonces while signing
+   * @param privateKey The key to sign with
+   * @throws NoSuchAlgorithmException
+   */
+  public Signer(PrivateKey privateKey) throws NoSuchAlgorithmException {
+    this(privateKey, 0);
+  }
+
+  /**
+   * Creates a signer
+   * @param privateKey The key to sign with
+   * @param precompute The number of nonces a background thread keeps ready, or 0 for none
+   * @throws NoSuchAlgorithmException
+   */
+  public Signer(PrivateKey privateKey, int precompute) throws NoSuchAlgorithmException {
+    forSigning = privateKey.forSigning;
+    Curve.keygen(publicKey, null, privateKey.raw().clone());
+    // Fails early if SHA-256 is missing, and leaves a digest in the pool of this thread
+    CryptoPrimitives.release(CryptoPrimitives.digest("SHA-256"));
+
+    if (precompute <= 0) {
+      nonces = null;
+      worker = null;
+      return;
+    }
+
+    nonces = new ArrayBlockingQueue<>(precompute);
+    worker = new Thread(new NonceWorker(nonces, new SecureRandom(), MessageDigest.getInstance("SHA-256")), "Signer");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  private static Nonce newNonce(SecureRandom r, MessageDigest md) {
+    Nonce n = new Nonce();
+    byte[] pubPoint = new byte[Key.SIZE];
+    r.nextBytes(n.privPoint);
+    Curve.keygen(pubPoint, null, n.privPoint);
+    n.digest = md.digest(pubPoint);
+    return n;
+  }
+
+  /**
+   * Returns the public key belonging to the private key of this signer
+   * @return Byte sequence containing the public key
+   */
+  public byte[] getPublicKey() {
+    return publicKey.clone();
+  }
+
+  /**
+   * Signs a message
+   * @param message The message to be signed
+   * @return The signature
+   */
+  public id.ridon.ngobrel.core.Signature sign(byte[] message) throws SignatureException {
+    return sign(message, 0, message.length);
+  }
+
+  /**
+   * Signs a part of a message
+   * @param message The message to be signed
+   * @param offset The offset of the data to sign
+   * @param length The length of the data to sign
+   * @return The signature
+   */
+  public synchronized id.ridon.ngobrel.core.Signature sign(byte[] message, int offset, int length) throws SignatureException {
+    MessageDigest md;
+    try {
+      md = CryptoPrimitives.digest("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    byte[] sig = new byte[PrivateKey.SIZE];
+    byte[] sig2 = new byte[Key.SIZE];
+    Nonce n;
+    try {
+      md.update(message, offset, length);
+      md.update(publicKey);
+      byte[] msgDigest = md.digest();
+
+      boolean signed;
+      do {
+        n = nonces == null ? null : nonces.poll();
+        if (n == null) {
+          n = newNonce(random, md);
+        }
+        signed = Curve.sign(sig2, msgDigest, n.privPoint, forSigning);
+        // A nonce is only used once
+        Arrays.fill(n.privPoint, (byte) 0);
+      } while (!signed);
+    } finally {
+      CryptoPrimitives.release(md);
+    }
+
+    System.arraycopy(n.digest, 0, sig, 0, Key.SIZE);
+    System.arraycopy(sig2, 0, sig, Key.SIZE, Key.SIZE);
+    return new id.ridon.ngobrel.core.Signature(sig);
+  }
+
+  /**
+   * Stops the background thread, if any, and wipes the nonces it left
+   */
+  @Override
+  public void close() {
+    if (worker == null) {
+      return;
+    }
+    worker.interrupt();
+    Nonce n;
+    while ((n = nonces.poll()) != null) {
+      Arrays.fill(n.privPoint, (byte) 0);
+    }
+  }
+
+  /**
+   * Same as close
+   */
+  public void shutdown() {
+    close();
+  }
+}
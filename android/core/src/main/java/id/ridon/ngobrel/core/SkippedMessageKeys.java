@@ -0,0 +1,502 @@
+package id.ridon.ngobrel.core;
+
+import java.util.AbstractMap;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The message keys a Ratchet skipped over, indexed by the ratchet public key of their chain and
+ * their message number. The store is bounded by a byte budget, a number of keys and a number of
+ * chains. When any of them is exceeded, the oldest keys are dropped first, so messages which are
+ * late by too much can no longer be decrypted. With a maximum age set, keys which were stored
+ * longer ago than that are dropped as well, however few there are.
+ *
+ * With checkpoints turned on, skipping keeps a chain key every few messages instead of the key
+ * of every message, and the key of a late message is derived from the checkpoint before it when
+ * it arrives. Checkpoints have their own limit, and the key limits do not apply to them.
+ */
+public class SkippedMessageKeys {
+  // A chain key id and a RatchetMessageBuffer, as they are encoded in a Ratchet
+  public static final int EntrySize = Key.ESIZE + 4 + Key.ESIZE;
+
+  private static final class Id {
+    final Key chain;
+    final int number;
+
+    Id(Key chain, int number) {
+      this.chain = chain;
+      this.number = number;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Id)) {
+        return false;
+      }
+      Id id = (Id) other;
+      return number == id.number && chain.equals(id.chain);
+    }
+
+    @Override
+    public int hashCode() {
+      return chain.hashCode() * 31 + number;
+    }
+  }
+
+  public static final int MaxCheckpointInterval = 64;
+
+  /**
+   * A chain key from which the keys of up to MaxCheckpointInterval skipped messages, starting
+   * with number, are derived
+   */
+  static final class Checkpoint {
+    final Key chain;
+    final int number;
+    final int count;
+    final CipherSuite suite;
+    final Key chainKey;
+    // One bit for each message whose key was taken
+    long used;
+
+    Checkpoint(Key chain, int number, int count, CipherSuite suite, Key chainKey, long used) {
+      this.chain = chain;
+      this.number = number;
+      this.count = count;
+      this.suite = suite;
+      this.chainKey = chainKey;
+      this.used = used;
+    }
+
+    boolean isUsedUp() {
+      return used == (count == 64 ? -1L : (1L << count) - 1);
+    }
+  }
+
+  // A skipped message key and when it was stored, in milliseconds since the epoch
+  private static final class Entry {
+    final RatchetMessageBuffer buffer;
+    final long time;
+
+    Entry(RatchetMessageBuffer buffer, long time) {
+      this.buffer = buffer;
+      this.time = time;
+    }
+  }
+
+  // In insertion order, which is also the order of age
+  private final LinkedHashMap<Id, Entry> keys = new LinkedHashMap<>();
+  // The number of keys held for each chain
+  private final HashMap<Key, Integer> chains = new HashMap<>();
+
+  // The table of a loaded snapshot, until the store is changed other than by take
+  private RatchetSnapshot.Table snapshot;
+  private BitSet taken;
+  private int snapshotSize;
+
+  // Oldest first, and by chain then number for lookups
+  private final LinkedHashMap<Id, Checkpoint> checkpoints = new LinkedHashMap<>();
+  private final HashMap<Key, TreeMap<Integer, Checkpoint>> checkpointIndex = new HashMap<>();
+  private int checkpointInterval;
+  private int maxCheckpoints = Constants.MaxSkippedCheckpoints;
+
+  private int maxBytes;
+  private int maxKeys;
+  private int maxChains;
+  // In milliseconds, 0 for no limit
+  private long maxAge;
+
+  public SkippedMessageKeys() {
+    this(Constants.MaxSkippedMessageKeyBytes, Constants.MaxSkippedMessageKeys, Constants.MaxSkippedChains);
+  }
+
+  /**
+   * Creates a store with its own limits
+   * @param maxBytes The byte budget, counted in encoded size
+   * @param maxKeys The maximum number of keys
+   * @param maxChains The maximum number of chains the keys belong to
+   */
+  public SkippedMessageKeys(int maxBytes, int maxKeys, int maxChains) {
+    setLimits(maxBytes, maxKeys, maxChains);
+  }
+
+  /**
+   * Changes the limits, dropping the oldest keys which no longer fit
+   * @param maxBytes The byte budget, counted in encoded size
+   * @param maxKeys The maximum number of keys
+   * @param maxChains The maximum number of chains the keys belong to
+   */
+  public void setLimits(int maxBytes, int maxKeys, int maxChains) {
+    if (maxBytes < 0 || maxKeys < 0 || maxChains < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxBytes = maxBytes;
+    this.maxKeys = maxKeys;
+    this.maxChains = maxChains;
+    materialize();
+    evict();
+    evictCheckpoints();
+  }
+
+  /**
+   * Returns the number of keys which can be held at once
+   * @return the number of keys
+   */
+  public int capacity() {
+    return Math.min(maxKeys, maxBytes / EntrySize);
+  }
+
+  /**
+   * Sets how long a key is kept, dropping the keys which are older
+   * @param maxAge The time in milliseconds, or 0 to keep keys until the other limits drop them
+   */
+  public void setMaxAge(long maxAge) {
+    if (maxAge < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxAge = maxAge;
+    materialize();
+    evict();
+  }
+
+  /**
+   * Returns how long a key is kept
+   * @return the time in milliseconds, or 0 if there is no limit
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Returns the byte budget
+   * @return the number of bytes, counted in encoded size
+   */
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the maximum number of keys
+   * @return the number of keys
+   */
+  public int getMaxKeys() {
+    return maxKeys;
+  }
+
+  /**
+   * Returns the maximum number of chains
+   * @return the number of chains
+   */
+  public int getMaxChains() {
+    return maxChains;
+  }
+
+  /**
+   * Turns skipping with checkpoints on or off
+   * @param interval The number of messages between checkpoints, up to MaxCheckpointInterval,
+   *                 or 0 to store the key of every skipped message
+   * @param maxCheckpoints The maximum number of checkpoints
+   */
+  public void setCheckpoints(int interval, int maxCheckpoints) {
+    if (interval < 0 || interval > MaxCheckpointInterval || maxCheckpoints < 0) {
+      throw new IllegalArgumentException();
+    }
+    checkpointInterval = interval;
+    this.maxCheckpoints = maxCheckpoints;
+    evictCheckpoints();
+  }
+
+  /**
+   * Returns the number of messages between checkpoints
+   * @return the interval, or 0 if checkpoints are not used
+   */
+  public int getCheckpointInterval() {
+    return checkpointInterval;
+  }
+
+  /**
+   * Returns the maximum number of checkpoints
+   * @return the number of checkpoints
+   */
+  public int getMaxCheckpoints() {
+    return maxCheckpoints;
+  }
+
+  /**
+   * Returns the number of checkpoints held
+   * @return the number of checkpoints
+   */
+  public int checkpointCount() {
+    return checkpoints.size();
+  }
+
+  /**
+   * Stores a checkpoint
+   * @param chain The ratchet public key of the chain
+   * @param number The number of the first message the checkpoint is for
+   * @param count The number of messages the checkpoint is for, up to MaxCheckpointInterval
+   * @param suite The suite whose chain step derives the message keys
+   * @param chainKey The chain key before the step of the first message, which is copied
+   */
+  public void putCheckpoint(Key chain, int number, int count, CipherSuite suite, Key chainKey) {
+    if (count < 1 || count > MaxCheckpointInterval) {
+      throw new IllegalArgumentException();
+    }
+    putCheckpoint(new Checkpoint(chainId(chain), number, count, suite, Key.copyOf(chainKey), 0));
+  }
+
+  void putCheckpoint(Checkpoint c) {
+    Checkpoint previous = checkpoints.put(new Id(c.chain, c.number), c);
+    if (previous != null) {
+      previous.chainKey.clear();
+    }
+    TreeMap<Integer, Checkpoint> index = checkpointIndex.get(c.chain);
+    if (index == null) {
+      index = new TreeMap<>();
+      checkpointIndex.put(c.chain, index);
+    }
+    index.put(c.number, c);
+    evictCheckpoints();
+  }
+
+  // Oldest first
+  Iterator<Checkpoint> checkpoints() {
+    return checkpoints.values().iterator();
+  }
+
+  /**
+   * Stores a skipped message key
+   * @param chain The ratchet public key of the chain
+   * @param number The message number
+   * @param key The message key
+   */
+  public void put(Key chain, int number, Key key) {
+    put(chain, number, key, System.currentTimeMillis());
+  }
+
+  // Stores a key as if it was stored at the given time
+  void put(Key chain, int number, Key key, long time) {
+    materialize();
+    Key id = chainId(chain);
+    Entry previous = keys.put(new Id(id, number), new Entry(new RatchetMessageBuffer(number, key), time));
+    if (previous == null) {
+      Integer count = chains.get(id);
+      chains.put(id, count == null ? 1 : count + 1);
+    }
+    evict();
+  }
+
+  /**
+   * Finds a skipped message key and removes it from the store
+   * @param chain The ratchet public key of the chain
+   * @param number The message number
+   * @return the message key, or null if it is not there
+   */
+  public Key take(Key chain, int number) {
+    Key mk = takeKey(chain, number);
+    if (mk == null && !checkpoints.isEmpty()) {
+      mk = takeFromCheckpoint(chain, number);
+    }
+    return mk;
+  }
+
+  private Key takeKey(Key chain, int number) {
+    long now = System.currentTimeMillis();
+    if (snapshot != null) {
+      int i = snapshot.find(chain, number);
+      if (i < 0 || taken.get(i)) {
+        return null;
+      }
+      taken.set(i);
+      snapshotSize --;
+      return isExpired(snapshot.time(i), now) ? null : snapshot.key(i);
+    }
+    Key id = chainId(chain);
+    Entry entry = keys.remove(new Id(id, number));
+    if (entry == null) {
+      return null;
+    }
+    release(id);
+    if (isExpired(entry.time, now)) {
+      entry.buffer.key.clear();
+      return null;
+    }
+    return entry.buffer.key;
+  }
+
+  private boolean isExpired(long time, long now) {
+    return maxAge > 0 && now - time > maxAge;
+  }
+
+  /**
+   * Returns the number of keys held
+   * @return the number of keys
+   */
+  public int size() {
+    return snapshot != null ? snapshotSize : keys.size();
+  }
+
+  /**
+   * Returns the number of bytes held, counted in encoded size
+   * @return the number of bytes
+   */
+  public int byteSize() {
+    return size() * EntrySize;
+  }
+
+  /**
+   * Returns the number of chains the keys belong to
+   * @return the number of chains
+   */
+  public int chainCount() {
+    materialize();
+    return chains.size();
+  }
+
+  /**
+   * Returns the keys held, oldest first
+   * @return iterator over pairs of ratchet public key and skipped message
+   */
+  public Iterator<Map.Entry<Key, RatchetMessageBuffer>> iterator() {
+    materialize();
+    final Iterator<Map.Entry<Id, Entry>> it = keys.entrySet().iterator();
+    return new Iterator<Map.Entry<Key, RatchetMessageBuffer>>() {
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public Map.Entry<Key, RatchetMessageBuffer> next() {
+        Map.Entry<Id, Entry> e = it.next();
+        return new AbstractMap.SimpleImmutableEntry<>(e.getKey().chain, e.getValue().buffer);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  // When each key was stored, oldest first, in the order of iterator
+  long[] times() {
+    materialize();
+    long[] times = new long[keys.size()];
+    int i = 0;
+    for (Entry e : keys.values()) {
+      times[i ++] = e.time;
+    }
+    return times;
+  }
+
+  // Reads the skipped message keys from a snapshot as they are looked up, the store must be empty
+  void attach(RatchetSnapshot.Table table) {
+    snapshot = table;
+    taken = new BitSet(table.count);
+    snapshotSize = table.count;
+  }
+
+  // The table of the loaded snapshot, if nothing was taken from it or added since
+  RatchetSnapshot.Table untouchedSnapshot() {
+    return snapshot != null && snapshotSize == snapshot.count ? snapshot : null;
+  }
+
+  // Copies what is left of the snapshot table, oldest first
+  private void materialize() {
+    if (snapshot == null) {
+      return;
+    }
+    RatchetSnapshot.Table table = snapshot;
+    snapshot = null;
+    for (int age = 0; age < table.count; age ++) {
+      int i = table.byAge(age);
+      if (i < 0 || i >= table.count) {
+        throw new IllegalStateException("Corrupt snapshot");
+      }
+      if (!taken.get(i)) {
+        Key id = table.chain(i);
+        int number = table.number(i);
+        keys.put(new Id(id, number), new Entry(new RatchetMessageBuffer(number, table.key(i)), table.time(i)));
+        Integer count = chains.get(id);
+        chains.put(id, count == null ? 1 : count + 1);
+      }
+    }
+    taken = null;
+  }
+
+  private Key takeFromCheckpoint(Key chain, int number) {
+    TreeMap<Integer, Checkpoint> index = checkpointIndex.get(chainId(chain));
+    if (index == null) {
+      return null;
+    }
+    Map.Entry<Integer, Checkpoint> e = index.floorEntry(number);
+    if (e == null) {
+      return null;
+    }
+    Checkpoint c = e.getValue();
+    int i = number - c.number;
+    if (i >= c.count || (c.used & (1L << i)) != 0) {
+      return null;
+    }
+    c.used |= 1L << i;
+
+    ChainKeyStepper stepper = c.suite.chainKeyStepper();
+    Key ck = Key.copyOf(c.chainKey);
+    stepper.advance(ck, i);
+    Key mk = stepper.step(ck);
+    ck.clear();
+
+    if (c.isUsedUp()) {
+      removeCheckpoint(c);
+    }
+    return mk;
+  }
+
+  private void removeCheckpoint(Checkpoint c) {
+    checkpoints.remove(new Id(c.chain, c.number));
+    TreeMap<Integer, Checkpoint> index = checkpointIndex.get(c.chain);
+    index.remove(c.number);
+    if (index.isEmpty()) {
+      checkpointIndex.remove(c.chain);
+    }
+    c.chainKey.clear();
+  }
+
+  private void evictCheckpoints() {
+    while (checkpoints.size() > maxCheckpoints || checkpointIndex.size() > maxChains) {
+      removeCheckpoint(checkpoints.values().iterator().next());
+    }
+  }
+
+  // A plain Key, as a PublicKey never equals a Key with the same bytes
+  private static Key chainId(Key chain) {
+    return Key.copyOf(chain);
+  }
+
+  private void release(Key chain) {
+    int count = chains.get(chain) - 1;
+    if (count == 0) {
+      chains.remove(chain);
+    } else {
+      chains.put(chain, count);
+    }
+  }
+
+  private void evict() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<Id, Entry>> it = keys.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Id, Entry> eldest = it.next();
+      if (keys.size() <= capacity() && chains.size() <= maxChains && !isExpired(eldest.getValue().time, now)) {
+        break;
+      }
+      it.remove();
+      release(eldest.getKey().chain);
+      eldest.getValue().buffer.key.clear();
+    }
+  }
+}
@@ -0,0 +1,526 @@
+package id.ridon.ngobrel.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts data of any size, like media attachments, in fixed-size chunks using the key
+ * schedule of {@link Aead}. Only a couple of chunks are held in memory at a time.
+ *
+ * The stream starts with a version byte and the chunk size. Every chunk is encrypted with
+ * AES-CBC under its own IV, and carries an HMAC-SHA512 over the additional data, the stream
+ * header, the chunk index, whether it is the last chunk, and the cipher text. Only the last
+ * chunk is padded, and it is shorter than the others, so a stream which was cut short, or
+ * whose chunks were reordered, fails authentication.
+ */
+public class StreamingAead {
+  public static final int DefaultChunkSize = 64 * 1024;
+  public static final int MaxChunkSize = 16 * 1024 * 1024;
+  public static final int TagSize = 64;
+
+  private static final byte Version = 1;
+  private static final int HeaderSize = 5;
+  private static final int BlockSize = 16;
+
+  private final byte[] keys = new byte[Aead.KeysSize];
+  private final int chunkSize;
+
+  /**
+   * Creates a StreamingAead with the default chunk size
+   * @param key The key in byte array
+   * @param info The string containing the information of the key
+   */
+  public StreamingAead(byte[] key, String info) {
+    this(key, info, DefaultChunkSize);
+  }
+
+  /**
+   * Creates a StreamingAead
+   * @param key The key in byte array
+   * @param info The string containing the information of the key
+   * @param chunkSize The size of the plain text of a chunk, a multiple of 16
+   */
+  public StreamingAead(byte[] key, String info, int chunkSize) {
+    if (chunkSize < BlockSize || chunkSize > MaxChunkSize || chunkSize % BlockSize != 0) {
+      throw new IllegalArgumentException("Invalid chunk size");
+    }
+    HkdfSha512.derive(key, new HkdfSha512.Info(info), keys, 0, Aead.KeysSize);
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Returns the size of the encryption of a plain text
+   * @param plainTextLength The length of the plain text
+   * @return the length of the encrypted stream
+   */
+  public long encryptedSize(long plainTextLength) {
+    long chunks = plainTextLength / chunkSize + 1;
+    return HeaderSize + plainTextLength + BlockSize - plainTextLength % BlockSize + chunks * TagSize;
+  }
+
+  /**
+   * Returns a stream which encrypts everything written to it into out. The stream must be
+   * closed to write the last chunk.
+   * @param out The stream receiving the encrypted data
+   * @param ad The additional data
+   * @return an OutputStream
+   */
+  public OutputStream newEncryptingStream(OutputStream out, byte[] ad) {
+    return new Writer(new Engine(keys, chunkSize, ad), true, out, null).stream();
+  }
+
+  /**
+   * Returns a channel which encrypts everything written to it into out. The channel must be
+   * closed to write the last chunk.
+   * @param out The channel receiving the encrypted data
+   * @param ad The additional data
+   * @return a WritableByteChannel
+   */
+  public WritableByteChannel newEncryptingChannel(WritableByteChannel out, byte[] ad) {
+    return new Writer(new Engine(keys, chunkSize, ad), true, null, out);
+  }
+
+  /**
+   * Returns a channel which decrypts everything written to it into out. The last chunk is
+   * authenticated and written when the channel is closed.
+   * @param out The channel receiving the plain text
+   * @param ad The additional data
+   * @return a WritableByteChannel
+   */
+  public WritableByteChannel newDecryptingChannel(WritableByteChannel out, byte[] ad) {
+    return new Writer(new Engine(keys, 0, ad), false, null, out);
+  }
+
+  /**
+   * Returns a stream which decrypts the data read from in. Reading fails with an IOException
+   * if the data was changed, reordered or cut short.
+   * @param in The stream containing the encrypted data
+   * @param ad The additional data
+   * @return an InputStream
+   */
+  public InputStream newDecryptingStream(InputStream in, byte[] ad) {
+    return new Reader(new Engine(keys, 0, ad), in);
+  }
+
+  /**
+   * Thrown by decrypting streams and channels when a chunk fails authentication
+   */
+  public static class ChunkAuthenticationException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ChunkAuthenticationException() {
+      super(new AuthenticationException());
+    }
+  }
+
+  // Encrypts and decrypts single chunks, used by one stream only
+  private static final class Engine {
+    private final byte[] keys;
+    private final byte[] ad;
+    private final byte[] header = new byte[HeaderSize];
+    private final byte[] counter = new byte[BlockSize];
+    private final byte[] iv = new byte[BlockSize];
+    private final byte[] meta = new byte[9];
+    private final byte[] tag = new byte[TagSize];
+    private final Cipher cipher;
+    private final Cipher ivCipher;
+    private final Mac mac;
+    private final SecretKeySpec keySpec;
+    int chunkSize;
+
+    Engine(byte[] keys, int chunkSize, byte[] ad) {
+      this.keys = keys;
+      this.ad = ad.clone();
+      this.chunkSize = chunkSize;
+      if (chunkSize > 0) {
+        header[0] = Version;
+        putInt(header, 1, chunkSize);
+      }
+      try {
+        keySpec = new SecretKeySpec(keys, Aead.OpKeyOffset, 16, "AES");
+        cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        ivCipher = Cipher.getInstance("AES/ECB/NoPadding");
+        ivCipher.init(Cipher.ENCRYPT_MODE, keySpec);
+        mac = Mac.getInstance("HmacSHA512");
+        mac.init(new SecretKeySpec(keys, Aead.AuthKeyOffset, 32, "HmacSHA512"));
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    byte[] header() {
+      return header;
+    }
+
+    // Takes the header of a stream being decrypted
+    void readHeader(byte[] b) throws IOException {
+      int size = getInt(b, 1);
+      if (b[0] != Version || size < BlockSize || size > MaxChunkSize || size % BlockSize != 0) {
+        throw new IOException("Invalid stream header");
+      }
+      System.arraycopy(b, 0, header, 0, HeaderSize);
+      chunkSize = size;
+    }
+
+    // The IV of a chunk is the encryption of the IV of the key schedule xored with the index
+    private void init(int mode, long index) throws GeneralSecurityException {
+      System.arraycopy(keys, Aead.IvOffset, counter, 0, BlockSize);
+      for (int i = 0; i < 8; i ++) {
+        counter[BlockSize - 1 - i] ^= (byte) (index >>> (8 * i));
+      }
+      ivCipher.doFinal(counter, 0, BlockSize, iv, 0);
+      cipher.init(mode, keySpec, new IvParameterSpec(iv));
+    }
+
+    private void authenticate(long index, boolean last, byte[] b, int off, int len) {
+      for (int i = 0; i < 8; i ++) {
+        meta[7 - i] = (byte) (index >>> (8 * i));
+      }
+      meta[8] = (byte) (last ? 1 : 0);
+      mac.update(ad);
+      mac.update(header);
+      mac.update(meta);
+      mac.update(b, off, len);
+    }
+
+    /**
+     * Encrypts the plain text in src[0, len) into dst. The last chunk is padded in src, which
+     * needs room for it.
+     * @return the number of bytes written to dst
+     */
+    int encrypt(long index, boolean last, byte[] src, int len, byte[] dst) throws IOException {
+      try {
+        init(Cipher.ENCRYPT_MODE, index);
+        if (last) {
+          int padLength = BlockSize - len % BlockSize;
+          Arrays.fill(src, len, len + padLength, (byte) padLength);
+          len += padLength;
+        }
+        int n = cipher.doFinal(src, 0, len, dst, 0);
+        authenticate(index, last, dst, 0, n);
+        mac.doFinal(dst, n);
+        return n + TagSize;
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+
+    /**
+     * Authenticates and decrypts the chunk in src[0, len) into dst
+     * @return the length of the plain text
+     */
+    int decrypt(long index, boolean last, byte[] src, int len, byte[] dst) throws IOException {
+      int n = len - TagSize;
+      if (n <= 0 || n % BlockSize != 0 || n > chunkSize || (!last && n != chunkSize)) {
+        throw new ChunkAuthenticationException();
+      }
+      try {
+        authenticate(index, last, src, 0, n);
+        mac.doFinal(tag, 0);
+        boolean valid = true;
+        for (int i = 0; i < TagSize; i ++) {
+          valid &= tag[i] == src[n + i];
+        }
+        if (!valid) {
+          throw new ChunkAuthenticationException();
+        }
+
+        init(Cipher.DECRYPT_MODE, index);
+        n = cipher.doFinal(src, 0, n, dst, 0);
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+      if (last) {
+        int padLength = dst[n - 1];
+        if (padLength < 1 || padLength > BlockSize) {
+          throw new ChunkAuthenticationException();
+        }
+        n -= padLength;
+      }
+      return n;
+    }
+  }
+
+  private static void putInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+  }
+
+  /*
+   * Encrypts or decrypts what is written to it. A full chunk is only processed once more
+   * data arrives, the chunk still held on close is the last one.
+   */
+  private static final class Writer implements WritableByteChannel {
+    private final Engine engine;
+    private final boolean encrypting;
+    private final OutputStream stream;
+    private final WritableByteChannel channel;
+    private final byte[] headerIn = new byte[HeaderSize];
+    private int headerLength;
+    private byte[] in;
+    private byte[] out;
+    private ByteBuffer outBuffer;
+    private byte[] scratch;
+    private int inLength;
+    private long index;
+    private boolean open = true;
+
+    Writer(Engine engine, boolean encrypting, OutputStream stream, WritableByteChannel channel) {
+      this.engine = engine;
+      this.encrypting = encrypting;
+      this.stream = stream;
+      this.channel = channel;
+      if (encrypting) {
+        allocate();
+      }
+    }
+
+    private void allocate() {
+      int size = engine.chunkSize;
+      in = new byte[encrypting ? size : size + TagSize];
+      out = new byte[size + BlockSize + TagSize];
+      outBuffer = ByteBuffer.wrap(out);
+    }
+
+    private void emit(byte[] b, int len) throws IOException {
+      if (stream != null) {
+        stream.write(b, 0, len);
+        return;
+      }
+      outBuffer.clear();
+      outBuffer.limit(len);
+      while (outBuffer.hasRemaining()) {
+        channel.write(outBuffer);
+      }
+    }
+
+    private void flush(boolean last) throws IOException {
+      if (index == 0 && encrypting) {
+        System.arraycopy(engine.header(), 0, out, 0, HeaderSize);
+        emit(out, HeaderSize);
+      }
+      int n = encrypting
+          ? engine.encrypt(index, last, in, inLength, out)
+          : engine.decrypt(index, last, in, inLength, out);
+      emit(out, n);
+      Arrays.fill(out, 0, n, (byte) 0);
+      index ++;
+      inLength = 0;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      while (!encrypting && headerLength < HeaderSize && len > 0) {
+        headerIn[headerLength ++] = b[off ++];
+        len --;
+        if (headerLength == HeaderSize) {
+          engine.readHeader(headerIn);
+          allocate();
+        }
+      }
+      while (len > 0) {
+        if (inLength == in.length) {
+          flush(false);
+        }
+        int n = Math.min(len, in.length - inLength);
+        System.arraycopy(b, off, in, inLength, n);
+        inLength += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      int n = src.remaining();
+      if (src.hasArray()) {
+        write(src.array(), src.arrayOffset() + src.position(), n);
+        src.position(src.limit());
+        return n;
+      }
+      if (scratch == null) {
+        scratch = new byte[8192];
+      }
+      while (src.hasRemaining()) {
+        int m = Math.min(src.remaining(), scratch.length);
+        src.get(scratch, 0, m);
+        write(scratch, 0, m);
+      }
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!open) {
+        return;
+      }
+      open = false;
+      try {
+        if (!encrypting && headerLength < HeaderSize) {
+          throw new EOFException();
+        }
+        // The last chunk is always shorter than a full one
+        if (encrypting && inLength == in.length) {
+          flush(false);
+        }
+        flush(true);
+      } finally {
+        if (in != null) {
+          Arrays.fill(in, (byte) 0);
+        }
+        if (stream != null) {
+          stream.close();
+        } else {
+          channel.close();
+        }
+      }
+    }
+
+    OutputStream stream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          Writer.this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          Writer.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          stream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          Writer.this.close();
+        }
+      };
+    }
+  }
+
+  /*
+   * Decrypts a stream chunk by chunk. A chunk is the last one when no data follows it, so
+   * one byte is read ahead.
+   */
+  private static final class Reader extends InputStream {
+    private final Engine engine;
+    private final InputStream in;
+    private byte[] record;
+    private byte[] plain;
+    private int recordLength;
+    private int position;
+    private int length;
+    private long index;
+    private boolean last;
+
+    Reader(Engine engine, InputStream in) {
+      this.engine = engine;
+      this.in = in;
+    }
+
+    private int fill(byte[] b, int off, int len) throws IOException {
+      int total = 0;
+      while (total < len) {
+        int n = in.read(b, off + total, len - total);
+        if (n < 0) {
+          break;
+        }
+        total += n;
+      }
+      return total;
+    }
+
+    // Returns false at the end of the stream
+    private boolean next() throws IOException {
+      if (last) {
+        return false;
+      }
+      if (record == null) {
+        byte[] header = new byte[HeaderSize];
+        if (fill(header, 0, HeaderSize) != HeaderSize) {
+          throw new EOFException();
+        }
+        engine.readHeader(header);
+        record = new byte[engine.chunkSize + TagSize + 1];
+        plain = new byte[engine.chunkSize];
+      }
+
+      recordLength += fill(record, recordLength, record.length - recordLength);
+      last = recordLength < record.length;
+      int n = last ? recordLength : record.length - 1;
+      length = engine.decrypt(index, last, record, n, plain);
+      position = 0;
+      index ++;
+
+      // Keep the byte read ahead for the next chunk
+      if (!last) {
+        record[0] = record[n];
+        recordLength = 1;
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (position == length) {
+        if (!next()) {
+          return -1;
+        }
+      }
+      int n = Math.min(len, length - position);
+      System.arraycopy(plain, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (plain != null) {
+        Arrays.fill(plain, (byte) 0);
+      }
+      in.close();
+    }
+  }
+}
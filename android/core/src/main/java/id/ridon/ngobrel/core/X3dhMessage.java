@@ -29,7 +29,7 @@ public class X3dhMessage {
     this.ephKey = ephKey;
     this.preKeyId = preKeyId;
 
-    Aead aead = new Aead(key, Constants.X3DhMessageInfo);
+    Aead aead = new Aead(key, HkdfSha512.X3dhMessageInfo);
     this.message = aead.encrypt(message, ad);
   }
 
@@ -57,7 +57,7 @@ public class X3dhMessage {
    * @throws AuthenticationException
    */
   public byte[] decrypt(byte[] key, byte[] ad) throws IllegalDataSizeException, DecryptionFailedException, AuthenticationException {
-    Aead aead = new Aead(key, Constants.X3DhMessageInfo);
+    Aead aead = new Aead(key, HkdfSha512.X3dhMessageInfo);
     return aead.decrypt(message, ad);
   }
 
@@ -179,9 +179,7 @@ public class X3dhMessage {
       clearKey(dh3);
     }
 
-    byte[] salt = Constants.getRidonSalt512();
-    Kdf kdf = Kdf.KdfSha512(keys, salt);
-    byte[] kdfResult = kdf.get(info, 32);
+    byte[] kdfResult = HkdfSha512.derive(keys, new HkdfSha512.Info(info), 32);
 
     SharedKey sk = new SharedKey(kdfResult, preKeyId);
 
@@ -243,9 +241,7 @@ public class X3dhMessage {
       clearKey(dh3);
     }
 
-    byte[] salt = Constants.getRidonSalt512();
-    Kdf kdf = Kdf.KdfSha512(keys, salt);
-    byte[] kdfResult = kdf.get(info, 32);
+    byte[] kdfResult = HkdfSha512.derive(keys, new HkdfSha512.Info(info), 32);
 
     return kdfResult;
   }